@@ -2,92 +2,180 @@ package uk.gov.ea.wastecarrier.services;
 
 import com.opencsv.CSVReader;
 import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.match.NameNormaliser;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
+/**
+ * Reads the conviction entities from the CSV file we're given. `open()` reads them a line at a time as they're asked
+ * for, so however big the file only the entity being read is held in memory.
+ */
 public class EntityCsvReader {
 
     private static Logger log = Logger.getLogger(EntityCsvReader.class.getName());
 
-    public List<Entity> read(String path) {
-        List<Entity> entities = new ArrayList<>();
+    private static final int FIELD_COUNT = 5;
+
+    private static final String DATE_PATTERN = "dd/MM/yyyy";
+    private static final String TIMESTAMP_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    /**
+     * The entities in a CSV file. Each line is read and turned into an entity when `next()` is called, and lines
+     * that can't be are skipped and counted.
+     */
+    public static final class Rows implements Iterator<Entity>, Closeable {
+
+        private final CSVReader reader;
+
+        // SimpleDateFormat isn't thread safe, but the rows are only ever read by one thread, so we can create them once
+        // rather than for every line
+        private final DateFormat dateFormat = new SimpleDateFormat(DATE_PATTERN);
+        private final DateFormat timestampFormat = new SimpleDateFormat(TIMESTAMP_PATTERN);
+
+        private Entity next;
+        private boolean finished;
+        private long rejected;
+
+        private Rows(Reader reader) {
+            this.reader = new CSVReader(reader);
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            if (this.next == null && !this.finished) this.next = readNext();
+
+            return this.next != null;
+        }
 
-        CSVReader reader = null;
-        String[] nextLine;
+        @Override
+        public Entity next() {
+
+            if (!hasNext()) throw new NoSuchElementException();
+
+            Entity entity = this.next;
+            this.next = null;
+
+            return entity;
+        }
+
+        /**
+         * @return the number of lines read so far that had no name or too few fields. The header isn't counted
+         */
+        public long rejected() {
+            return this.rejected;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.reader.close();
+        }
+
+        /**
+         * Dates are parsed leniently, just as they always have been, so anything after the date, such as a time, is
+         * ignored and an out of range day rolls over into the next month.
+         */
+        private Date parseDate(String dob) {
+
+            if (dob == null || dob.trim().isEmpty()) return null;
+
+            try {
+                return this.dateFormat.parse(dob);
+            } catch (ParseException e) {
+                // Have a second attempt using a different pattern
+                try {
+                    return this.timestampFormat.parse(dob);
+                } catch (ParseException e1) {
+                    return null;
+                }
+            }
+        }
 
-        try {
-            reader = new CSVReader(new FileReader(path));
-            while ((nextLine = reader.readNext()) != null) {
-                if (skipLine(nextLine)) continue;
+        private Entity readNext() {
 
-                entities.add(createEntity(nextLine));
+            try {
+                String[] line;
+                while ((line = this.reader.readNext()) != null) {
+                    if (isHeader(line)) continue;
+
+                    if (isRejected(line)) {
+                        this.rejected++;
+                        continue;
+                    }
+
+                    return createEntity(line, this);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+
+            this.finished = true;
+
+            return null;
+        }
+    }
+
+    /**
+     * Opens the file for reading a line at a time. The caller must close it.
+     */
+    public Rows open(String path) throws FileNotFoundException {
+        return new Rows(new FileReader(path));
+    }
+
+    public List<Entity> read(String path) {
+        List<Entity> entities = new ArrayList<>();
+
+        try (Rows rows = open(path)) {
+            rows.forEachRemaining(entities::add);
         } catch(FileNotFoundException e) {
             log.severe(String.format("EntityCsvReader - File %s not found: %s", path, e.getMessage()));
-        } catch(IOException e) {
+        } catch(IOException | UncheckedIOException e) {
             log.severe("EntityCsvReader - Error reading file: " + e.getMessage());
-        } finally {
-            try {
-                if (reader != null) reader.close();
-            } catch(IOException e) {
-                log.severe("EntityCsvReader - Error closing reader: " + e.getMessage());
-            }
         }
 
         return entities;
     }
 
-    private Boolean skipLine(String[] nextLine) {
-        String firstValue = nextLine[0] == null ? "" : nextLine[0].trim();
-        String secondValue = nextLine[1] == null ? "" : nextLine[1].trim();
-
-        // Basically we have the header row. The problem is the header row is
-        // not always the first row!
-        if (firstValue.equalsIgnoreCase("offender") && secondValue.equalsIgnoreCase("birth date")) return true;
+    // Basically we have the header row. The problem is the header row is not always the first row!
+    private static boolean isHeader(String[] nextLine) {
+        return nextLine.length > 1
+                && value(nextLine[0]).equalsIgnoreCase("offender")
+                && value(nextLine[1]).equalsIgnoreCase("birth date");
+    }
 
-        // Only required field is the first field. If its empty ignore the line
-        if (firstValue == null || firstValue.isEmpty()) return true;
+    // Only required field is the first field. If its empty ignore the line
+    private static boolean isRejected(String[] nextLine) {
+        return nextLine.length < FIELD_COUNT || value(nextLine[0]).isEmpty();
+    }
 
-        return false;
+    private static String value(String field) {
+        return field == null ? "" : field.trim();
     }
 
-    private Entity createEntity(String[] newLine) {
+    private static Entity createEntity(String[] newLine, Rows rows) {
 
         Entity doc = new Entity();
 
         doc.name = newLine[0].trim();
-        doc.dateOfBirth = parseDate(newLine[1].trim());
+        doc.dateOfBirth = rows.parseDate(newLine[1].trim());
         doc.companyNumber = newLine[2].trim();
         doc.systemFlag = newLine[3].trim();
         doc.incidentNumber = newLine[4].trim();
 
-        return doc;
-    }
-
-    private Date parseDate(String dob)
-    {
-        if (dob == null || dob.trim().isEmpty()) return null;
-
-        SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yyyy");
-        try {
-            return formatter.parse(dob);
-        }
-        catch (ParseException e) {
-            // Have a second attempt using a different pattern
-            try {
-                formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-                return formatter.parse(dob);
-            } catch (ParseException e1) {
-                return null;
-            }
-        }
+        return NameNormaliser.apply(doc);
     }
 }
@@ -5,6 +5,7 @@ import io.dropwizard.Configuration;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 
 public class EntityMatchingConfiguration extends Configuration {
 
@@ -12,4 +13,14 @@ public class EntityMatchingConfiguration extends Configuration {
     @NotEmpty
     @JsonProperty
     public String entitiesFilePath;
+
+    // Where to keep the snapshot of the entities we load the match index from at startup. Leave empty for none
+    @JsonProperty
+    public String snapshotFilePath;
+
+    // How often to check whether another instance has repopulated the entities, and reload the match index if so.
+    // 0 to not check
+    @Min(0)
+    @JsonProperty
+    public long indexRefreshSeconds = 60;
 }
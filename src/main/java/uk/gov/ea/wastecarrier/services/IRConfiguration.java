@@ -1,6 +1,7 @@
 package uk.gov.ea.wastecarrier.services;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 
 import io.dropwizard.Configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -32,6 +33,16 @@ public class IRConfiguration extends Configuration {
     @NotEmpty
     @JsonProperty
     private String irPublicBodyFileName = "irdata_publicbody.csv";
+
+    // How many rows the IR renewal populator inserts at a time
+    @Min(1)
+    @JsonProperty
+    private int irInsertBatchSize = 1000;
+
+    // How many parsed rows can wait to be inserted, which limits the memory the populator uses
+    @Min(1)
+    @JsonProperty
+    private int irQueueSize = 10000;
     
     public String getIrFolderPath()
     {
@@ -57,4 +68,14 @@ public class IRConfiguration extends Configuration {
     {
         return irPublicBodyFileName;
     }
+
+    public int getIrInsertBatchSize()
+    {
+        return irInsertBatchSize;
+    }
+
+    public int getIrQueueSize()
+    {
+        return irQueueSize;
+    }
 }
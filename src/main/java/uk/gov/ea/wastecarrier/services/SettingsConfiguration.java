@@ -32,6 +32,34 @@ public class SettingsConfiguration extends Configuration {
     @JsonProperty
     private int searchResultCount;
 
+    @Min(0)
+    @Max(64)
+    @JsonProperty
+    private int searchThreads = 8;
+
+    @Min(0)
+    @JsonProperty
+    private long searchMaxTimeMillis = 10000;
+
+    @Min(0)
+    @Max(64)
+    @JsonProperty
+    private int matchThreads = 8;
+
+    // Off by default, as a cached report is only invalidated on the instance the change was made through (see
+    // `ReportCache`). Only set this where a single instance is run
+    @Min(0)
+    @JsonProperty
+    private long reportCacheSize = 0;
+
+    @Min(1)
+    @JsonProperty
+    private long reportCacheMinutes = 10;
+
+    @Min(0)
+    @JsonProperty
+    private long matchCacheSize = 10000;
+
     /**
      * @return the registrationPeriod
      */
@@ -71,4 +99,54 @@ public class SettingsConfiguration extends Configuration {
     {
         return searchResultCount;
     }
+
+    /**
+     * @return the number of threads shared by searches for running their queries concurrently. 0 means searches
+     * run their queries one after the other on the request thread
+     */
+    public int getSearchThreads()
+    {
+        return searchThreads;
+    }
+
+    /**
+     * @return how long MongoDB lets a home screen search query run before stopping it. 0 means there is no limit
+     */
+    public long getSearchMaxTimeMillis()
+    {
+        return searchMaxTimeMillis;
+    }
+
+    /**
+     * @return the number of threads shared by batch matches for running their matches concurrently. 0 means a batch
+     * runs its matches one after the other on the request thread
+     */
+    public int getMatchThreads()
+    {
+        return matchThreads;
+    }
+
+    /**
+     * @return the most registrations to hold across all cached report results. 0 means reports are not cached
+     */
+    public long getReportCacheSize()
+    {
+        return reportCacheSize;
+    }
+
+    /**
+     * @return how long the results of a report are cached for
+     */
+    public long getReportCacheMinutes()
+    {
+        return reportCacheMinutes;
+    }
+
+    /**
+     * @return the most company and person match results to cache. 0 means match results are not cached
+     */
+    public long getMatchCacheSize()
+    {
+        return matchCacheSize;
+    }
 }
@@ -7,17 +7,30 @@ import io.dropwizard.configuration.SubstitutingSourceProvider;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import net.anthavio.airbrake.AirbrakeLogbackAppender;
+import uk.gov.ea.wastecarrier.services.core.Registration;
 import uk.gov.ea.wastecarrier.services.dao.EntityDao;
+import uk.gov.ea.wastecarrier.services.dao.IRRenewalDao;
 import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
 import uk.gov.ea.wastecarrier.services.dao.UserDao;
 import uk.gov.ea.wastecarrier.services.health.MongoHealthCheck;
+import uk.gov.ea.wastecarrier.services.match.EntityIndexHolder;
+import uk.gov.ea.wastecarrier.services.match.MatchCache;
 import uk.gov.ea.wastecarrier.services.resources.*;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 import uk.gov.ea.wastecarrier.services.tasks.EnsureDatabaseIndexesTask;
 import uk.gov.ea.wastecarrier.services.tasks.EntityPopulatorTask;
 import uk.gov.ea.wastecarrier.services.tasks.ExceptionTesterTask;
 import uk.gov.ea.wastecarrier.services.tasks.IRRenewalPopulatorTask;
+import uk.gov.ea.wastecarrier.services.tasks.QueryPlanTask;
+import uk.gov.ea.wastecarrier.services.tasks.RescreenTask;
+import uk.gov.ea.wastecarrier.services.tasks.SearchKeysTask;
 
 import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Logger;
 
 /**
@@ -66,20 +79,39 @@ public class WasteCarrierService extends Application<WasteCarrierConfiguration>
 
         addHealthChecks(environment, registrationsDb, usersDb, entityMatchingDb);
 
+        // The search keys are stored with each registration for the searches, but aren't part of the API
+        Registration.withoutSearchKeys(environment.getObjectMapper());
+
+        // Matches run against an in memory copy of the entities, loaded at startup and whenever they're repopulated
+        final EntityIndexHolder entityIndex = new EntityIndexHolder(
+                new EntityDao(entityMatchingDb),
+                snapshotPath(configuration.getEntityMatching()),
+                configuration.getEntityMatching().indexRefreshSeconds
+        );
+        environment.lifecycle().manage(entityIndex);
+
+        // Shared by the report searches and everything that saves registrations, so saves invalidate reports
+        final ReportCache reportCache = reportCache(environment, configuration.getSettings());
+
         addResources(
                 environment,
                 registrationsDb,
                 usersDb,
                 entityMatchingDb,
-                configuration.getSettings()
+                configuration.getSettings(),
+                entityIndex,
+                reportCache
         );
 
         addTasks(
                 environment,
                 registrationsDb,
+                usersDb,
                 entityMatchingDb,
                 configuration.getEntityMatching().entitiesFilePath,
-                configuration.getIrRenewals()
+                configuration.getIrRenewals(),
+                entityIndex,
+                reportCache
         );
 
         logPackageNameAndVersion();
@@ -165,60 +197,157 @@ public class WasteCarrierService extends Application<WasteCarrierConfiguration>
             DatabaseConfiguration registrationsDb,
             DatabaseConfiguration usersDb,
             DatabaseConfiguration entityMatchingDb,
-            SettingsConfiguration settings
+            SettingsConfiguration settings,
+            EntityIndexHolder entityIndex,
+            ReportCache reportCache
     ) {
 
         // Add Create Resource.
-        environment.jersey().register(new RegistrationsResource(registrationsDb));
+        environment.jersey().register(new RegistrationsResource(registrationsDb, reportCache));
         // Add Read Resource.
-        environment.jersey().register(new RegistrationReadEditResource(registrationsDb, usersDb, settings));
+        environment.jersey().register(
+                new RegistrationReadEditResource(registrationsDb, usersDb, settings, reportCache)
+        );
         // Add Version Resource.
         environment.jersey().register(new RegistrationVersionResource());
 
         // Add Payment Resource, testing new URL for get payment details.
         environment.jersey().register(new NewPaymentResource());
-        environment.jersey().register(new PaymentResource(registrationsDb, usersDb, settings));
+        environment.jersey().register(new PaymentResource(registrationsDb, usersDb, settings, reportCache));
 
         // Add Order Resource.
-        environment.jersey().register(new OrderResource(registrationsDb));
-        environment.jersey().register(new OrdersResource(registrationsDb, usersDb, settings));
+        environment.jersey().register(new OrderResource(registrationsDb, reportCache));
+        environment.jersey().register(new OrdersResource(registrationsDb, usersDb, settings, reportCache));
 
         // Add Settings resource.
         environment.jersey().register(new SettingsResource(settings));
 
         // Add search resource.
-        environment.jersey().register(new SearchResource(registrationsDb, settings.getSearchResultCount()));
+        environment.jersey().register(new SearchResource(
+                registrationsDb,
+                settings.getSearchResultCount(),
+                boundedExecutor(environment, "search-%d", settings.getSearchThreads()),
+                settings.getSearchMaxTimeMillis(),
+                environment.metrics(),
+                reportCache
+        ));
 
         // Add IR Renewals resource.
         environment.jersey().register(new IRRenewalResource(registrationsDb));
 
         // Add entity matching resource
-        environment.jersey().register(new MatchResource(entityMatchingDb));
+        environment.jersey().register(new MatchResource(
+                entityMatchingDb,
+                entityIndex,
+                boundedExecutor(environment, "match-%d", settings.getMatchThreads()),
+                matchCache(environment, settings),
+                environment.metrics()
+        ));
+    }
+
+    /**
+     * @return the cache for report results, or null if reports should not be cached
+     */
+    private ReportCache reportCache(Environment environment, SettingsConfiguration settings) {
+
+        if (settings.getReportCacheSize() == 0) return null;
+
+        log.warning("Report results are cached. This is only safe where a single instance of the service is run");
+
+        return new ReportCache(settings.getReportCacheSize(), settings.getReportCacheMinutes(), environment.metrics());
+    }
+
+    private Path snapshotPath(EntityMatchingConfiguration entityMatching) {
+
+        String path = entityMatching.snapshotFilePath;
+
+        return path == null || path.trim().isEmpty() ? null : Paths.get(path.trim());
+    }
+
+    /**
+     * @return the cache for company and person match results, or null if they should not be cached
+     */
+    private MatchCache matchCache(Environment environment, SettingsConfiguration settings) {
+
+        if (settings.getMatchCacheSize() == 0) return null;
+
+        return new MatchCache(settings.getMatchCacheSize(), environment.metrics());
+    }
+
+    /**
+     * The home screen search runs its queries concurrently, as do the batch match and the re-screen task, and the IR
+     * populator reads its files at the same time. To stop a burst of requests from swamping the database the threads
+     * each can use are shared and fixed in number, with a short queue. Should that fill up the work runs on the
+     * request thread instead, so requests slow down rather than fail.
+     *
+     * @return the executor, or null if the work should not be run concurrently
+     */
+    private ExecutorService boundedExecutor(Environment environment, String nameFormat, int threads) {
+
+        if (threads == 0) return null;
+
+        return environment.lifecycle()
+                .executorService(nameFormat)
+                .minThreads(threads)
+                .maxThreads(threads)
+                .workQueue(new ArrayBlockingQueue<>(threads * 4))
+                .rejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy())
+                .build();
     }
 
     private void addTasks(
             Environment environment,
             DatabaseConfiguration registrationsDb,
+            DatabaseConfiguration usersDb,
             DatabaseConfiguration entityMatchingDb,
             String entityFilePath,
-            IRConfiguration irConfig
+            IRConfiguration irConfig,
+            EntityIndexHolder entityIndex,
+            ReportCache reportCache
     ) {
         // Allow us to test exception handling, particularly Airbrake / Errbit integration
         environment.admin().addTask(new ExceptionTesterTask("generateTestException"));
 
         // Add tasks related to IR data.
-        environment.admin().addTask(new IRRenewalPopulatorTask("ir-repopulate", registrationsDb, irConfig));
+        // One thread for each of the IR data files, which are read at the same time
+        environment.admin().addTask(new IRRenewalPopulatorTask(
+                "ir-repopulate",
+                registrationsDb,
+                irConfig,
+                boundedExecutor(environment, "ir-parse-%d", IRRenewalPopulatorTask.IRRenewal_Type.values().length)
+        ));
 
         // Add task to re-populate entity matching when called
-        environment.admin().addTask(new EntityPopulatorTask("entity-populator", entityMatchingDb, entityFilePath));
+        environment.admin().addTask(
+                new EntityPopulatorTask("entity-populator", entityMatchingDb, entityFilePath, entityIndex)
+        );
 
         //Add a task to ensure that indexes have been defined in the database.
         EnsureDatabaseIndexesTask ensureDbIndexesTask = new EnsureDatabaseIndexesTask(
                 "EnsureDatabaseIndexes",
-                new RegistrationDao(registrationsDb)
+                new RegistrationDao(registrationsDb),
+                new UserDao(usersDb),
+                new EntityDao(entityMatchingDb),
+                new IRRenewalDao(registrationsDb)
         );
         environment.admin().addTask(ensureDbIndexesTask);
 
+        // Add task to backfill the registration search keys
+        environment.admin().addTask(new SearchKeysTask("search-keys", new RegistrationDao(registrationsDb)));
+
+        // Add task to re-screen registrations after the entities have been repopulated. Matching is CPU bound so it
+        // gets a thread per core
+        environment.admin().addTask(new RescreenTask(
+                "rescreen",
+                new RegistrationDao(registrationsDb),
+                entityIndex,
+                boundedExecutor(environment, "rescreen-%d", Runtime.getRuntime().availableProcessors()),
+                reportCache
+        ));
+
+        // Add task to check how MongoDB runs each of the search and match queries
+        environment.admin().addTask(new QueryPlanTask("query-plans", registrationsDb, entityMatchingDb));
+
         try {
             ensureDbIndexesTask.execute(null, new PrintWriter(System.out));
         } catch (Exception e) {
@@ -0,0 +1,68 @@
+package uk.gov.ea.wastecarrier.services.core;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Size;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything we need to screen a registration for convictions in one call: the company and each of its key people.
+ * The fields are the same as the parameters to `/match/company` and `/match/person`.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BatchMatchRequest {
+
+    public static final int MAX_PEOPLE = 200;
+
+    @JsonProperty
+    @Valid
+    public Company company;
+
+    @JsonProperty
+    @Valid
+    @Size(max = MAX_PEOPLE)
+    public List<Person> people = new ArrayList<>();
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Company {
+
+        @JsonProperty
+        public String name;
+
+        @JsonProperty
+        public String number;
+
+        public Company() {
+        }
+
+        public Company(String name, String number) {
+            this.name = name;
+            this.number = number;
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Person {
+
+        @JsonProperty("firstname")
+        public String firstName;
+
+        @JsonProperty("lastname")
+        public String lastName;
+
+        @JsonProperty("dateofbirth")
+        public String dateOfBirth;
+
+        public Person() {
+        }
+
+        public Person(String firstName, String lastName, String dateOfBirth) {
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.dateOfBirth = dateOfBirth;
+        }
+    }
+}
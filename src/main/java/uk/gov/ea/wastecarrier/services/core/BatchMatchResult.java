@@ -0,0 +1,19 @@
+package uk.gov.ea.wastecarrier.services.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The results of a `BatchMatchRequest`. There is one result for each person, in the order they were sent. The company
+ * result is null if no company was sent.
+ */
+public class BatchMatchResult {
+
+    @JsonProperty
+    public ConvictionSearchResult company;
+
+    @JsonProperty
+    public List<ConvictionSearchResult> people = new ArrayList<>();
+}
@@ -6,6 +6,7 @@ import org.mongojack.Id;
 import org.mongojack.ObjectId;
 
 import java.util.Date;
+import java.util.List;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Entity {
@@ -19,14 +20,34 @@ public class Entity {
     @JsonProperty
     public String name;
 
+    // The name as we match on it, set on import (see NameNormaliser)
+    @JsonProperty
+    public String normalisedName;
+
+    // The distinct words of the normalised name
+    @JsonProperty
+    public List<String> nameTokens;
+
+    // The Double Metaphone keys of the words of the name (see PersonKeys)
+    @JsonProperty
+    public List<String> phoneticKeys;
+
     // The date of birth (if known and available)
     @JsonProperty
     public Date dateOfBirth;
 
+    // The date of birth as days since 1 January 1970, set on import (see PersonKeys)
+    @JsonProperty
+    public Integer dateOfBirthDay;
+
     // The company number (if known and applicable)
     @JsonProperty
     public String companyNumber;
 
+    // The company number as we match on it, set on import (see CompanyNumberNormaliser)
+    @JsonProperty
+    public String canonicalCompanyNumber;
+
     // The system the record is recorded in
     @JsonProperty
     public String systemFlag;
@@ -34,4 +55,12 @@ public class Entity {
     // The incident number or reference
     @JsonProperty
     public String incidentNumber;
+
+    // Hash of the row's natural key, set on import so an incremental import can find it (see EntityRowHash)
+    @JsonProperty
+    public String rowKey;
+
+    // Hash of every field of the row, so an incremental import can tell if it has changed
+    @JsonProperty
+    public String rowHash;
 }
@@ -1,9 +1,11 @@
 package uk.gov.ea.wastecarrier.services.core;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.mongojack.Id;
 import org.mongojack.ObjectId;
 import org.hibernate.validator.constraints.NotEmpty;
@@ -676,6 +678,37 @@ public class Registration
         this.addresses = addresses;
     }
 
+    /**
+     * The search keys are always derived from the current company name, last name and addresses, and are never
+     * read back in. Because they're generated whenever the registration is serialised, every write to the database
+     * keeps them up to date without the callers needing to do anything.
+     *
+     * They only exist for the searches, so the mappers behind the API leave them out (see `withoutSearchKeys()`).
+     *
+     * @return the normalised search keys, or null if there is nothing to key on
+     */
+    @JsonProperty(value = SearchKeys.FIELD, access = JsonProperty.Access.READ_ONLY)
+    @JsonInclude(Include.NON_NULL)
+    public SearchKeys getSearchKeys() {
+        return SearchKeys.of(this);
+    }
+
+    /**
+     * Stops the mapper writing the search keys. MongoJack uses its own mapper, so they are still stored.
+     *
+     * @param mapper a mapper used to write API responses
+     * @return the same mapper
+     */
+    public static ObjectMapper withoutSearchKeys(ObjectMapper mapper) {
+        return mapper.addMixIn(Registration.class, SearchKeysIgnored.class);
+    }
+
+    private abstract static class SearchKeysIgnored {
+
+        @JsonIgnore
+        public abstract SearchKeys getSearchKeys();
+    }
+
     /**
      * Locate the first address of the specified type.
      * @param addressType The type of address to return.
@@ -0,0 +1,134 @@
+package uk.gov.ea.wastecarrier.services.core;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Date;
+
+/**
+ * A cut down view of a registration containing just the details shown in the back office search results list.
+ *
+ * It's built from a registration read using the `summary` search projection, so only the fields that projection
+ * includes are populated on the registration in the first place.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RegistrationSummary {
+
+    @JsonProperty
+    private String id;
+
+    @JsonProperty
+    private String regIdentifier;
+
+    @JsonProperty
+    private Registration.RegistrationTier tier;
+
+    @JsonProperty
+    private String businessType;
+
+    @JsonProperty
+    private String companyName;
+
+    @JsonProperty
+    private String firstName;
+
+    @JsonProperty
+    private String lastName;
+
+    @JsonProperty
+    private MetaData.RegistrationStatus status;
+
+    @JsonProperty
+    private Date dateRegistered;
+
+    @JsonProperty("expires_on")
+    private Date expiresOn;
+
+    @JsonProperty
+    private String postcode;
+
+    public RegistrationSummary() {
+    }
+
+    public static RegistrationSummary from(Registration registration) {
+
+        RegistrationSummary summary = new RegistrationSummary();
+
+        summary.id = registration.getId();
+        summary.regIdentifier = registration.getRegIdentifier();
+        summary.tier = registration.getTier();
+        summary.businessType = registration.getBusinessType();
+        summary.companyName = registration.getCompanyName();
+        summary.firstName = registration.getFirstName();
+        summary.lastName = registration.getLastName();
+        summary.expiresOn = registration.getExpires_on();
+
+        MetaData metaData = registration.getMetaData();
+        if (metaData != null) {
+            summary.status = metaData.getStatus();
+            summary.dateRegistered = metaData.getDateRegistered();
+        }
+
+        summary.postcode = registeredPostcode(registration);
+
+        return summary;
+    }
+
+    /**
+     * The registered address postcode, falling back to the first address we have if none is marked as registered.
+     */
+    private static String registeredPostcode(Registration registration) {
+
+        if (registration.getAddresses() == null || registration.getAddresses().isEmpty()) return null;
+
+        for (Address address : registration.getAddresses()) {
+            if (address.getAddressType() == Address.addressType.REGISTERED) return address.getPostcode();
+        }
+
+        return registration.getAddresses().get(0).getPostcode();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRegIdentifier() {
+        return regIdentifier;
+    }
+
+    public Registration.RegistrationTier getTier() {
+        return tier;
+    }
+
+    public String getBusinessType() {
+        return businessType;
+    }
+
+    public String getCompanyName() {
+        return companyName;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public MetaData.RegistrationStatus getStatus() {
+        return status;
+    }
+
+    public Date getDateRegistered() {
+        return dateRegistered;
+    }
+
+    public Date getExpiresOn() {
+        return expiresOn;
+    }
+
+    public String getPostcode() {
+        return postcode;
+    }
+}
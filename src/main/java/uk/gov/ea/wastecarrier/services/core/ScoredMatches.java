@@ -0,0 +1,61 @@
+package uk.gov.ea.wastecarrier.services.core;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The entities a fuzzy match found, best first. Each has a score from 0 to 1 for how closely it matched, and only
+ * those scoring at least the threshold are included.
+ */
+public class ScoredMatches {
+
+    @JsonProperty
+    public double threshold;
+
+    @JsonProperty("searched_at")
+    public Date searchedAt = new Date();
+
+    @JsonProperty
+    public List<Match> matches = new ArrayList<>();
+
+    public ScoredMatches() {
+    }
+
+    public ScoredMatches(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public static class Match {
+
+        @JsonProperty("matched_name")
+        public String matchedName;
+
+        @JsonProperty("matching_system")
+        public String matchingSystem;
+
+        @JsonProperty("reference")
+        public String reference;
+
+        @JsonProperty
+        public double score;
+
+        // Only set when matching a person with a date of birth, and the entity has one too
+        @JsonProperty("date_of_birth_match")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Boolean dateOfBirthMatch;
+
+        public Match() {
+        }
+
+        public Match(Entity entity, double score) {
+            this.matchedName = entity.name;
+            this.matchingSystem = entity.systemFlag;
+            this.reference = entity.incidentNumber;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package uk.gov.ea.wastecarrier.services.core;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Normalised copies of the registration fields the back office searches against. They are stored alongside the
+ * registration under `searchKeys` so that a search can use an anchored, case sensitive regex (or a plain equality
+ * match) against an ascending index, rather than an unanchored case insensitive regex that has to scan every
+ * document.
+ *
+ * Names are lower cased, have punctuation removed and runs of whitespace collapsed to a single space. So
+ * "Waste Carriers (Westonsmith) Ltd." is stored as "waste carriers westonsmith ltd". Postcodes are lower cased with
+ * all whitespace removed, so "BS1 5AH" becomes "bs15ah".
+ *
+ * Search input must be put through the same normalisation before being compared.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SearchKeys {
+
+    public static final String FIELD = "searchKeys";
+    public static final String COMPANY_NAME = FIELD + ".companyName";
+    public static final String LAST_NAME = FIELD + ".lastName";
+    public static final String POSTCODE_COMPACT = FIELD + ".postcodeCompact";
+
+    private static final Pattern PUNCTUATION = Pattern.compile("[^\\p{L}\\p{N}\\s]");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    @JsonProperty
+    private String companyName;
+
+    @JsonProperty
+    private String lastName;
+
+    @JsonProperty
+    private List<String> postcodeCompact;
+
+    public SearchKeys() {
+    }
+
+    /**
+     * @return the search keys for a registration, or null if it has none of the fields we key on
+     */
+    public static SearchKeys of(Registration registration) {
+
+        SearchKeys keys = new SearchKeys();
+        keys.companyName = normaliseName(registration.getCompanyName());
+        keys.lastName = normaliseName(registration.getLastName());
+
+        if (registration.getAddresses() != null) {
+            List<String> postcodes = new ArrayList<>();
+            for (Address address : registration.getAddresses()) {
+                if (address == null) continue;
+                String postcode = compactPostcode(address.getPostcode());
+                if (postcode != null && !postcodes.contains(postcode)) postcodes.add(postcode);
+            }
+            if (!postcodes.isEmpty()) keys.postcodeCompact = postcodes;
+        }
+
+        if (keys.companyName == null && keys.lastName == null && keys.postcodeCompact == null) return null;
+
+        return keys;
+    }
+
+    /**
+     * @return the normalised form of a name, or null if there is nothing left once normalised
+     */
+    public static String normaliseName(String name) {
+
+        if (name == null) return null;
+
+        String normalised = PUNCTUATION.matcher(name.toLowerCase(Locale.ENGLISH)).replaceAll("");
+        normalised = WHITESPACE.matcher(normalised).replaceAll(" ").trim();
+
+        return normalised.isEmpty() ? null : normalised;
+    }
+
+    /**
+     * @return the compacted form of a postcode, or null if there is nothing left once compacted
+     */
+    public static String compactPostcode(String postcode) {
+
+        String normalised = normaliseName(postcode);
+
+        return normalised == null ? null : normalised.replace(" ", "");
+    }
+
+    public String getCompanyName() {
+        return companyName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public List<String> getPostcodeCompact() {
+        return postcodeCompact;
+    }
+}
@@ -1,24 +1,55 @@
 package uk.gov.ea.wastecarrier.services.dao;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 
+import org.bson.types.ObjectId;
 import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response.Status;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 import java.util.logging.Logger;
 
 import uk.gov.ea.wastecarrier.services.DatabaseConfiguration;
 import uk.gov.ea.wastecarrier.services.core.Entity;
 import uk.gov.ea.wastecarrier.services.helper.DatabaseHelper;
+import uk.gov.ea.wastecarrier.services.match.NameNormaliser;
 
 public class EntityDao implements ICanGetCollection<Entity> {
 
     public static final String COLLECTION_NAME = "entities";
 
+    // Where `recreate()` loads the new entities before they replace the current ones. Each run has its own
+    // collection, named with this and an ObjectId, so two running at once don't load into or drop each other's
+    public static final String STAGING_COLLECTION_PREFIX = "entities_staging_";
+
+    // A staging collection older than this was left by a run that didn't finish, and can be dropped
+    private static final long ABANDONED_STAGING_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    // How many entities `recreate()` inserts at a time
+    public static final int INSERT_BATCH_SIZE = 1000;
+
+    // Holds a single document recording the current generation of the entities (see `generation()`)
+    public static final String GENERATION_COLLECTION_NAME = "entities_generation";
+
+    private static final String GENERATION_ID = COLLECTION_NAME;
+
     private static Logger log = Logger.getLogger(EntityDao.class.getName());
     private DatabaseHelper databaseHelper;
 
@@ -39,7 +70,8 @@ public class EntityDao implements ICanGetCollection<Entity> {
         JacksonDBCollection<Entity, String> collection = getCollection();
 
         // Insert entity information into database
-        WriteResult<Entity, String> result = collection.insert(entity);
+        WriteResult<Entity, String> result = collection.insert(prepare(entity));
+        nextGeneration();
 
         // Get unique ID out of response, and find updated record
         String id = result.getSavedId();
@@ -48,6 +80,10 @@ public class EntityDao implements ICanGetCollection<Entity> {
     }
 
     public JacksonDBCollection<Entity, String> getCollection() {
+        return getCollection(COLLECTION_NAME);
+    }
+
+    private JacksonDBCollection<Entity, String> getCollection(String name) {
 
         DB db = this.databaseHelper.getConnection();
 
@@ -57,16 +93,269 @@ public class EntityDao implements ICanGetCollection<Entity> {
         }
 
         return JacksonDBCollection.wrap(
-                db.getCollection(COLLECTION_NAME), Entity.class, String.class);
+                db.getCollection(name), Entity.class, String.class);
     }
 
     public void recreate(List<Entity> entities) {
-        this.getCollection().drop();
+        recreate(entities.iterator(), INSERT_BATCH_SIZE, inserted -> { });
+    }
+
+    /**
+     * Replaces the entities with those given. They're inserted in unordered bulk batches as they're read from the
+     * iterator, so only one batch is ever held in memory however many there are.
+     *
+     * The new entities are loaded into a staging collection and indexed there, and only once we've checked they're
+     * all there is it renamed over the current collection. Until then matches carry on against the current entities,
+     * and if the load fails they're left as they were.
+     *
+     * @param batchSize how many entities to insert at a time
+     * @param afterBatch told the number of entities inserted so far after each batch
+     * @return the number of entities inserted
+     * @throws IllegalStateException if there were no entities, or the staging collection doesn't hold every one we
+     * read
+     */
+    public long recreate(Iterator<Entity> entities, int batchSize, LongConsumer afterBatch) {
+
+        dropAbandonedStaging();
+
+        JacksonDBCollection<Entity, String> staging = getCollection(STAGING_COLLECTION_PREFIX + new ObjectId());
+        DBCollection dbStaging = staging.getDbCollection();
+
+        try {
+            long read = load(staging, entities, batchSize, afterBatch);
+
+            // Checked against what we read rather than what the driver says it inserted, so a batch that was only
+            // partly written can't go unnoticed
+            long staged = dbStaging.count();
+            if (read == 0 || staged != read) {
+                throw new IllegalStateException(String.format(
+                        "Read %d entities but staged %d, so the current entities have been kept",
+                        read,
+                        staged
+                ));
+            }
+
+            // Building the indexes once the data is in is quicker than maintaining them during the insert, and
+            // means they're ready the moment the collection is swapped in
+            IndexCatalogue.apply(dbStaging, IndexCatalogue.ENTITIES);
+
+            dbStaging.rename(COLLECTION_NAME, true);
+            nextGeneration();
+
+            return read;
+        } catch (RuntimeException e) {
+            dbStaging.drop();
+            throw e;
+        }
+    }
+
+    // Staging collections from runs that didn't finish, and didn't get to drop their own. Those from runs that may
+    // still be going are left alone
+    private void dropAbandonedStaging() {
+
+        DB db = getCollection().getDbCollection().getDB();
+        long cutoff = System.currentTimeMillis() - ABANDONED_STAGING_MILLIS;
+
+        for (String name : db.getCollectionNames()) {
+            if (!name.startsWith(STAGING_COLLECTION_PREFIX)) continue;
+
+            String id = name.substring(STAGING_COLLECTION_PREFIX.length());
+            if (ObjectId.isValid(id) && new ObjectId(id).getDate().getTime() < cutoff) {
+                log.info("Dropping abandoned staging collection " + name);
+                db.getCollection(name).drop();
+            }
+        }
+    }
+
+    /**
+     * Brings the entities up to date with those given, writing only the rows that have changed. Each row is matched
+     * to the entity we have with the same natural key (see `EntityRowHash`): rows we don't have are inserted, those
+     * whose fields differ are replaced, and entities whose row has gone are deleted. The changes are made in one
+     * unordered bulk write, so the time it takes and the index updates it causes depend on how much has changed
+     * rather than how many entities there are.
+     *
+     * Entities imported before we kept row hashes have no key to match on, so are replaced by their rows the first
+     * time round. A row repeated in the list is only kept once.
+     *
+     * @return what changed
+     * @throws IllegalStateException if there were no entities, in which case the current ones are kept
+     */
+    public Changes update(Iterator<Entity> entities) {
 
         JacksonDBCollection<Entity, String> collection = getCollection();
+        DBCollection dbCollection = collection.getDbCollection();
 
-        // Insert entity information into database
-        WriteResult<Entity, String> result = collection.insert(entities);
+        Changes changes = new Changes();
+
+        // Just the keys and hashes of what we have now, by key. Anything without a key, or with one we've already
+        // seen, can't be matched to a row so is deleted
+        Map<String, DBObject> current = new HashMap<>();
+        List<Object> unmatched = new ArrayList<>();
+        BasicDBObject fields = new BasicDBObject("rowKey", 1).append("rowHash", 1);
+        try (DBCursor cursor = dbCollection.find(new BasicDBObject(), fields)) {
+            for (DBObject row : cursor) {
+                Object key = row.get("rowKey");
+                if (!(key instanceof String) || current.putIfAbsent((String) key, row) != null) {
+                    unmatched.add(row.get("_id"));
+                }
+            }
+        }
+
+        BulkWriteOperation bulk = dbCollection.initializeUnorderedBulkOperation();
+        Set<String> seen = new HashSet<>();
+
+        while (entities.hasNext()) {
+            Entity entity = prepare(entities.next());
+
+            if (!seen.add(entity.rowKey)) {
+                changes.duplicates++;
+                continue;
+            }
+
+            DBObject existing = current.remove(entity.rowKey);
+            if (existing == null) {
+                bulk.insert(collection.convertToDbObject(entity));
+                changes.inserted++;
+            } else if (!entity.rowHash.equals(existing.get("rowHash"))) {
+                entity.id = existing.get("_id").toString();
+                bulk.find(new BasicDBObject("_id", existing.get("_id")))
+                        .replaceOne(collection.convertToDbObject(entity));
+                changes.updated++;
+            } else {
+                changes.unchanged++;
+            }
+        }
+
+        if (seen.isEmpty()) {
+            throw new IllegalStateException("There were no entities to update from, so the current ones are kept");
+        }
+
+        for (DBObject gone : current.values()) unmatched.add(gone.get("_id"));
+        for (Object id : unmatched) bulk.find(new BasicDBObject("_id", id)).removeOne();
+        changes.deleted = unmatched.size();
+
+        // An unordered bulk write that fails part way still makes the rest of its writes, so the entities may have
+        // changed even if it throws
+        if (changes.changed() > 0) {
+            try {
+                bulk.execute();
+            } finally {
+                nextGeneration();
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Every write to the entities through this DAO starts a new generation of them. Each instance of the service
+     * compares the current generation with the one it loaded its match index from, so it can tell when they've been
+     * changed, including through another instance.
+     *
+     * @return the current generation, or null if the entities haven't been written since we started recording it
+     */
+    public String generation() {
+
+        DBObject marker = generations().findOne(new BasicDBObject("_id", GENERATION_ID));
+
+        return marker == null ? null : (String) marker.get("generation");
+    }
+
+    private void nextGeneration() {
+
+        String generation = new ObjectId().toHexString();
+
+        generations().update(
+                new BasicDBObject("_id", GENERATION_ID),
+                new BasicDBObject("_id", GENERATION_ID).append("generation", generation).append("updatedAt", new Date()),
+                true,
+                false
+        );
+        log.info("Entities are now at generation " + generation);
+    }
+
+    private DBCollection generations() {
+        return getCollection(GENERATION_COLLECTION_NAME).getDbCollection();
+    }
+
+    /**
+     * What an incremental update changed.
+     */
+    public static class Changes {
+
+        public long inserted;
+        public long updated;
+        public long deleted;
+        public long unchanged;
+        public long duplicates;
+
+        public long changed() {
+            return this.inserted + this.updated + this.deleted;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Inserted %d entities, updated %d, deleted %d and left %d unchanged. Skipped %d repeated rows",
+                    this.inserted,
+                    this.updated,
+                    this.deleted,
+                    this.unchanged,
+                    this.duplicates
+            );
+        }
+    }
+
+    // Whether they were read from the CSV or posted as JSON, every entity gets the fields we match on and the row
+    // hashes an incremental update compares
+    private static Entity prepare(Entity entity) {
+        return EntityRowHash.apply(NameNormaliser.apply(entity));
+    }
+
+    /**
+     * @return the number of entities read, all of which have been sent to be inserted
+     */
+    private long load(
+            JacksonDBCollection<Entity, String> collection,
+            Iterator<Entity> entities,
+            int batchSize,
+            LongConsumer afterBatch
+    ) {
+
+        DBCollection dbCollection = collection.getDbCollection();
+
+        long read = 0;
+        BulkWriteOperation bulk = dbCollection.initializeUnorderedBulkOperation();
+        int pending = 0;
+
+        while (entities.hasNext()) {
+            bulk.insert(collection.convertToDbObject(prepare(entities.next())));
+            read++;
+
+            if (++pending == batchSize) {
+                bulk.execute();
+                afterBatch.accept(read);
+
+                bulk = dbCollection.initializeUnorderedBulkOperation();
+                pending = 0;
+            }
+        }
+
+        if (pending > 0) {
+            bulk.execute();
+            afterBatch.accept(read);
+        }
+
+        return read;
+    }
+
+    /**
+     * Ensure the indexes declared in `IndexCatalogue.ENTITIES` have been defined.
+     *
+     * @return the indexes built, and any drift between those declared and those found
+     */
+    public IndexCatalogue.Report ensureIndexes() {
+        return IndexCatalogue.apply(this.databaseHelper.getCollection(COLLECTION_NAME), IndexCatalogue.ENTITIES);
     }
 
     private Entity find(JacksonDBCollection<Entity, String> collection, String id) {
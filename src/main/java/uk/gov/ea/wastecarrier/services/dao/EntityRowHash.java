@@ -0,0 +1,74 @@
+package uk.gov.ea.wastecarrier.services.dao;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.match.NameNormaliser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Hashes of an entity's row in the conviction list, which an incremental import uses to tell what has changed since
+ * the last one (see `EntityDao.update()`).
+ *
+ * The key identifies the row by its natural key: the name, date of birth, company number and incident number. The
+ * hash covers every field we import, so where two rows share a key but not a hash the row has been updated. It also
+ * covers the version of the fields we work out from them (see `NameNormaliser.DERIVATION_VERSION`), so when the way
+ * we work them out changes, every row is rewritten with the new ones.
+ */
+public final class EntityRowHash {
+
+    private EntityRowHash() {
+    }
+
+    public static String key(Entity entity) {
+        return hasher()
+                .putString(field(entity.name), StandardCharsets.UTF_8).putChar('\0')
+                .putLong(date(entity.dateOfBirth))
+                .putString(field(entity.companyNumber), StandardCharsets.UTF_8).putChar('\0')
+                .putString(field(entity.incidentNumber), StandardCharsets.UTF_8)
+                .hash()
+                .toString();
+    }
+
+    public static String hash(Entity entity) {
+        return hash(entity, NameNormaliser.DERIVATION_VERSION);
+    }
+
+    /**
+     * @param derivationVersion the version of the fields worked out from the row
+     */
+    public static String hash(Entity entity, int derivationVersion) {
+        return hasher()
+                .putString(key(entity), StandardCharsets.UTF_8).putChar('\0')
+                .putString(field(entity.systemFlag), StandardCharsets.UTF_8).putChar('\0')
+                .putInt(derivationVersion)
+                .hash()
+                .toString();
+    }
+
+    /**
+     * Sets the entity's `rowKey` and `rowHash`.
+     */
+    public static Entity apply(Entity entity) {
+
+        entity.rowKey = key(entity);
+        entity.rowHash = hash(entity);
+
+        return entity;
+    }
+
+    private static Hasher hasher() {
+        return Hashing.murmur3_128().newHasher();
+    }
+
+    private static String field(String value) {
+        return value == null ? "" : value.trim();
+    }
+
+    // Long.MIN_VALUE can't be a real date of birth, so stands in for none
+    private static long date(Date date) {
+        return date == null ? Long.MIN_VALUE : date.getTime();
+    }
+}
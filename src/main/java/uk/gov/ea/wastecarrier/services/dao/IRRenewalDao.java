@@ -1,11 +1,18 @@
 package uk.gov.ea.wastecarrier.services.dao;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.LongConsumer;
 import java.util.logging.Logger;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response.Status;
 
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 
 import org.mongojack.DBQuery;
 import org.mongojack.JacksonDBCollection;
@@ -288,6 +295,84 @@ public class IRRenewalDao
         }
     }
 
+    /**
+     * Inserts IR data in unordered bulk batches, as it's read from the iterator. The types of IR data can be mixed;
+     * the collection is wrapped once for each type rather than for each row. Only one batch is held in memory at a
+     * time.
+     *
+     * @param irData the IR data to insert
+     * @param batchSize how many to insert at a time
+     * @param afterBatch told the number inserted so far after each batch
+     * @return the number inserted
+     */
+    public long insertIRData(Iterator<? extends IRData> irData, int batchSize, LongConsumer afterBatch)
+    {
+        DB db = databaseHelper.getConnection();
+        if (db == null)
+        {
+            log.severe("Could not establish database connection to MongoDB! Check the database is running");
+            throw new WebApplicationException(Status.SERVICE_UNAVAILABLE);
+        }
+
+        DBCollection dbCollection = db.getCollection(IRData.COLLECTION_NAME);
+        Map<Class<?>, JacksonDBCollection<?, String>> renewalData = new HashMap<>();
+
+        long inserted = 0;
+        BulkWriteOperation bulk = dbCollection.initializeUnorderedBulkOperation();
+        int pending = 0;
+
+        while (irData.hasNext())
+        {
+            bulk.insert(toDbObject(renewalData, dbCollection, irData.next()));
+
+            if (++pending == batchSize)
+            {
+                inserted += bulk.execute().getInsertedCount();
+                afterBatch.accept(inserted);
+
+                bulk = dbCollection.initializeUnorderedBulkOperation();
+                pending = 0;
+            }
+        }
+
+        if (pending > 0)
+        {
+            inserted += bulk.execute().getInsertedCount();
+            afterBatch.accept(inserted);
+        }
+
+        return inserted;
+    }
+
+    /**
+     * Maps the IR data with a collection wrapped for its type, so the fields particular to that type are stored.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends IRData> DBObject toDbObject(
+            Map<Class<?>, JacksonDBCollection<?, String>> renewalData,
+            DBCollection dbCollection,
+            T irData
+    )
+    {
+        JacksonDBCollection<T, String> typed = (JacksonDBCollection<T, String>) renewalData.computeIfAbsent(
+                irData.getClass(),
+                type -> JacksonDBCollection.wrap(dbCollection, type, String.class)
+        );
+
+        return typed.convertToDbObject(irData);
+    }
+
+    /**
+     * Ensure the indexes declared in `IndexCatalogue.IR_RENEWALS` have been defined. Dropping the IR data drops
+     * these as well, so this needs calling again once it has been repopulated.
+     *
+     * @return the indexes built, and any drift between those declared and those found
+     */
+    public IndexCatalogue.Report ensureIndexes()
+    {
+        return IndexCatalogue.apply(databaseHelper.getCollection(IRData.COLLECTION_NAME), IndexCatalogue.IR_RENEWALS);
+    }
+
     public void dropIRData()
     {
         log.fine("Dropping ir data from database");
@@ -0,0 +1,363 @@
+package uk.gov.ea.wastecarrier.services.dao;
+
+import com.google.common.collect.ImmutableMap;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoCommandException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+import uk.gov.ea.wastecarrier.services.core.SearchKeys;
+
+/**
+ * Every index the service relies on, declared in one place and grouped by collection.
+ *
+ * Each entry exists because a search, lookup or match queries on that shape. When adding a new query add its index
+ * here rather than creating it by hand, so that `EnsureDatabaseIndexesTask` can build it in each environment and
+ * tell us when what is in the database no longer matches what we expect.
+ *
+ * Applying the catalogue is safe to repeat. Indexes that already exist are left alone, missing ones are built in the
+ * background, and anything that differs is reported rather than dropped. Fixing drift means deciding which side is
+ * wrong, and dropping an index on a live collection is not something a startup task should do on its own.
+ */
+public final class IndexCatalogue {
+
+    private static Logger log = Logger.getLogger(IndexCatalogue.class.getName());
+
+    // MongoDB's own index on _id, which is never declared
+    private static final String ID_INDEX = "_id_";
+
+    private static final String TEXT_INDEX_NAME = "registrations_text";
+
+    // Fields covered by the registrations text index, and how much a match on each counts towards the score
+    private static final Map<String, Integer> TEXT_SEARCH_WEIGHTS = ImmutableMap.<String, Integer>builder()
+            .put("regIdentifier", 10)
+            .put("company_no", 10)
+            .put("companyName", 5)
+            .put("firstName", 1)
+            .put("lastName", 3)
+            .put("addresses.postcode", 3)
+            .build();
+
+    public static final List<Index> REGISTRATIONS = Collections.unmodifiableList(Arrays.asList(
+            // Prevents duplicate inserts. Sparse as older registrations were saved without one
+            Index.on("uuid").unique().sparse(),
+
+            // Direct lookups
+            Index.on("regIdentifier", "_id"),
+            Index.on("accountEmail"),
+            Index.on("originalRegistrationNumber"),
+
+            // Keyset paging for the within and report searches. See `PageToken`
+            Index.on("companyName", "_id"),
+            Index.on("lastName", "_id"),
+            Index.on("metaData.dateRegistered", "_id"),
+            Index.on(SearchKeys.COMPANY_NAME, "_id"),
+            Index.on(SearchKeys.LAST_NAME, "_id"),
+            Index.on(SearchKeys.POSTCODE_COMPACT),
+
+            // Registrations report. Equality fields first and the date range last, so the scan stays within the
+            // selected statuses and tiers rather than walking every registration in the date range
+            Index.on("metaData.status", "tier", "metaData.dateRegistered"),
+
+            // Most report runs are for active registrations only. Expired and revoked registrations make up a
+            // growing share of the collection, so keep them out of this one. A partial filter can only use
+            // equality here (not $nin), hence ACTIVE rather than "not EXPIRED or REVOKED"
+            Index.on("tier", "metaData.dateRegistered")
+                    .named("registrations_active_tier_dateRegistered")
+                    .partial(new BasicDBObject("metaData.status", "ACTIVE")),
+
+            // Payments and copy cards reports
+            Index.on("financeDetails.payments.dateReceived"),
+            Index.on("financeDetails.orders.dateCreated"),
+            Index.on("financeDetails.orders.dateLastUpdated"),
+
+            // Ranked text search. A collection can only have one text index so it covers every field we search
+            Index.text(TEXT_INDEX_NAME, TEXT_SEARCH_WEIGHTS)
+    ));
+
+    public static final List<Index> USERS = Collections.unmodifiableList(Collections.singletonList(
+            Index.on("email")
+    ));
+
+    public static final List<Index> ENTITIES = Collections.unmodifiableList(Arrays.asList(
+            Index.on("companyNumber"),
+            // Company numbers as keyed in differently. Sorted by number so the lowest is always the one found
+            Index.on("canonicalCompanyNumber", "companyNumber"),
+            // Person matches, first on the day of birth and name then on the name alone
+            Index.on("dateOfBirthDay", "phoneticKeys"),
+            Index.on("phoneticKeys"),
+            Index.on("normalisedName"),
+            Index.on("nameTokens")
+    ));
+
+    public static final List<Index> IR_RENEWALS = Collections.unmodifiableList(Collections.singletonList(
+            Index.on("referenceNumber")
+    ));
+
+    private IndexCatalogue() {
+    }
+
+    /**
+     * Builds any of the declared indexes missing from the collection, and reports where the indexes on the
+     * collection differ from those declared.
+     *
+     * @param collection the collection to index
+     * @param declared the indexes it should have
+     * @return what was built, and any drift found
+     */
+    public static Report apply(DBCollection collection, List<Index> declared) {
+
+        Report report = new Report(collection.getName());
+
+        Map<String, DBObject> actual = new LinkedHashMap<>();
+        for (DBObject info : collection.getIndexInfo()) actual.put((String) info.get("name"), info);
+        actual.remove(ID_INDEX);
+
+        for (Index index : declared) {
+            DBObject existing = actual.remove(index.getName());
+
+            if (existing == null) {
+                String sameKeys = findByKeys(actual, index);
+                if (sameKeys != null) {
+                    actual.remove(sameKeys);
+                    report.drift(index.getName() + " exists under the name " + sameKeys);
+                    continue;
+                }
+                create(collection, index, report);
+            } else if (!index.matches(existing)) {
+                report.drift(index.getName() + " differs. Declared " + index.describe() + " but found " + existing);
+            }
+        }
+
+        for (String undeclared : actual.keySet()) report.drift(undeclared + " is not in the catalogue");
+
+        return report;
+    }
+
+    private static void create(DBCollection collection, Index index, Report report) {
+
+        try {
+            collection.createIndex(index.getKeys(), index.getOptions());
+            report.created(index.getName());
+        } catch (MongoCommandException e) {
+            // Most likely an index with the same keys but different options, which only an explicit drop can fix
+            log.warning("Could not create index " + index.getName() + " on " + collection.getName() + ": "
+                    + e.getErrorMessage());
+            report.drift(index.getName() + " could not be created: " + e.getErrorMessage());
+        }
+    }
+
+    private static String findByKeys(Map<String, DBObject> actual, Index index) {
+
+        for (Map.Entry<String, DBObject> entry : actual.entrySet()) {
+            if (index.keysMatch(entry.getValue())) return entry.getKey();
+        }
+
+        return null;
+    }
+
+    /**
+     * A single index declaration. Unless given a name it gets the one MongoDB would generate, so indexes built
+     * before the catalogue existed are recognised as the same index.
+     */
+    public static final class Index {
+
+        private final BasicDBObject keys;
+        private final Map<String, Integer> weights;
+        private String name;
+        private boolean unique;
+        private boolean sparse;
+        private DBObject partialFilter;
+
+        private Index(BasicDBObject keys, String name, Map<String, Integer> weights) {
+            this.keys = keys;
+            this.name = name;
+            this.weights = weights;
+        }
+
+        /**
+         * @param fields the fields to index, in order, all ascending
+         */
+        public static Index on(String... fields) {
+
+            BasicDBObject keys = new BasicDBObject();
+            StringBuilder name = new StringBuilder();
+            for (String field : fields) {
+                keys.append(field, 1);
+                if (name.length() > 0) name.append('_');
+                name.append(field).append("_1");
+            }
+
+            return new Index(keys, name.toString(), null);
+        }
+
+        /**
+         * A text index over the given fields. The language is set to none as we index names and identifiers, so
+         * we don't want words stemmed or common words dropped.
+         */
+        public static Index text(String name, Map<String, Integer> weights) {
+
+            BasicDBObject keys = new BasicDBObject();
+            for (String field : weights.keySet()) keys.append(field, "text");
+
+            return new Index(keys, name, weights);
+        }
+
+        public Index named(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Index unique() {
+            this.unique = true;
+            return this;
+        }
+
+        public Index sparse() {
+            this.sparse = true;
+            return this;
+        }
+
+        public Index partial(DBObject filter) {
+            this.partialFilter = filter;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public DBObject getKeys() {
+            return keys;
+        }
+
+        /**
+         * Always built in the background, so applying the catalogue never blocks the collection.
+         */
+        public DBObject getOptions() {
+
+            BasicDBObject options = new BasicDBObject("name", this.name).append("background", true);
+
+            if (this.unique) options.append("unique", true);
+            if (this.sparse) options.append("sparse", true);
+            if (this.partialFilter != null) options.append("partialFilterExpression", this.partialFilter);
+            if (this.weights != null) {
+                options.append("weights", new BasicDBObject(this.weights)).append("default_language", "none");
+            }
+
+            return options;
+        }
+
+        boolean matches(DBObject existing) {
+
+            return keysMatch(existing)
+                    && this.unique == isTrue(existing.get("unique"))
+                    && this.sparse == isTrue(existing.get("sparse"))
+                    && Objects.equals(this.partialFilter, existing.get("partialFilterExpression"));
+        }
+
+        /**
+         * Text indexes are stored with internal keys rather than the fields they cover, so those are compared on
+         * their weights instead.
+         */
+        boolean keysMatch(DBObject existing) {
+
+            if (this.weights != null) {
+                DBObject actualWeights = (DBObject) existing.get("weights");
+                return actualWeights != null && sameNumbers(new BasicDBObject(this.weights), actualWeights, false);
+            }
+
+            DBObject actualKeys = (DBObject) existing.get("key");
+            return actualKeys != null && sameNumbers(this.keys, actualKeys, true);
+        }
+
+        String describe() {
+            return getKeys() + " " + getOptions();
+        }
+
+        // Numbers come back from the server as doubles or ints depending on how the index was created
+        private static boolean sameNumbers(DBObject expected, DBObject actual, boolean ordered) {
+
+            List<String> expectedFields = new ArrayList<>(expected.keySet());
+            List<String> actualFields = new ArrayList<>(actual.keySet());
+            boolean sameFields = ordered
+                    ? expectedFields.equals(actualFields)
+                    : new HashSet<>(expectedFields).equals(new HashSet<>(actualFields));
+            if (!sameFields) return false;
+
+            for (String field : expectedFields) {
+                Object expectedValue = expected.get(field);
+                Object actualValue = actual.get(field);
+                if (expectedValue instanceof Number && actualValue instanceof Number) {
+                    if (((Number) expectedValue).intValue() != ((Number) actualValue).intValue()) return false;
+                } else if (!Objects.equals(expectedValue, actualValue)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static boolean isTrue(Object value) {
+            return Boolean.TRUE.equals(value) || (value instanceof Number && ((Number) value).intValue() != 0);
+        }
+    }
+
+    /**
+     * The outcome of applying the catalogue to a collection.
+     */
+    public static final class Report {
+
+        private final String collection;
+        private final List<String> created = new ArrayList<>();
+        private final List<String> drift = new ArrayList<>();
+
+        Report(String collection) {
+            this.collection = collection;
+        }
+
+        void created(String index) {
+            this.created.add(index);
+        }
+
+        void drift(String message) {
+            this.drift.add(message);
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public List<String> getCreated() {
+            return created;
+        }
+
+        public List<String> getDrift() {
+            return drift;
+        }
+
+        public boolean hasDrift() {
+            return !drift.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder text = new StringBuilder(collection).append(": ");
+            text.append(created.isEmpty() ? "no indexes created" : "created " + String.join(", ", created));
+            for (String message : drift) text.append(System.lineSeparator()).append("  drift: ").append(message);
+
+            return text.toString();
+        }
+    }
+}
@@ -18,6 +18,7 @@ import uk.gov.ea.wastecarrier.services.core.FinanceDetails;
 import uk.gov.ea.wastecarrier.services.core.Order;
 import uk.gov.ea.wastecarrier.services.core.Registration;
 import uk.gov.ea.wastecarrier.services.helper.DatabaseHelper;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 
 public class OrderDao
 {
@@ -26,15 +27,29 @@ public class OrderDao
     
     /** The database helper. */
     private DatabaseHelper databaseHelper;
+
+    /** Cached reports to invalidate when an order changes, or null. */
+    private ReportCache reportCache;
     
     /**
      * Constructor with arguments
      * @param database the DatabaseConfiguration
      */
     public OrderDao(DatabaseConfiguration database)
+    {
+        this(database, null);
+    }
+
+    /**
+     * Constructor with arguments
+     * @param database the DatabaseConfiguration
+     * @param reportCache the ReportCache, or null
+     */
+    public OrderDao(DatabaseConfiguration database, ReportCache reportCache)
     {
         log.fine("Constructing DAO with databaseHelper.");
         this.databaseHelper = new DatabaseHelper(database);
+        this.reportCache = reportCache;
     }
 
     public Order addOrder(String registrationId, Order order)
@@ -75,6 +90,7 @@ public class OrderDao
             // Find registration after adding order, This updates the balance in the database
             Registration foundReg = registrations.findOneById(registrationId);
             registrations.updateById(registrationId, foundReg);
+            if (reportCache != null) reportCache.invalidate(foundReg);
             return order;
         }
         else
@@ -131,6 +147,7 @@ public class OrderDao
             // Find registration after adding order
             Registration foundReg = registrations.findOneById(registrationId);
             registrations.updateById(registrationId, foundReg);
+            if (reportCache != null) reportCache.invalidate(foundReg);
             return order;
         }
     }
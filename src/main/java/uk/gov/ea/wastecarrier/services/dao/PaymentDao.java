@@ -1,5 +1,6 @@
 package uk.gov.ea.wastecarrier.services.dao;
 
+import java.util.Collections;
 import java.util.logging.Logger;
 
 import javax.ws.rs.WebApplicationException;
@@ -16,6 +17,7 @@ import uk.gov.ea.wastecarrier.services.core.FinanceDetails;
 import uk.gov.ea.wastecarrier.services.core.Payment;
 import uk.gov.ea.wastecarrier.services.core.Registration;
 import uk.gov.ea.wastecarrier.services.helper.DatabaseHelper;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 
 /**
  * Data access operations for registration payments.
@@ -28,15 +30,29 @@ public class PaymentDao
     
     /** The database helper. */
     private DatabaseHelper databaseHelper;
+
+    /** Cached reports to invalidate when a payment is added, or null. */
+    private ReportCache reportCache;
     
     /**
      * Constructor with arguments
      * @param database the DatabaseConfiguration
      */
     public PaymentDao(DatabaseConfiguration database)
+    {
+        this(database, null);
+    }
+
+    /**
+     * Constructor with arguments
+     * @param database the DatabaseConfiguration
+     * @param reportCache the ReportCache, or null
+     */
+    public PaymentDao(DatabaseConfiguration database, ReportCache reportCache)
     {
         log.fine("Constructing DAO with databaseHelper.");
         this.databaseHelper = new DatabaseHelper(database);
+        this.reportCache = reportCache;
     }
     
     /**
@@ -109,6 +125,11 @@ public class PaymentDao
         WriteResult<Registration, String> result = registrations.updateById(registrationId,
                 DBUpdate.push(FinanceDetails.COLLECTION_NAME + "." + Payment.COLLECTION_NAME, payment));
 
+        if (reportCache != null)
+        {
+            reportCache.invalidate(registrationId, Collections.singletonList(payment.getDateReceived()));
+        }
+
         return payment;
     }
 
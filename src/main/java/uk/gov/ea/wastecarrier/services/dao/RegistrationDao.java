@@ -1,9 +1,15 @@
 package uk.gov.ea.wastecarrier.services.dao;
 
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.BasicDBObject;
 
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.DBSort;
 import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
 import org.mongojack.DBQuery;
@@ -15,16 +21,31 @@ import java.util.logging.Logger;
 
 import uk.gov.ea.wastecarrier.services.DatabaseConfiguration;
 import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.core.SearchKeys;
 import uk.gov.ea.wastecarrier.services.helper.DatabaseHelper;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 
 public class RegistrationDao implements ICanGetCollection<Registration> {
     public static final String COLLECTION_NAME = "registrations";
 
+    // Number of updates sent to MongoDB in each bulk write when setting search keys
+    private static final int SEARCH_KEYS_BATCH_SIZE = 500;
+
     private static Logger log = Logger.getLogger(RegistrationDao.class.getName());
     private DatabaseHelper databaseHelper;
+    private ReportCache reportCache;
 
     public RegistrationDao(DatabaseConfiguration database) {
+        this(database, null);
+    }
+
+    /**
+     * @param database the registrations database
+     * @param reportCache cached reports to invalidate when a registration is saved, or null if there are none
+     */
+    public RegistrationDao(DatabaseConfiguration database, ReportCache reportCache) {
         this.databaseHelper = new DatabaseHelper(database);
+        this.reportCache = reportCache;
     }
 
     public boolean checkConnection() {
@@ -68,7 +89,7 @@ public class RegistrationDao implements ICanGetCollection<Registration> {
         // Get unique ID out of response, and find inserted record
         String id = result.getSavedId();
 
-        return find(collection, id);
+        return invalidateReports(find(collection, id));
     }
 
     public Registration update(Registration reg) {
@@ -82,7 +103,14 @@ public class RegistrationDao implements ICanGetCollection<Registration> {
             throw new WebApplicationException(Status.NOT_FOUND);
         }
 
-        return find(collection, reg.getId());
+        return invalidateReports(find(collection, reg.getId()));
+    }
+
+    private Registration invalidateReports(Registration saved) {
+
+        if (this.reportCache != null) this.reportCache.invalidate(saved);
+
+        return saved;
     }
 
     public JacksonDBCollection<Registration, String> getCollection() {
@@ -109,20 +137,80 @@ public class RegistrationDao implements ICanGetCollection<Registration> {
     }
 
     /**
-     * Ensure that the indexes have been defined.
+     * Ensure that the indexes have been defined. What they are and why is recorded in
+     * `IndexCatalogue.REGISTRATIONS`.
      *
-     * To prevent duplicate inserts we use a unique (but sparse) index on the uuid property.
-     * The index is sparse to support pre-existing data whose uuid has not been set upon insert.
-     * <code>
-     *   db.registrations.ensureIndex({uuid:1},{unique:true, sparse:true});
-     * </code>
+     * @return the indexes built, and any drift between those declared and those found
      */
-    public void ensureIndexes() {
+    public IndexCatalogue.Report ensureIndexes() {
         log.info("Ensuring registration indexes...");
-        DBObject keys = new BasicDBObject("uuid", 1);
-        DBObject options = new BasicDBObject("unique", true).append("sparse", true);
+        DBCollection collection = this.databaseHelper.getCollection(Registration.COLLECTION_NAME);
+
+        IndexCatalogue.Report report = IndexCatalogue.apply(collection, IndexCatalogue.REGISTRATIONS);
+        log.info("Ensured registration indexes. " + report);
+
+        return report;
+    }
+
+    /**
+     * Sets the search keys on registrations which were saved before we started storing them. New and updated
+     * registrations get them automatically (see `Registration.getSearchKeys()`).
+     *
+     * Only the fields the keys are derived from are read, and the updates are sent in unordered bulk batches, so this
+     * can be run against the live database.
+     *
+     * @param all if true recalculate the keys for every registration, for example after changing how they are
+     *            normalised. Else only those registrations with no keys are updated
+     * @return the number of registrations updated
+     */
+    public int updateSearchKeys(boolean all) {
+
+        DBCollection collection = this.databaseHelper.getCollection(COLLECTION_NAME);
+
+        DBQuery.Query query = all ? DBQuery.empty() : DBQuery.notExists(SearchKeys.FIELD);
+        DBObject keys = DBProjection.include("companyName", "lastName", "addresses.postcode");
+
+        int updated = 0;
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        int pending = 0;
+
+        try (DBCursor<Registration> cursor = getCollection().find(query, keys).sort(DBSort.asc("_id"))) {
+            for (Registration registration : cursor) {
+                SearchKeys searchKeys = registration.getSearchKeys();
+
+                // With nothing to key on there is nothing to set, though when recalculating we need to remove
+                // any keys left over from before
+                if (searchKeys == null && !all) continue;
+
+                DBObject update = searchKeys == null
+                        ? new BasicDBObject("$unset", new BasicDBObject(SearchKeys.FIELD, ""))
+                        : new BasicDBObject("$set", new BasicDBObject(SearchKeys.FIELD, toDbObject(searchKeys)));
+
+                bulk.find(new BasicDBObject("_id", new ObjectId(registration.getId()))).updateOne(update);
+
+                if (++pending == SEARCH_KEYS_BATCH_SIZE) {
+                    updated += bulk.execute().getMatchedCount();
+                    bulk = collection.initializeUnorderedBulkOperation();
+                    pending = 0;
+                }
+            }
+        }
+
+        if (pending > 0) updated += bulk.execute().getMatchedCount();
+
+        return updated;
+    }
+
+    private DBObject toDbObject(SearchKeys searchKeys) {
+
+        BasicDBObject dbObject = new BasicDBObject();
+
+        if (searchKeys.getCompanyName() != null) dbObject.append("companyName", searchKeys.getCompanyName());
+        if (searchKeys.getLastName() != null) dbObject.append("lastName", searchKeys.getLastName());
+        if (searchKeys.getPostcodeCompact() != null) {
+            dbObject.append("postcodeCompact", searchKeys.getPostcodeCompact());
+        }
 
-        this.databaseHelper.getCollection(Registration.COLLECTION_NAME).createIndex(keys, options);
-        log.info("Ensured registration indexes.");
+        return dbObject;
     }
 }
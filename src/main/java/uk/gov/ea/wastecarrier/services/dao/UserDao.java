@@ -48,6 +48,15 @@ public class UserDao implements ICanGetCollection<User> {
         return foundUser;
     }
 
+    /**
+     * Ensure the indexes declared in `IndexCatalogue.USERS` have been defined.
+     *
+     * @return the indexes built, and any drift between those declared and those found
+     */
+    public IndexCatalogue.Report ensureIndexes() {
+        return IndexCatalogue.apply(this.databaseHelper.getCollection(COLLECTION_NAME), IndexCatalogue.USERS);
+    }
+
     public JacksonDBCollection<User, String> getCollection() {
 
         DB db = this.databaseHelper.getConnection();
@@ -27,11 +27,12 @@ public class DatabaseHelper {
     }
 
     /**
-     * Gets a database connection
+     * Gets a database connection. This is synchronized as a helper can be shared by queries running on different
+     * threads, and we only want the first of them to create the client.
      *
      * @return an Active DB connection object or null if one could not be obtained
      */
-    public DB getConnection() {
+    public synchronized DB getConnection() {
         log.logp(Level.FINE, DatabaseHelper.class.getName(), "getConnection", "Get connection");
         if (db != null) {
             // Use existing connection
@@ -65,7 +66,7 @@ public class DatabaseHelper {
     /**
      * @return the mongoClient, or null if errors occurred
      */
-    public MongoClient getMongoClient() {
+    public synchronized MongoClient getMongoClient() {
 
         if (mongoClient != null) {
             return mongoClient;
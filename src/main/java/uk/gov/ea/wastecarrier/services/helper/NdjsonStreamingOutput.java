@@ -0,0 +1,83 @@
+package uk.gov.ea.wastecarrier.services.helper;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mongodb.MongoException;
+import org.mongojack.DBCursor;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Writes the documents from a mongojack cursor to the response as newline delimited JSON (NDJSON), one document per
+ * line.
+ *
+ * Each document is serialised as soon as it is read from the cursor, so the service never holds more than the
+ * current cursor batch in memory no matter how many documents match. As the content length is not known up front
+ * the response is sent using chunked encoding.
+ *
+ * @param <T> the type of document held in the cursor
+ */
+public class NdjsonStreamingOutput<T> implements StreamingOutput {
+
+    public static final String MEDIA_TYPE = "application/x-ndjson";
+
+    // How many documents we write before flushing what we have to the client
+    private static final int FLUSH_EVERY = 100;
+
+    private static Logger log = Logger.getLogger(NdjsonStreamingOutput.class.getName());
+
+    private final DBCursor<T> cursor;
+    private final ObjectWriter writer;
+    private final Function<T, ?> view;
+
+    public NdjsonStreamingOutput(DBCursor<T> cursor, ObjectMapper mapper) {
+        this(cursor, mapper, Function.identity());
+    }
+
+    /**
+     * @param cursor the documents to write
+     * @param mapper used to serialise each document
+     * @param view converts each document to what is actually written, for example a summary of it
+     */
+    public NdjsonStreamingOutput(DBCursor<T> cursor, ObjectMapper mapper, Function<T, ?> view) {
+        this.cursor = cursor;
+        this.view = view;
+        // By default Jackson will flush after every value, which would mean a
+        // chunk per document. We'd rather control that ourselves.
+        this.writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+
+        int count = 0;
+
+        JsonGenerator generator = this.writer.getFactory().createGenerator(output);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+        try {
+            while (this.cursor.hasNext()) {
+                this.writer.writeValue(generator, this.view.apply(this.cursor.next()));
+                generator.writeRaw('\n');
+
+                if (++count % FLUSH_EVERY == 0) generator.flush();
+            }
+            generator.flush();
+        } catch (MongoException e) {
+            // By this point the status and headers have been sent, so all we
+            // can do is abort the response. Rethrowing means the client sees
+            // a truncated stream rather than one that looks complete.
+            log.severe("Streaming error after " + count + " documents: " + e.getMessage());
+            throw new IOException(e);
+        } finally {
+            this.cursor.close();
+            generator.close();
+        }
+    }
+}
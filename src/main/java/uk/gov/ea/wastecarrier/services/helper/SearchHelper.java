@@ -38,6 +38,44 @@ public class SearchHelper {
         return returnList;
     }
 
+    /**
+     * Has MongoDB stop the query once it has run for longer than the time given, failing it with a
+     * `MongoExecutionTimeoutException`. Cancelling the thread waiting on a query doesn't stop it on the server, so
+     * this is what bounds the work done by a query we've stopped waiting for.
+     *
+     * @param maxTimeMillis the longest the query may run for, or 0 for no limit
+     * @return the same cursor
+     */
+    public static <T> org.mongojack.DBCursor<T> maxTime(org.mongojack.DBCursor<T> cursor, long maxTimeMillis) {
+
+        if (maxTimeMillis > 0) cursor.addSpecial("$maxTimeMS", maxTimeMillis);
+
+        return cursor;
+    }
+
+    /**
+     * Escapes a value so it can be safely embedded in a regex, and will only ever match itself. Anything that isn't
+     * a letter, digit or space is preceded with a backslash.
+     *
+     * We use this rather than `Pattern.quote()` as MongoDB only recognises a regex as an indexable prefix (e.g.
+     * `^abc`) when the characters after the anchor are plain or backslash escaped literals.
+     *
+     * @param value the user supplied value
+     * @return the escaped value, or an empty string if value is null
+     */
+    public static String escapeRegex(String value) {
+
+        if (value == null) return "";
+
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (!Character.isLetterOrDigit(c) && c != ' ') escaped.append('\\');
+            escaped.append(c);
+        }
+
+        return escaped.toString();
+    }
+
     /**
      * Returns a DateTime for a date string formatted as dd/MM/yyyy, dd-MM-yyyy,
      * dd MM yyyy and ddMMyyyy.
@@ -1,36 +1,49 @@
 package uk.gov.ea.wastecarrier.services.match;
 
-import org.mongojack.DBCursor;
+import com.codahale.metrics.MetricRegistry;
+import com.mongodb.DBObject;
 import org.mongojack.DBQuery;
-import org.mongojack.DBSort;
 import org.mongojack.JacksonDBCollection;
 import uk.gov.ea.wastecarrier.services.core.Entity;
 import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
+import uk.gov.ea.wastecarrier.services.search.QueryShape;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response.Status;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
+/**
+ * Matches a company against the conviction entities. In order of precedence it looks for the company number as
+ * given, then the company number in its canonical form (see `CompanyNumberNormaliser`), then the normalised name,
+ * and lastly all the words of the name in any order. The first of these to find an entity decides the match.
+ */
 public class CompanyMatch {
 
     private SearchHelper helper;
+    private EntityIndex index;
+    private MetricRegistry metrics;
     private Logger log = Logger.getLogger(CompanyMatch.class.getName());
 
-    // Create a list of words we IGNORE when searching for company names.
-    // Make sure to only use lower-case.
-    private List<String> ignoredNameWords = Arrays.asList(
-            // Company types / suffixes.
-            "limited", "ltd", "plc", "inc", "incorporated", "llp", "lp", "company",
-            "co", "holdings", "investments", "services", "technologies", "solutions",
-            "group", "cyf", "cyfyngedig", "ccc", "cic", "cio", "ag", "corp", "eurl",
-            "gmbh", "sa", "sarl", "sp", "prc", "partners", "lc",
-            // Locations.
-            "uk", "gb", "europe", "intl", "international", "england", "wales",
-            "scotland", "cymru"
-    );
+    private static final String NUMBER_FIELD = "companyNumber";
+
+    /**
+     * The stages of the match in order of precedence, and the names we count their hits under.
+     */
+    private enum Stage {
+        NUMBER("number"),
+        CANONICAL_NUMBER("canonical-number"),
+        NAME("name"),
+        NAME_TOKENS("name-tokens");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
 
     private String name;
     private String number;
@@ -41,24 +54,36 @@ public class CompanyMatch {
         this.number = parseNumber(number);
     }
 
+    /**
+     * Match against the in memory `EntityIndex` rather than the database. The result is the same.
+     */
+    public CompanyMatch(EntityIndex index, String name, String number) {
+        this.index = index;
+        this.name = parseName(name);
+        this.number = parseNumber(number);
+    }
+
+    /**
+     * @param metrics registry to count the hits for each stage of the match in, or null to not count them
+     */
+    public void setMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
     public Entity execute() {
 
         if (this.name.isEmpty() && this.number.isEmpty()) return null;
 
+        if (this.index != null) return indexMatch();
+
         JacksonDBCollection<Entity, String> collection = this.helper.getCollection();
-        Entity document = null;
+        Entity document;
 
         try {
-            // If we have a number search by that first
-            if (!this.number.isEmpty()) {
-                document = numberMatch(collection);
+            MatchPipeline.Result result = MatchPipeline.first(collection, candidatesQuery(), stages(), NUMBER_FIELD);
 
-                // If no match try again this time removing any leading zeroes
-                if (document == null) document = numberMatchIgnoreZeroes(collection);
-            }
-            // If here all number searches have failed or we never had one in
-            // the first place. In which case try a search by name
-            if (!this.name.isEmpty() && document == null) document = nameMatch(collection);
+            document = result == null ? null : result.entity;
+            record(result == null ? null : Stage.values()[result.stage]);
         } catch (IllegalArgumentException e) {
             log.severe(String.format(
                     "Error matching company/number %s/%s: %s",
@@ -72,67 +97,114 @@ public class CompanyMatch {
         return document;
     }
 
-    private Entity nameMatch(JacksonDBCollection<Entity, String> collection) {
-
-        Pattern likePattern = Pattern.compile(
-                String.format(".*%s.*", this.name),
-                Pattern.CASE_INSENSITIVE);
-
-        DBQuery.Query query = DBQuery.and(DBQuery
-                .is("dateOfBirth", null)
-                .regex("name", likePattern)
-        );
-
-        return collection.findOne(query);
+    /**
+     * @return the normalised name and number the match is made on, so matches that would give the same result share
+     * a key (see `MatchCache`)
+     */
+    public String cacheKey() {
+        return "company|" + this.name + "|" + this.number;
     }
 
-    private Entity numberMatch(JacksonDBCollection<Entity, String> collection) {
-
-        DBQuery.Query query = DBQuery.is("companyNumber", this.number);
-
-        return collection.findOne(query);
+    /**
+     * The aggregation `execute()` runs against the collection, so `QueryPlan` can explain it.
+     */
+    public List<QueryShape> queryShapes() {
+        return Collections.singletonList(MatchPipeline.shape(
+                "company match",
+                this.helper.getCollection(),
+                candidatesQuery(),
+                stages(),
+                NUMBER_FIELD
+        ));
     }
 
-    private Entity numberMatchIgnoreZeroes(JacksonDBCollection<Entity, String> collection) {
-
-        String noLeadingZeroes = this.number.replaceFirst("^0+(?!$)", "");
+    private Entity indexMatch() {
 
-        Pattern likePattern = Pattern.compile(
-                String.format(".*%s$", noLeadingZeroes),
-                Pattern.CASE_INSENSITIVE);
-
-        DBQuery.Query query = DBQuery.regex("companyNumber", likePattern);
-        DBSort.SortBuilder sortBy = DBSort.asc("companyNumber");
-
-        DBCursor<Entity> results = collection.find(query);
+        Entity document = null;
+        Stage stage = null;
+
+        if (!this.number.isEmpty()) {
+            document = this.index.findByCompanyNumber(this.number);
+            stage = Stage.NUMBER;
+            if (document == null) {
+                document = this.index.findByCanonicalCompanyNumber(this.number);
+                stage = Stage.CANONICAL_NUMBER;
+            }
+        }
+        if (!this.name.isEmpty() && document == null) {
+            document = this.index.findCompanyByName(this.name);
+            // Entities read from a snapshot don't carry their normalised name, so work it out again
+            boolean sameName = document != null && this.name.equals(NameNormaliser.normalise(document.name));
+            stage = sameName ? Stage.NAME : Stage.NAME_TOKENS;
+        }
 
-        if (results.count() == 0) return null;
+        record(document == null ? null : stage);
 
-        return results.limit(1).sort(sortBy).next();
+        return document;
     }
 
-    private String parseName(String name) {
+    /**
+     * Any entity with the same company number also has the same canonical one, and any with the same normalised name
+     * has all its words, so between them the canonical number and the words select every entity a stage could match.
+     * Each is a lookup on an index, so neither has to scan the collection.
+     */
+    private DBQuery.Query candidatesQuery() {
 
-        if (name == null) return "";
+        List<DBQuery.Query> candidates = new ArrayList<>();
 
-        name = name.trim();
-        if (name.isEmpty()) return "";
+        if (!this.number.isEmpty()) {
+            candidates.add(DBQuery.is("canonicalCompanyNumber", CompanyNumberNormaliser.canonical(this.number)));
+        }
+        if (!this.name.isEmpty()) {
+            candidates.add(DBQuery.all("nameTokens", NameNormaliser.tokens(this.name)).is("dateOfBirth", null));
+        }
 
-        // Check for a period on the end. Not doing so means the match could
-        // be confused by something like 'Test Waste Ltd.' because 'Ltd.'
-        // won't be caught by ignored words check, and it might be that in the
-        // db the record is held as 'Ltd' or 'Limited'.
-        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        return DBQuery.or(candidates.toArray(new DBQuery.Query[0]));
+    }
 
-        StringBuilder parsedName = new StringBuilder();
+    /**
+     * The test for each stage, in the order of `Stage`. Where we don't have the number or name a stage needs, it's
+     * given one that never matches so the numbering stays the same. Where several entities match the same stage we
+     * take the lowest company number, as `CompanyNumberNormaliser` expects.
+     */
+    private List<DBObject> stages() {
+
+        List<DBObject> stages = new ArrayList<>();
+        DBObject never = MatchPipeline.never();
+
+        if (this.number.isEmpty()) {
+            stages.add(never);
+            stages.add(never);
+        } else {
+            stages.add(MatchPipeline.equal(NUMBER_FIELD, this.number));
+            stages.add(MatchPipeline.equal("canonicalCompanyNumber", CompanyNumberNormaliser.canonical(this.number)));
+        }
 
-        for (String word: Arrays.asList(name.toLowerCase().split(" "))) {
-            if (!word.isEmpty() && !ignoredNameWords.contains(word)) {
-                parsedName.append(word).append(" ");
-            }
+        if (this.name.isEmpty()) {
+            stages.add(never);
+            stages.add(never);
+        } else {
+            DBObject company = MatchPipeline.isNull("dateOfBirth");
+            stages.add(MatchPipeline.and(MatchPipeline.equal("normalisedName", this.name), company));
+            stages.add(MatchPipeline.and(
+                    MatchPipeline.containsAll("nameTokens", NameNormaliser.tokens(this.name)),
+                    company
+            ));
         }
 
-        return parsedName.toString().trim();
+        return stages;
+    }
+
+    private void record(Stage stage) {
+        MatchPipeline.record(this.metrics, CompanyMatch.class, stage == null ? null : stage.metricName);
+    }
+
+    /**
+     * Normalise the name the same way the entities' names were when imported. This drops punctuation, such as the
+     * period in 'Test Waste Ltd.', and words like 'ltd' and 'limited', which could otherwise stop a match.
+     */
+    private String parseName(String name) {
+        return NameNormaliser.normalise(name);
     }
 
     private String parseNumber(String number) {
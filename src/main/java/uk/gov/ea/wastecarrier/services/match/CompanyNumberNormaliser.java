@@ -0,0 +1,51 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+/**
+ * Reduces a company number to a canonical form, so numbers that were keyed in differently still match. Like
+ * `NameNormaliser` it's applied both to the entities when they're imported, to set their `canonicalCompanyNumber`,
+ * and to the numbers we're asked to match.
+ *
+ * The canonical form is upper case with any spaces removed. Companies House numbers are either all digits or start
+ * with a letter prefix for where the company was registered, such as 'SC' for Scotland, 'NI' for Northern Ireland or
+ * 'OC' for a LLP. The prefix is kept and any zeroes padding the digits after it are removed. So '00123456' becomes
+ * '123456', and 'sc 012345' becomes 'SC12345', which no longer matches the English company '12345'.
+ */
+public final class CompanyNumberNormaliser {
+
+    private CompanyNumberNormaliser() {
+    }
+
+    /**
+     * @return the canonical company number, or an empty string if there isn't one
+     */
+    public static String canonical(String number) {
+
+        if (number == null) return "";
+
+        StringBuilder canonical = new StringBuilder(number.length());
+        boolean inPrefix = true;
+        boolean padding = false;
+
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (Character.isWhitespace(c)) continue;
+
+            if (inPrefix && !Character.isLetter(c)) {
+                inPrefix = false;
+                padding = true;
+            }
+
+            if (padding) {
+                if (c == '0') continue;
+                padding = false;
+            }
+
+            canonical.append(Character.toUpperCase(c));
+        }
+
+        // A number that was nothing but zeroes after the prefix is kept as a single zero
+        if (padding) canonical.append('0');
+
+        return canonical.toString();
+    }
+}
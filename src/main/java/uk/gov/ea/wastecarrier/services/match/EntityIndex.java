@@ -0,0 +1,301 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import org.joda.time.DateTime;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * An immutable, in memory copy of the conviction entities, indexed so that `CompanyMatch` and `PersonMatch` can find
+ * a match without going to MongoDB.
+ *
+ * The entities list is small and only ever changed by replacing it wholesale, so it is cheap to hold and an index
+ * built from it stays valid until the next reload (see `EntityIndexHolder`).
+ *
+ * The lookups give the same answers as the queries they replace. Where those would return the first of several
+ * matching documents in natural order, we return the first in the order the entities were loaded, which is the same.
+ * Company names are matched on their normalised form (see `NameNormaliser`), first the whole name and then all its
+ * words in any order. People are matched on the phonetic keys of their name and their day of birth (see
+ * `PersonKeys`). Each is a lookup of the entities holding a key, and where several keys must match we intersect them.
+ *
+ * For `FuzzyMatch` it also groups the entities into blocks by cheap keys: the first word of their normalised name,
+ * the words of it in alphabetical order, and the year they were born. A fuzzy match only scores the entities in the
+ * blocks its name and date of birth fall into.
+ */
+public final class EntityIndex {
+
+    // Either a list held in memory or an `EntitySnapshot`, which creates each entity as it's asked for. So we only
+    // hold positions, and go back to it for the entities a lookup returns
+    private final IntFunction<Entity> entities;
+
+    private final int size;
+
+    private final Map<String, Integer> byCompanyNumber = new HashMap<>();
+
+    private final Map<String, Integer> byCanonicalCompanyNumber = new HashMap<>();
+
+    private final BitSet people = new BitSet();
+
+    private final Map<String, BitSet> byPhoneticKey = new HashMap<>();
+
+    private final Map<Integer, BitSet> byDateOfBirthDay = new HashMap<>();
+
+    private final String[] matchKeys;
+
+    private final Map<String, BitSet> byNormalisedName = new HashMap<>();
+
+    private final Map<String, BitSet> byNameToken = new HashMap<>();
+
+    private final Map<String, BitSet> byFirstWord = new HashMap<>();
+
+    private final Map<String, BitSet> bySignature = new HashMap<>();
+
+    private final Map<Integer, BitSet> byBirthYear = new HashMap<>();
+
+    private EntityIndex(int size, IntFunction<Entity> entities) {
+
+        this.entities = entities;
+        this.size = size;
+        this.matchKeys = new String[size];
+
+        // Only needed whilst building, to pick the lowest company number for each canonical one
+        String[] companyNumbers = new String[size];
+
+        for (int position = 0; position < size; position++) {
+            Entity entity = entities.apply(position);
+
+            if (entity.companyNumber != null) {
+                companyNumbers[position] = entity.companyNumber;
+                this.byCompanyNumber.putIfAbsent(entity.companyNumber, position);
+                // The query this replaces sorted by company number, so keep the lowest
+                this.byCanonicalCompanyNumber.merge(
+                        CompanyNumberNormaliser.canonical(entity.companyNumber),
+                        position,
+                        (current, candidate) -> companyNumbers[candidate].compareTo(companyNumbers[current]) < 0
+                                ? candidate
+                                : current
+                );
+            }
+
+            for (String key : PersonKeys.phoneticKeys(entity.name)) {
+                this.byPhoneticKey.computeIfAbsent(key, k -> new BitSet()).set(position);
+            }
+
+            if (entity.dateOfBirth != null) {
+                this.people.set(position);
+                int day = PersonKeys.dateOfBirthDay(entity.dateOfBirth);
+                this.byDateOfBirthDay.computeIfAbsent(day, key -> new BitSet()).set(position);
+                this.byBirthYear.computeIfAbsent(birthYear(entity.dateOfBirth), key -> new BitSet()).set(position);
+            }
+
+            this.matchKeys[position] = NameNormaliser.normalise(entity.name);
+            if (!this.matchKeys[position].isEmpty()) {
+                this.byNormalisedName.computeIfAbsent(this.matchKeys[position], key -> new BitSet()).set(position);
+                for (String token : NameNormaliser.tokens(this.matchKeys[position])) {
+                    this.byNameToken.computeIfAbsent(token, key -> new BitSet()).set(position);
+                }
+                this.byFirstWord.computeIfAbsent(firstWord(this.matchKeys[position]), key -> new BitSet())
+                        .set(position);
+                this.bySignature.computeIfAbsent(signature(this.matchKeys[position]), key -> new BitSet())
+                        .set(position);
+            }
+        }
+    }
+
+    public static EntityIndex of(List<Entity> entities) {
+
+        List<Entity> copy = Collections.unmodifiableList(new ArrayList<>(entities));
+
+        return new EntityIndex(copy.size(), copy::get);
+    }
+
+    /**
+     * Indexes the entities in a snapshot without reading them all into memory. Only the index itself is held, and
+     * the entities a lookup returns are read from the snapshot as needed.
+     */
+    public static EntityIndex of(EntitySnapshot snapshot) {
+        return new EntityIndex(snapshot.size(), snapshot::get);
+    }
+
+    /**
+     * @return the words of the match key in alphabetical order, so 'Isaacs Jason' and 'Jason Isaacs' are the same
+     */
+    public static String signature(String matchKey) {
+
+        String[] words = matchKey.split(" ");
+        Arrays.sort(words);
+
+        return String.join(" ", words);
+    }
+
+    static String firstWord(String matchKey) {
+
+        int space = matchKey.indexOf(' ');
+
+        return space < 0 ? matchKey : matchKey.substring(0, space);
+    }
+
+    static int birthYear(Date dateOfBirth) {
+        return new DateTime(dateOfBirth).getYear();
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public Entity findByCompanyNumber(String number) {
+        return entityAt(this.byCompanyNumber.get(number));
+    }
+
+    /**
+     * @return the entity whose company number is the same once both are in their canonical form (see
+     * `CompanyNumberNormaliser`). If there are several the one with the lowest number is returned
+     */
+    public Entity findByCanonicalCompanyNumber(String number) {
+        return entityAt(this.byCanonicalCompanyNumber.get(CompanyNumberNormaliser.canonical(number)));
+    }
+
+    /**
+     * @return the position of the entity with the company number, as given or failing that in its canonical form, or
+     * -1 if there is none
+     */
+    int companyNumberPosition(String number) {
+
+        Integer position = this.byCompanyNumber.get(number);
+        if (position == null) position = this.byCanonicalCompanyNumber.get(CompanyNumberNormaliser.canonical(number));
+
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * @return the first company, i.e. entity with no date of birth, whose normalised name is the same as the value's.
+     * Failing that the first whose normalised name has all the words of the value's
+     */
+    public Entity findCompanyByName(String name) {
+
+        String normalised = NameNormaliser.normalise(name);
+        if (normalised.isEmpty()) return null;
+
+        Entity document = firstCompany(this.byNormalisedName.get(normalised));
+        if (document != null) return document;
+
+        return firstCompany(allOf(this.byNameToken, NameNormaliser.tokens(normalised)));
+    }
+
+    /**
+     * @param phoneticKeys the search keys of the name (see `PersonKeys.searchKeys()`)
+     * @return the first entity whose name has all the phonetic keys
+     */
+    public Entity findPersonByName(List<String> phoneticKeys) {
+        return first(allOf(this.byPhoneticKey, phoneticKeys));
+    }
+
+    /**
+     * @param phoneticKeys the search keys of the name (see `PersonKeys.searchKeys()`)
+     * @param dateOfBirthDay the day of birth (see `PersonKeys.dateOfBirthDay()`)
+     * @return the first entity born on the day whose name has all the phonetic keys
+     */
+    public Entity findPersonByNameAndDateOfBirth(List<String> phoneticKeys, int dateOfBirthDay) {
+
+        BitSet born = this.byDateOfBirthDay.get(dateOfBirthDay);
+        if (born == null) return null;
+
+        BitSet candidates = allOf(this.byPhoneticKey, phoneticKeys);
+        if (candidates == null) return null;
+
+        candidates.and(born);
+
+        return first(candidates);
+    }
+
+    /**
+     * The entities in the same blocks as the match key or birth year. Any word of the key can be the first word of
+     * a candidate, so names given in a different order are still found.
+     *
+     * @param matchKey the match key of the name we're looking for
+     * @param birthYear the year of birth we're looking for, or null
+     */
+    BitSet block(String matchKey, Integer birthYear) {
+
+        BitSet block = new BitSet();
+
+        if (!matchKey.isEmpty()) {
+            for (String word : matchKey.split(" ")) {
+                BitSet positions = this.byFirstWord.get(word);
+                if (positions != null) block.or(positions);
+            }
+            BitSet positions = this.bySignature.get(signature(matchKey));
+            if (positions != null) block.or(positions);
+        }
+        if (birthYear != null) {
+            BitSet positions = this.byBirthYear.get(birthYear);
+            if (positions != null) block.or(positions);
+        }
+
+        return block;
+    }
+
+    Entity entity(int position) {
+        return this.entities.apply(position);
+    }
+
+    boolean isPerson(int position) {
+        return this.people.get(position);
+    }
+
+    String matchKey(int position) {
+        return this.matchKeys[position];
+    }
+
+    private Entity firstCompany(BitSet candidates) {
+
+        if (candidates == null) return null;
+
+        BitSet companies = (BitSet) candidates.clone();
+        companies.andNot(this.people);
+
+        return first(companies);
+    }
+
+    /**
+     * @return the entities holding every one of the keys, or null if there are none. Never one of our own sets, so
+     * the caller is free to change it
+     */
+    private static BitSet allOf(Map<String, BitSet> postings, List<String> keys) {
+
+        if (keys.isEmpty()) return null;
+
+        BitSet candidates = null;
+        for (String key : keys) {
+            BitSet positions = postings.get(key);
+            if (positions == null) return null;
+
+            if (candidates == null) {
+                candidates = (BitSet) positions.clone();
+            } else {
+                candidates.and(positions);
+            }
+        }
+
+        return candidates;
+    }
+
+    private Entity first(BitSet candidates) {
+
+        if (candidates == null || candidates.isEmpty()) return null;
+
+        return this.entities.apply(candidates.nextSetBit(0));
+    }
+
+    private Entity entityAt(Integer position) {
+        return position == null ? null : this.entities.apply(position);
+    }
+}
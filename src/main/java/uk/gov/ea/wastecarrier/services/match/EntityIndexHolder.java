@@ -0,0 +1,240 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.MongoException;
+import io.dropwizard.lifecycle.Managed;
+import org.mongojack.DBCursor;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.dao.EntityDao;
+
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Holds the current `EntityIndex`. It's loaded when the service starts, and should be reloaded whenever the entities
+ * collection is repopulated. A reload builds a new index and swaps it in, so matches in progress carry on against
+ * the one they started with.
+ *
+ * The entity-populator only reloads the index of the instance that ran it. So that every other instance picks the
+ * change up too, each one checks the generation of the entities recorded in the database (see
+ * `EntityDao.generation()`) at a fixed interval, and reloads if it's not the one its index was loaded from.
+ *
+ * Given somewhere to keep one, each reload streams the collection into an `EntitySnapshot` and builds the index
+ * from that, so the entities themselves are never all held in memory at once. Only if there's nowhere to keep it,
+ * or it can't be written, are they read into a list and indexed from that. At startup we load the snapshot rather than the collection, as long
+ * as it was written from the generation of the entities that's current. If it wasn't, say because they were
+ * repopulated through another instance, we load the collection and write a new snapshot.
+ *
+ * Each reload also starts a new generation of the index, which `MatchCache` uses to tell which of its results
+ * came from an older list. The index and its generation are published together (see `Current`), so a match always
+ * knows which generation the entities it ran against belong to, however long ago it picked them up.
+ */
+public class EntityIndexHolder implements Managed {
+
+    private static Logger log = Logger.getLogger(EntityIndexHolder.class.getName());
+
+    private final EntityDao dao;
+
+    private final Path snapshot;
+
+    /**
+     * An index and its generation, which goes up each time the index is reloaded. A match should take both from the
+     * same `Current`, rather than read the generation separately, as the index may have been swapped in between.
+     */
+    public static final class Current {
+
+        // Before the index is loaded, when matches go to the database
+        public static final Current NOT_LOADED = new Current(null, 0);
+
+        // Null if the index hasn't been loaded
+        public final EntityIndex index;
+        public final long generation;
+
+        private Current(EntityIndex index, long generation) {
+            this.index = index;
+            this.generation = generation;
+        }
+    }
+
+    private volatile Current current = Current.NOT_LOADED;
+
+    // The generation of the entities in the database the current index was loaded from
+    private volatile String loadedGeneration;
+
+    private final long refreshSeconds;
+
+    private ScheduledExecutorService refresher;
+
+    public EntityIndexHolder(EntityDao dao) {
+        this(dao, null, 0);
+    }
+
+    /**
+     * @param dao the entities collection
+     * @param snapshot where to keep the snapshot of the entities, or null to always load them from the collection
+     * @param refreshSeconds how often to check whether the entities have changed, or 0 to not check
+     */
+    public EntityIndexHolder(EntityDao dao, Path snapshot, long refreshSeconds) {
+        this.dao = dao;
+        this.snapshot = snapshot;
+        this.refreshSeconds = refreshSeconds;
+    }
+
+    /**
+     * @return the current index, or null if it has not been loaded
+     */
+    public EntityIndex get() {
+        return this.current.index;
+    }
+
+    /**
+     * @return the current index along with its generation
+     */
+    public Current current() {
+        return this.current;
+    }
+
+    /**
+     * Only one reload runs at a time, as the entity-populator, re-screen task and scheduled refresh can each start
+     * one, and they all write the same snapshot.
+     */
+    public synchronized EntityIndex reload() {
+
+        // Read before the entities, so that a change made whilst we load them is picked up by the next refresh
+        String current = this.dao.generation();
+
+        EntityIndex reloaded = writeSnapshot(current);
+        if (reloaded == null) reloaded = EntityIndex.of(this.dao.getCollection().find().toArray());
+
+        swap(reloaded, current);
+
+        return reloaded;
+    }
+
+    /**
+     * Reloads the index if the entities have changed since it was loaded, or it hasn't been loaded at all.
+     *
+     * @return true if the index was reloaded
+     */
+    public synchronized boolean refresh() {
+
+        if (this.current.index != null && Objects.equals(this.dao.generation(), this.loadedGeneration)) return false;
+
+        reload();
+
+        return true;
+    }
+
+    /**
+     * If the entities can't be loaded we log it and carry on. Matches go to the database until the index is loaded,
+     * which the first refresh will try again.
+     */
+    @Override
+    public void start() {
+        try {
+            if (!loadSnapshot()) reload();
+        } catch (MongoException | WebApplicationException e) {
+            log.severe("Could not load the match index at startup: " + e.getMessage());
+        }
+
+        if (this.refreshSeconds > 0) {
+            this.refresher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("entity-index-refresh").setDaemon(true).build());
+            this.refresher.scheduleWithFixedDelay(
+                    this::scheduledRefresh, this.refreshSeconds, this.refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (this.refresher != null) this.refresher.shutdownNow();
+    }
+
+    // An exception would cancel the schedule, so we log it and try again next time
+    private void scheduledRefresh() {
+        try {
+            if (refresh()) log.info("Reloaded the match index as the entities have changed");
+        } catch (RuntimeException e) {
+            log.warning("Could not refresh the match index: " + e.getMessage());
+        }
+    }
+
+    private boolean loadSnapshot() {
+
+        if (this.snapshot == null || !Files.exists(this.snapshot)) return false;
+
+        EntitySnapshot entities;
+        try {
+            entities = EntitySnapshot.map(this.snapshot);
+        } catch (IOException | RuntimeException e) {
+            discardSnapshot(e);
+            return false;
+        }
+
+        // Where we don't know the generation of either, we can't tell whether the snapshot is current
+        String current = this.dao.generation();
+        if (current == null || !current.equals(entities.generation())) {
+            log.info(String.format(
+                    "Entity snapshot is of generation %s but the collection is at %s, so reloading",
+                    entities.generation(),
+                    current
+            ));
+            return false;
+        }
+
+        EntityIndex index;
+        try {
+            index = EntityIndex.of(entities);
+        } catch (RuntimeException e) {
+            discardSnapshot(e);
+            return false;
+        }
+
+        swap(index, current);
+        return true;
+    }
+
+    // So it isn't tried again at the next startup. The reload that follows writes a new one
+    private void discardSnapshot(Exception e) {
+
+        log.warning("Could not load the entity snapshot " + this.snapshot + ", so deleting it: " + e.getMessage());
+
+        try {
+            Files.deleteIfExists(this.snapshot);
+        } catch (IOException deleteFailed) {
+            log.warning("Could not delete the entity snapshot " + this.snapshot + ": " + deleteFailed.getMessage());
+        }
+    }
+
+    /**
+     * @return an index of the snapshot written, or null if there is nowhere to write it or it couldn't be written
+     */
+    private EntityIndex writeSnapshot(String generation) {
+
+        if (this.snapshot == null) return null;
+
+        try (DBCursor<Entity> cursor = this.dao.getCollection().find()) {
+            EntitySnapshot.write(cursor, generation, this.snapshot);
+            return EntityIndex.of(EntitySnapshot.map(this.snapshot));
+        } catch (IOException | RuntimeException e) {
+            log.warning("Could not write the entity snapshot " + this.snapshot + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Only called whilst loading at startup or holding the lock, so the generation can't be bumped twice at once
+    private void swap(EntityIndex reloaded, String loadedGeneration) {
+
+        this.loadedGeneration = loadedGeneration;
+        this.current = new Current(reloaded, this.current.generation + 1);
+
+        log.info("Loaded " + reloaded.size() + " entities into the match index");
+    }
+}
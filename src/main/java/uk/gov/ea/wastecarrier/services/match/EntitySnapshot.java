@@ -0,0 +1,288 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import org.joda.time.LocalDate;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A compact, read only copy of the entities in a file, which we memory map rather than read. Written by the
+ * entity-populator each time the entities are repopulated, it lets the service build its `EntityIndex` at startup
+ * without querying MongoDB and mapping every document with Jackson. Only the entities a match returns are ever
+ * created, so the list itself takes no heap.
+ *
+ * The file is laid out as
+ *
+ * - a header: the magic number, format version, entity and string counts, when it was written, a CRC32 checksum
+ *   of the whole file (taken with the checksum itself as zero), and the id in the strings of the generation of the
+ *   entities it was written from (see `EntityDao.generation()`)
+ * - the offset of each string in the string data, plus one for the end of the last
+ * - a fixed size record for each entity, of the ids of its name, company number, system and reference in the
+ *   strings, and its date of birth as days since 1 January 1970
+ * - the string data, each distinct string stored once as UTF-8
+ *
+ * Only the fields we match on and return are kept. Missing strings are stored as -1 and a missing date of birth as
+ * `Integer.MIN_VALUE`.
+ *
+ * The counts in the header are checked against the size of the file before anything is read using them, so a file
+ * that's corrupt or cut short is always rejected with an `IllegalStateException`.
+ */
+public final class EntitySnapshot {
+
+    private static final int MAGIC = 0x57434553;
+    private static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int CRC_POSITION = 24;
+    private static final int GENERATION_POSITION = 32;
+    private static final int RECORD_SIZE = 5 * Integer.BYTES;
+
+    private static final int NONE = -1;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+
+    private static final LocalDate EPOCH = new LocalDate(1970, 1, 1);
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int strings;
+    private final long writtenAt;
+    private final String generation;
+
+    private EntitySnapshot(ByteBuffer buffer) {
+
+        this.buffer = buffer;
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalStateException("Not an entity snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalStateException("Unsupported entity snapshot version " + buffer.getInt(4));
+        }
+
+        this.size = buffer.getInt(8);
+        this.strings = buffer.getInt(12);
+        this.writtenAt = buffer.getLong(16);
+
+        checkBounds(buffer.getInt(GENERATION_POSITION));
+
+        if (buffer.getLong(CRC_POSITION) != checksum(buffer)) {
+            throw new IllegalStateException("Entity snapshot checksum does not match, the file is corrupt");
+        }
+
+        this.generation = string(buffer.getInt(GENERATION_POSITION));
+    }
+
+    // Before anything is read using the counts, so a corrupt header is rejected rather than read past the end of
+    // the file
+    private void checkBounds(int generationId) {
+
+        long stringData = HEADER_SIZE + (this.strings + 1L) * Integer.BYTES + (long) this.size * RECORD_SIZE;
+        if (this.size < 0 || this.strings < 0 || stringData > this.buffer.capacity()) {
+            throw new IllegalStateException(String.format(
+                    "Entity snapshot of %d entities and %d strings does not fit in %d bytes",
+                    this.size,
+                    this.strings,
+                    this.buffer.capacity()
+            ));
+        }
+
+        int stringBytes = this.buffer.getInt(HEADER_SIZE + this.strings * Integer.BYTES);
+        if (stringBytes < 0 || stringData + stringBytes != this.buffer.capacity()) {
+            throw new IllegalStateException("Entity snapshot string data does not match the size of the file");
+        }
+
+        if (generationId < NONE || generationId >= this.strings) {
+            throw new IllegalStateException("Entity snapshot generation is not one of its strings");
+        }
+    }
+
+    /**
+     * Maps the snapshot file into memory and checks it's complete.
+     *
+     * @throws IllegalStateException if the file isn't a snapshot we can read, or is corrupt
+     */
+    public static EntitySnapshot map(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new EntitySnapshot(buffer);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the entities. It's written to a temporary file which is then moved into place, so a
+     * snapshot already mapped is left as it was and no one ever maps a half written file.
+     *
+     * The entities are taken one at a time, so they can come straight from a cursor. Only their records and the
+     * distinct strings in them are held until the file is written, never the entities themselves.
+     *
+     * @param generation the generation of the entities, or null if we don't know it
+     */
+    public static void write(Iterator<Entity> entities, String generation, Path file) throws IOException {
+
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+
+        int generationId = id(generation, ids, strings);
+
+        int size = 0;
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(records);
+        while (entities.hasNext()) {
+            Entity entity = entities.next();
+            record.writeInt(id(entity.name, ids, strings));
+            record.writeInt(id(entity.companyNumber, ids, strings));
+            record.writeInt(id(entity.systemFlag, ids, strings));
+            record.writeInt(id(entity.incidentNumber, ids, strings));
+            Integer day = PersonKeys.dateOfBirthDay(entity.dateOfBirth);
+            record.writeInt(day == null ? NO_DATE : day);
+            size++;
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            // The checksum is taken as the file is written, with it as zero in the header, then filled in after
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)), crc));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(strings.size());
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(0);
+            out.writeInt(generationId);
+            out.writeInt(0);
+
+            int offset = 0;
+            for (byte[] string : strings) {
+                out.writeInt(offset);
+                offset += string.length;
+            }
+            out.writeInt(offset);
+
+            records.writeTo(out);
+            for (byte[] string : strings) out.write(string);
+
+            // Not closed, as that would close the channel too
+            out.flush();
+
+            ByteBuffer checksum = ByteBuffer.allocate(Long.BYTES).putLong(0, crc.getValue());
+            while (checksum.hasRemaining()) channel.write(checksum, CRC_POSITION + checksum.position());
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return when the snapshot was written, in milliseconds since 1970
+     */
+    public long writtenAt() {
+        return this.writtenAt;
+    }
+
+    /**
+     * @return the generation of the entities the snapshot was written from, or null if we didn't know it
+     */
+    public String generation() {
+        return this.generation;
+    }
+
+    /**
+     * Reads the entity at the position from the file. Each call creates a new `Entity`, which holds just the fields
+     * the snapshot keeps.
+     */
+    public Entity get(int position) {
+
+        if (position < 0 || position >= this.size) throw new IndexOutOfBoundsException("Entity " + position);
+
+        int record = recordsStart() + position * RECORD_SIZE;
+
+        Entity entity = new Entity();
+        entity.name = string(this.buffer.getInt(record));
+        entity.companyNumber = string(this.buffer.getInt(record + 4));
+        entity.systemFlag = string(this.buffer.getInt(record + 8));
+        entity.incidentNumber = string(this.buffer.getInt(record + 12));
+
+        int day = this.buffer.getInt(record + 16);
+        entity.dateOfBirth = day == NO_DATE ? null : EPOCH.plusDays(day).toDate();
+
+        return entity;
+    }
+
+    private int recordsStart() {
+        return HEADER_SIZE + (this.strings + 1) * Integer.BYTES;
+    }
+
+    // Uses absolute reads only, so any number of threads can read the buffer at once
+    private String string(int id) {
+
+        if (id == NONE) return null;
+
+        int start = this.buffer.getInt(HEADER_SIZE + id * Integer.BYTES);
+        int end = this.buffer.getInt(HEADER_SIZE + (id + 1) * Integer.BYTES);
+        int data = recordsStart() + this.size * RECORD_SIZE;
+
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = this.buffer.get(data + start + i);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int id(String value, Map<String, Integer> ids, List<byte[]> strings) {
+
+        if (value == null) return NONE;
+
+        return ids.computeIfAbsent(value, key -> {
+            strings.add(key.getBytes(StandardCharsets.UTF_8));
+            return strings.size() - 1;
+        });
+    }
+
+    // The whole file, header and all, with zeros in place of the checksum itself
+    private static long checksum(ByteBuffer buffer) {
+
+        CRC32 crc = new CRC32();
+
+        ByteBuffer before = buffer.duplicate();
+        before.limit(CRC_POSITION);
+        before.position(0);
+        crc.update(before);
+
+        crc.update(new byte[Long.BYTES]);
+
+        ByteBuffer after = buffer.duplicate();
+        after.limit(after.capacity());
+        after.position(CRC_POSITION + Long.BYTES);
+        crc.update(after);
+
+        return crc.getValue();
+    }
+}
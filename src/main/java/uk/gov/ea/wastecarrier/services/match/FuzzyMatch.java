@@ -0,0 +1,144 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import org.joda.time.LocalDate;
+import uk.gov.ea.wastecarrier.services.core.ScoredMatches;
+import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
+
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Scored matching of company and person names, which unlike `CompanyMatch` and `PersonMatch` also finds names with a
+ * typo, letters swapped, or words in a different order.
+ *
+ * Rather than score every entity we only score those in the same blocks as the name being matched (see
+ * `EntityIndex.block()`): those whose name starts with one of its words, those with the same words in any order,
+ * and for people those born in the same year. Each candidate is scored with `JaroWinkler` on the normalised names
+ * (see `NameNormaliser`), taking the better of the names as given and with their words sorted. Anything scoring at
+ * least the threshold is returned, best first.
+ *
+ * A company number that matches, as given or in its canonical form (see `CompanyNumberNormaliser`), is always
+ * returned with a score of 1.
+ */
+public class FuzzyMatch {
+
+    public static final double DEFAULT_THRESHOLD = 0.9;
+
+    public static final int MAX_MATCHES = 10;
+
+    private final EntityIndex index;
+    private final double threshold;
+
+    public FuzzyMatch(EntityIndex index, double threshold) {
+
+        if (threshold < 0 || threshold > 1) throw new IllegalArgumentException("Threshold must be between 0 and 1");
+
+        this.index = index;
+        this.threshold = threshold;
+    }
+
+    public ScoredMatches company(String name, String number) {
+
+        Map<Integer, ScoredMatches.Match> found = new HashMap<>();
+
+        if (number != null && !number.trim().isEmpty()) {
+            int numbered = this.index.companyNumberPosition(number.trim());
+            if (numbered >= 0) found.put(numbered, new ScoredMatches.Match(this.index.entity(numbered), 1.0));
+        }
+
+        score(NameNormaliser.normalise(name), null, position -> !this.index.isPerson(position), found);
+
+        return results(found);
+    }
+
+    public ScoredMatches person(String firstName, String lastName, String dateOfBirth) {
+
+        Map<Integer, ScoredMatches.Match> found = new HashMap<>();
+
+        String name = (firstName == null ? "" : firstName) + " " + (lastName == null ? "" : lastName);
+        Date born = parseDateOfBirth(dateOfBirth);
+
+        Integer birthYear = born == null ? null : EntityIndex.birthYear(born);
+        score(NameNormaliser.normalise(name), birthYear, position -> true, found);
+
+        if (born != null) {
+            for (Map.Entry<Integer, ScoredMatches.Match> entry : found.entrySet()) {
+                Date entityBorn = this.index.entity(entry.getKey()).dateOfBirth;
+                if (entityBorn != null) {
+                    entry.getValue().dateOfBirthMatch = new LocalDate(entityBorn).equals(new LocalDate(born));
+                }
+            }
+        }
+
+        return results(found);
+    }
+
+    private void score(
+            String matchKey,
+            Integer birthYear,
+            IntPredicate filter,
+            Map<Integer, ScoredMatches.Match> found
+    ) {
+
+        if (matchKey.isEmpty()) return;
+
+        String signature = EntityIndex.signature(matchKey);
+        BitSet block = this.index.block(matchKey, birthYear);
+
+        for (int position = block.nextSetBit(0); position >= 0; position = block.nextSetBit(position + 1)) {
+            if (found.containsKey(position) || !filter.test(position)) continue;
+
+            String candidate = this.index.matchKey(position);
+            if (candidate.isEmpty()) continue;
+
+            double score = Math.max(
+                    JaroWinkler.similarity(matchKey, candidate),
+                    JaroWinkler.similarity(signature, EntityIndex.signature(candidate))
+            );
+
+            if (score >= this.threshold) {
+                found.put(position, new ScoredMatches.Match(this.index.entity(position), score));
+            }
+        }
+    }
+
+    /**
+     * Best first. For people a known matching date of birth ranks above any name score, and a known different one
+     * below.
+     */
+    private ScoredMatches results(Map<Integer, ScoredMatches.Match> found) {
+
+        ScoredMatches results = new ScoredMatches(this.threshold);
+
+        found.values().stream()
+                .sorted(Comparator
+                        .comparingInt((ScoredMatches.Match match) -> dateOfBirthRank(match.dateOfBirthMatch))
+                        .thenComparing(match -> match.score, Comparator.reverseOrder()))
+                .limit(MAX_MATCHES)
+                .forEach(results.matches::add);
+
+        return results;
+    }
+
+    private static Date parseDateOfBirth(String dateOfBirth) {
+
+        if (dateOfBirth == null || dateOfBirth.trim().isEmpty()) return null;
+
+        if (SearchHelper.dateStringToDateTime(dateOfBirth.trim()) == null) {
+            throw new IllegalArgumentException("Unrecognised date of birth " + dateOfBirth);
+        }
+
+        return SearchHelper.dateStringToDate(dateOfBirth.trim(), false).toDate();
+    }
+
+    private static int dateOfBirthRank(Boolean dateOfBirthMatch) {
+
+        if (dateOfBirthMatch == null) return 1;
+
+        return dateOfBirthMatch ? 0 : 2;
+    }
+}
@@ -0,0 +1,69 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+/**
+ * Jaro-Winkler similarity between two strings, from 0 (nothing in common) to 1 (identical).
+ *
+ * Jaro counts the characters the strings share, allowing each to be a little out of place, and penalises those that
+ * are swapped. Winkler then boosts the score of strings that start the same, as mistakes tend to be made later in a
+ * name. This makes it a good fit for names, where a single typo or transposed pair of letters still scores highly.
+ */
+public final class JaroWinkler {
+
+    private static final double SCALING_FACTOR = 0.1;
+    private static final int MAX_PREFIX = 4;
+
+    private JaroWinkler() {
+    }
+
+    public static double similarity(String first, String second) {
+
+        if (first.equals(second)) return 1.0;
+        if (first.isEmpty() || second.isEmpty()) return 0.0;
+
+        double jaro = jaro(first, second);
+
+        int prefix = 0;
+        int maxPrefix = Math.min(MAX_PREFIX, Math.min(first.length(), second.length()));
+        while (prefix < maxPrefix && first.charAt(prefix) == second.charAt(prefix)) prefix++;
+
+        return jaro + prefix * SCALING_FACTOR * (1 - jaro);
+    }
+
+    private static double jaro(String first, String second) {
+
+        int window = Math.max(0, Math.max(first.length(), second.length()) / 2 - 1);
+
+        boolean[] firstMatched = new boolean[first.length()];
+        boolean[] secondMatched = new boolean[second.length()];
+        int matches = 0;
+
+        for (int i = 0; i < first.length(); i++) {
+            int from = Math.max(0, i - window);
+            int to = Math.min(second.length() - 1, i + window);
+            for (int j = from; j <= to; j++) {
+                if (!secondMatched[j] && first.charAt(i) == second.charAt(j)) {
+                    firstMatched[i] = true;
+                    secondMatched[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+
+        if (matches == 0) return 0.0;
+
+        // Count the matched characters that appear in a different order in each string
+        int outOfOrder = 0;
+        int j = 0;
+        for (int i = 0; i < first.length(); i++) {
+            if (!firstMatched[i]) continue;
+            while (!secondMatched[j]) j++;
+            if (first.charAt(i) != second.charAt(j)) outOfOrder++;
+            j++;
+        }
+
+        double m = matches;
+
+        return (m / first.length() + m / second.length() + (m - outOfOrder / 2.0) / m) / 3.0;
+    }
+}
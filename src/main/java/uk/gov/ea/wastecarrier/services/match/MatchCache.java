@@ -0,0 +1,103 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Holds the results of recent company and person matches. The frontend makes the same matches again as users go
+ * back and forth through a registration, so these are often repeated.
+ *
+ * Results are keyed on the normalised name, number and date of birth the match was made on (see
+ * `CompanyMatch.cacheKey()` and `PersonMatch.cacheKey()`), so names that only differ in case or punctuation share
+ * an entry. The least recently used are dropped once the cache is full.
+ *
+ * Each result is tagged with the generation of the entities it was matched against (see `EntityIndexHolder.Current`).
+ * When the entities are reloaded the generation goes up, and every result from before is treated as missing, so a
+ * reload invalidates the whole cache at once without having to clear it.
+ */
+public class MatchCache {
+
+    private final Cache<String, Entry> cache;
+
+    private final AtomicLong stale = new AtomicLong();
+
+    /**
+     * @param maxResults the most results to hold
+     * @param metrics registry to report hits, misses and evictions to, or null
+     */
+    public MatchCache(long maxResults, MetricRegistry metrics) {
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxResults)
+                .recordStats()
+                .build();
+
+        if (metrics != null) registerMetrics(metrics);
+    }
+
+    /**
+     * Returns the cached result for the key if we have one from the same entities, else makes the match.
+     *
+     * A result is cached under the generation it's given, so that must be the generation of the index the match
+     * runs against, taken along with it. Were the entities reloaded since, the result is already out of date and
+     * won't be returned for the new ones.
+     *
+     * @param key the normalised inputs to the match
+     * @param generation the generation of the entities the match runs against
+     * @param match makes the match, returning the matched entity or null
+     * @return the matched entity, or null if there was no match
+     */
+    public Entity get(String key, long generation, Supplier<Entity> match) {
+
+        Entry entry = this.cache.getIfPresent(key);
+        if (entry != null && entry.generation == generation) return entry.entity;
+        if (entry != null) this.stale.incrementAndGet();
+
+        Entity entity = match.get();
+        this.cache.put(key, new Entry(generation, entity));
+
+        return entity;
+    }
+
+    private void registerMetrics(MetricRegistry metrics) {
+        metrics.register(MetricRegistry.name(MatchCache.class, "hits"),
+                (Gauge<Long>) () -> this.cache.stats().hitCount() - this.stale.get());
+        metrics.register(MetricRegistry.name(MatchCache.class, "misses"),
+                (Gauge<Long>) () -> this.cache.stats().missCount() + this.stale.get());
+        metrics.register(MetricRegistry.name(MatchCache.class, "hit-ratio"),
+                (Gauge<Double>) this::hitRatio);
+        metrics.register(MetricRegistry.name(MatchCache.class, "evictions"),
+                (Gauge<Long>) () -> this.cache.stats().evictionCount());
+        metrics.register(MetricRegistry.name(MatchCache.class, "results"),
+                (Gauge<Long>) this.cache::size);
+    }
+
+    /**
+     * @return the share of lookups answered from the cache. A result from older entities counts as a miss
+     */
+    double hitRatio() {
+
+        long requests = this.cache.stats().requestCount();
+        if (requests == 0) return 1.0;
+
+        return (double) (this.cache.stats().hitCount() - this.stale.get()) / requests;
+    }
+
+    private static class Entry {
+
+        private final long generation;
+        // Null when nothing matched, which is just as worth caching
+        private final Entity entity;
+
+        private Entry(long generation, Entity entity) {
+            this.generation = generation;
+            this.entity = entity;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import com.codahale.metrics.MetricRegistry;
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import org.mongojack.DBQuery;
+import org.mongojack.JacksonDBCollection;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.search.QueryShape;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the stages of a company or person match as a single aggregation, so a match that finds nothing costs one
+ * round trip rather than one per stage.
+ *
+ * The pipeline selects every entity any stage could match, tags each with the first stage (in order of precedence)
+ * that matches it, and sorts on that tag so the entity the stages would have found one after the other comes first.
+ * Stages are numbered from 0 in order of precedence.
+ *
+ * The sort can't use an index, as it's on a computed field, so it's done in memory. It's followed by a `$limit` of 1,
+ * which MongoDB merges into it so it only ever holds the best candidate so far. That keeps its memory to one document
+ * however many candidates there are, well under the 100MB a blocking sort is allowed, but it still reads every
+ * candidate. The candidates are selected on an index, and a name or company number should only ever have a handful,
+ * but one that's very common, such as a single word name, costs a document read for each entity that has it. We
+ * don't cut the candidates off with a `$limit` of their own, as then the best match could be one of those dropped.
+ * `queryShapes()` on each match explains this pipeline, so `QueryPlanTask` shows how many candidates it reads.
+ */
+final class MatchPipeline {
+
+    // Computed field holding the stage that matched. It's removed before the entity is mapped
+    private static final String STAGE_FIELD = "matchStage";
+
+    // Given to candidates no stage matches, which the $match should mean there aren't any of
+    private static final int NO_STAGE = Integer.MAX_VALUE;
+
+    /**
+     * The entity matched, and the stage that matched it.
+     */
+    static final class Result {
+
+        final Entity entity;
+        final int stage;
+
+        private Result(Entity entity, int stage) {
+            this.entity = entity;
+            this.stage = stage;
+        }
+    }
+
+    private MatchPipeline() {
+    }
+
+    /**
+     * @param candidates query selecting every entity any of the stages could match
+     * @param stages aggregation expressions, one per stage in order of precedence, each true if it matches
+     * @param sortField where more than one entity matches the same stage, the lowest value of this field wins
+     * @return the best match, or null if nothing matched
+     */
+    static Result first(
+            JacksonDBCollection<Entity, String> collection,
+            DBQuery.Query candidates,
+            List<DBObject> stages,
+            String sortField
+    ) {
+
+        List<DBObject> pipeline = pipeline(collection, candidates, stages, sortField);
+
+        try (Cursor cursor = collection.getDbCollection().aggregate(pipeline, AggregationOptions.builder().build())) {
+            if (!cursor.hasNext()) return null;
+
+            DBObject document = cursor.next();
+            int stage = ((Number) document.removeField(STAGE_FIELD)).intValue();
+            if (stage == NO_STAGE) return null;
+
+            return new Result(collection.convertFromDbObject(document), stage);
+        }
+    }
+
+    /**
+     * The aggregation `first()` runs, so `QueryPlan` can explain it. The parameters are the same.
+     */
+    static QueryShape shape(
+            String name,
+            JacksonDBCollection<Entity, String> collection,
+            DBQuery.Query candidates,
+            List<DBObject> stages,
+            String sortField
+    ) {
+        return QueryShape.aggregation(
+                name,
+                collection,
+                collection.serializeQuery(candidates),
+                pipeline(collection, candidates, stages, sortField)
+        );
+    }
+
+    private static List<DBObject> pipeline(
+            JacksonDBCollection<Entity, String> collection,
+            DBQuery.Query candidates,
+            List<DBObject> stages,
+            String sortField
+    ) {
+
+        BasicDBList branches = new BasicDBList();
+        for (int stage = 0; stage < stages.size(); stage++) {
+            branches.add(new BasicDBObject("case", stages.get(stage)).append("then", stage));
+        }
+
+        return Arrays.asList(
+                new BasicDBObject("$match", collection.serializeQuery(candidates)),
+                new BasicDBObject("$addFields", new BasicDBObject(STAGE_FIELD, new BasicDBObject(
+                        "$switch",
+                        new BasicDBObject("branches", branches).append("default", NO_STAGE)
+                ))),
+                new BasicDBObject("$sort", new BasicDBObject(STAGE_FIELD, 1).append(sortField, 1)),
+                new BasicDBObject("$limit", 1)
+        );
+    }
+
+    /**
+     * Counts a match made by the stage, or one that found nothing if the stage is null.
+     *
+     * @param metrics where to count it, or null to not
+     */
+    static void record(MetricRegistry metrics, Class<?> matcher, String stage) {
+
+        if (metrics == null) return;
+
+        metrics.meter(stage == null
+                ? MetricRegistry.name(matcher, "misses")
+                : MetricRegistry.name(matcher, "hits", stage)
+        ).mark();
+    }
+
+    static DBObject equal(String field, Object value) {
+        return new BasicDBObject("$eq", Arrays.asList("$" + field, value));
+    }
+
+    // An unset field is treated as null, just as it is by DBQuery.is(field, null)
+    static DBObject isNull(String field) {
+        return new BasicDBObject("$eq", Arrays.asList(
+                new BasicDBObject("$ifNull", Arrays.asList("$" + field, null)),
+                null
+        ));
+    }
+
+    // Every one of the values is in the field's array, as with DBQuery.all()
+    static DBObject containsAll(String field, List<String> values) {
+        return new BasicDBObject("$setIsSubset", Arrays.asList(
+                values,
+                new BasicDBObject("$ifNull", Arrays.asList("$" + field, new BasicDBList()))
+        ));
+    }
+
+    // For a stage we can't make, such as one on the company number when we weren't given one
+    static DBObject never() {
+        return new BasicDBObject("$literal", false);
+    }
+
+    static DBObject and(DBObject... expressions) {
+        return new BasicDBObject("$and", Arrays.asList(expressions));
+    }
+}
@@ -0,0 +1,116 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import uk.gov.ea.wastecarrier.services.core.Entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reduces a name to the form we match on. It's used both when entities are imported, to set their `normalisedName`
+ * and `nameTokens`, and on the names we're asked to match, so the two always agree.
+ *
+ * A normalised name is lower case, with anything that isn't a letter or digit treated as a space, and with the words
+ * in `IGNORED_WORDS` removed. So 'Isaacs Waste Services Ltd.' becomes 'isaacs waste'.
+ */
+public final class NameNormaliser {
+
+    // Create a list of words we IGNORE when matching names.
+    // Make sure to only use lower-case.
+    public static final Set<String> IGNORED_WORDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            // Company types / suffixes.
+            "limited", "ltd", "plc", "inc", "incorporated", "llp", "lp", "company",
+            "co", "holdings", "investments", "services", "technologies", "solutions",
+            "group", "cyf", "cyfyngedig", "ccc", "cic", "cio", "ag", "corp", "eurl",
+            "gmbh", "sa", "sarl", "sp", "prc", "partners", "lc",
+            // Locations.
+            "uk", "gb", "europe", "intl", "international", "england", "wales",
+            "scotland", "cymru"
+    )));
+
+    /**
+     * The version of the fields `apply()` sets. It's part of each entity's row hash (see `EntityRowHash`), so going
+     * up by one whenever any of them would come out differently, say because `IGNORED_WORDS` or the phonetic keys
+     * change, has the next incremental import rewrite every entity.
+     *
+     * 2: phonetic keys are no longer cut to 4 characters
+     */
+    public static final int DERIVATION_VERSION = 2;
+
+    private NameNormaliser() {
+    }
+
+    /**
+     * Builds the result in a single pass over the name. Each word is appended as it's read, and taken off again if it
+     * turns out to be one we ignore, so the only strings created are the result and the words checked.
+     *
+     * @return the normalised name, or an empty string if there is nothing left
+     */
+    public static String normalise(String name) {
+
+        if (name == null) return "";
+
+        StringBuilder normalised = new StringBuilder(name.length());
+        int wordStart = -1;
+
+        for (int i = 0; i <= name.length(); i++) {
+            char c = i < name.length() ? name.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c)) {
+                if (wordStart < 0) {
+                    if (normalised.length() > 0) normalised.append(' ');
+                    wordStart = normalised.length();
+                }
+                normalised.append(Character.toLowerCase(c));
+            } else if (wordStart >= 0) {
+                if (IGNORED_WORDS.contains(normalised.substring(wordStart))) {
+                    normalised.setLength(Math.max(0, wordStart - 1));
+                }
+                wordStart = -1;
+            }
+        }
+
+        return normalised.toString();
+    }
+
+    /**
+     * @param normalised a name already normalised
+     * @return the distinct words of the name, in the order they appear
+     */
+    public static List<String> tokens(String normalised) {
+
+        List<String> tokens = new ArrayList<>();
+        if (normalised.isEmpty()) return tokens;
+
+        int start = 0;
+        while (start <= normalised.length()) {
+            int end = normalised.indexOf(' ', start);
+            if (end < 0) end = normalised.length();
+
+            String token = normalised.substring(start, end);
+            if (!tokens.contains(token)) tokens.add(token);
+
+            start = end + 1;
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Sets the fields we match the entity on: its `normalisedName` and `nameTokens`, its `canonicalCompanyNumber`
+     * (see `CompanyNumberNormaliser`), and its `phoneticKeys` and `dateOfBirthDay` (see `PersonKeys`).
+     */
+    public static Entity apply(Entity entity) {
+
+        entity.normalisedName = normalise(entity.name);
+        entity.nameTokens = tokens(entity.normalisedName);
+        entity.canonicalCompanyNumber = CompanyNumberNormaliser.canonical(entity.companyNumber);
+        entity.phoneticKeys = PersonKeys.phoneticKeys(entity.name);
+        entity.dateOfBirthDay = PersonKeys.dateOfBirthDay(entity.dateOfBirth);
+
+        return entity;
+    }
+}
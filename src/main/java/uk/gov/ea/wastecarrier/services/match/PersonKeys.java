@@ -0,0 +1,96 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The keys we match people on, set on the entities when they're imported (see `NameNormaliser.apply()`) and worked out
+ * from the names and date of birth we're asked to match.
+ *
+ * Names are matched on the Double Metaphone key of each word, so spellings that sound the same, such as 'Steven' and
+ * 'Stephen', match. An entity holds both the primary and alternate key of each word of its name, while a search only
+ * uses the primary keys, so a name that could be said either way is still found.
+ *
+ * Dates of birth are matched on the day, held as the number of days since 1 January 1970. That avoids the range query
+ * we would otherwise need to ignore the time.
+ */
+public final class PersonKeys {
+
+    // By default the keys are cut to 4 characters, which leaves longer surnames such as 'Richardson' and 'Richards'
+    // sharing one. This is long enough for any name we're likely to see
+    private static final int MAX_KEY_LENGTH = 16;
+
+    // Shared as it holds no state once configured
+    private static final DoubleMetaphone ENCODER = encoder();
+
+    private PersonKeys() {
+    }
+
+    /**
+     * @return the distinct primary and alternate keys of every word in the name, for storing on an entity
+     */
+    public static List<String> phoneticKeys(String name) {
+
+        List<String> keys = new ArrayList<>();
+
+        for (String word : words(name)) {
+            add(keys, ENCODER.doubleMetaphone(word, false));
+            add(keys, ENCODER.doubleMetaphone(word, true));
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return the distinct primary keys of every word in the names, for searching on. Empty if there are none
+     */
+    public static List<String> searchKeys(String... names) {
+
+        List<String> keys = new ArrayList<>();
+
+        for (String name : names) {
+            for (String word : words(name)) add(keys, ENCODER.doubleMetaphone(word, false));
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return the day of birth as days since 1 January 1970, or null if we don't know it
+     */
+    public static Integer dateOfBirthDay(Date dateOfBirth) {
+
+        if (dateOfBirth == null) return null;
+
+        return Days.daysBetween(new LocalDate(1970, 1, 1), new LocalDate(dateOfBirth)).getDays();
+    }
+
+    private static DoubleMetaphone encoder() {
+
+        DoubleMetaphone encoder = new DoubleMetaphone();
+        encoder.setMaxCodeLen(MAX_KEY_LENGTH);
+
+        return encoder;
+    }
+
+    private static List<String> words(String name) {
+
+        List<String> words = new ArrayList<>();
+        if (name == null) return words;
+
+        for (String word : name.split("[^\\p{L}]+")) {
+            if (!word.isEmpty()) words.add(word);
+        }
+
+        return words;
+    }
+
+    private static void add(List<String> keys, String key) {
+        if (key != null && !key.isEmpty() && !keys.contains(key)) keys.add(key);
+    }
+}
@@ -1,53 +1,102 @@
 package uk.gov.ea.wastecarrier.services.match;
 
+import com.codahale.metrics.MetricRegistry;
+import com.mongodb.DBObject;
 import org.mongojack.DBQuery;
 import org.mongojack.JacksonDBCollection;
 import uk.gov.ea.wastecarrier.services.core.Entity;
 import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
+import uk.gov.ea.wastecarrier.services.search.QueryShape;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
+/**
+ * Matches a person against the conviction entities on the phonetic keys of their name and, if we have it, their day
+ * of birth (see `PersonKeys`). Every word of the first and last names must sound like a word in the entity's name.
+ * Someone born on the same day takes precedence over someone who just has the same name.
+ */
 public class PersonMatch {
 
     private SearchHelper helper;
+    private EntityIndex index;
+    private MetricRegistry metrics;
     private Logger log = Logger.getLogger(PersonMatch.class.getName());
 
+    /**
+     * The stages of the match in order of precedence, and the names we count their hits under.
+     */
+    private enum Stage {
+        NAME_AND_DATE_OF_BIRTH("name-and-date-of-birth"),
+        NAME("name");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
     private String firstName;
     private String lastName;
-    private Date dateOfBirth;
+    private List<String> phoneticKeys;
+    private Integer dateOfBirthDay;
 
     public PersonMatch(SearchHelper helper, String firstName, String lastName, String dateOfBirth) {
         this.helper = helper;
         this.firstName = parseName(firstName);
         this.lastName = parseName(lastName);
-        this.dateOfBirth = parseDateOfBirth(dateOfBirth);
+        this.phoneticKeys = PersonKeys.searchKeys(this.firstName, this.lastName);
+        this.dateOfBirthDay = parseDateOfBirth(dateOfBirth);
+    }
+
+    /**
+     * Match against the in memory `EntityIndex` rather than the database. The result is the same.
+     */
+    public PersonMatch(EntityIndex index, String firstName, String lastName, String dateOfBirth) {
+        this.index = index;
+        this.firstName = parseName(firstName);
+        this.lastName = parseName(lastName);
+        this.phoneticKeys = PersonKeys.searchKeys(this.firstName, this.lastName);
+        this.dateOfBirthDay = parseDateOfBirth(dateOfBirth);
+    }
+
+    /**
+     * @param metrics registry to count the hits for each stage of the match in, or null to not count them
+     */
+    public void setMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
     }
 
+    /**
+     * Everyone born on the day whose name matches also matches on the name alone, so a single query on the name
+     * selects the candidates for both stages.
+     */
     public Entity execute() {
 
-        if ((this.firstName + this.lastName).isEmpty()) return null;
+        if (this.phoneticKeys.isEmpty()) return null;
+
+        if (this.index != null) return indexMatch();
 
         JacksonDBCollection<Entity, String> collection = this.helper.getCollection();
 
-        Entity document = null;
+        Entity document;
 
         try {
-            // If we have a date of birth run a search including that first
-            if (this.dateOfBirth != null) document = nameAndDateOfBirthMatch(collection);
+            MatchPipeline.Result result = MatchPipeline.first(collection, nameQuery(), stages(), "_id");
 
-            // If no match try again this time without the date of birth
-            if (document == null) document = nameMatch(collection);
+            document = result == null ? null : result.entity;
+            record(result == null ? null : Stage.values()[result.stage]);
         } catch (IllegalArgumentException e) {
             log.severe(String.format(
                     "Error matching person %s %s %s: %s",
                     this.firstName,
                     this.lastName,
-                    this.dateOfBirth.toString(),
+                    this.dateOfBirthDay,
                     e.getMessage()
             ));
             throw new WebApplicationException(Response.Status.NOT_FOUND);
@@ -56,54 +105,67 @@ public class PersonMatch {
         return document;
     }
 
-    private Entity nameAndDateOfBirthMatch(JacksonDBCollection<Entity, String> collection) {
-
-        DBQuery.Query query = DBQuery.and(DBQuery
-                .greaterThanEquals("dateOfBirth", this.dateOfBirth)
-                .lessThan("dateOfBirth", dateOfBirthPlusOne())
-        );
+    /**
+     * @return the phonetic keys and day of birth the match is made on, so matches that would give the same result
+     * share a key (see `MatchCache`)
+     */
+    public String cacheKey() {
 
-        // If you place these in the and() at the same time they seems to work as an OR
-        // hence we add them separately
-        query.and(DBQuery.regex("name", generateNameLikePattern(this.firstName)));
-        query.and(DBQuery.regex("name", generateNameLikePattern(this.lastName)));
+        String day = this.dateOfBirthDay == null ? "" : this.dateOfBirthDay.toString();
 
-        return collection.findOne(query);
+        return "person|" + String.join(" ", this.phoneticKeys) + "|" + day;
     }
 
     /**
-     * There is no way to query MongoDB with a date and say ignore the time. Because of
-     * timeszones and such this can make trying to compare dates exactly frustrating.
-     * So we have to resort to providing a range. In our case the date of birth
-     * passed in will be converted to a the very start of the specified date.
-     *
-     * With our range we are saying match any date value for the specified day at any
-     * time. So match where greater than or equal to the requested date of birth, but less
-     * than whatever the date is that follows it.
-     * @return
+     * The aggregation `execute()` runs against the collection, so `QueryPlan` can explain it.
      */
-    private Date dateOfBirthPlusOne() {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(this.dateOfBirth);
-        cal.add(Calendar.DATE, 1);
-        return cal.getTime();
+    public List<QueryShape> queryShapes() {
+        return Collections.singletonList(MatchPipeline.shape(
+                "person match",
+                this.helper.getCollection(),
+                nameQuery(),
+                stages(),
+                "_id"
+        ));
     }
 
-    private Entity nameMatch(JacksonDBCollection<Entity, String> collection) {
+    private Entity indexMatch() {
+
+        Entity document = null;
+        Stage stage = Stage.NAME;
+
+        if (this.dateOfBirthDay != null) {
+            document = this.index.findPersonByNameAndDateOfBirth(this.phoneticKeys, this.dateOfBirthDay);
+            if (document != null) stage = Stage.NAME_AND_DATE_OF_BIRTH;
+        }
+        if (document == null) document = this.index.findPersonByName(this.phoneticKeys);
+
+        record(document == null ? null : stage);
 
-        // If you place these in the and() at the same time they seems to work as an OR
-        // hence we add them separately
-        DBQuery.Query query = DBQuery.and(DBQuery
-                .regex("name", generateNameLikePattern(this.firstName)));
-        query.and(DBQuery.regex("name", generateNameLikePattern(this.lastName)));
+        return document;
+    }
+
+    /**
+     * The test for each stage, in the order of `Stage`. Without a date of birth only the name can match.
+     */
+    private List<DBObject> stages() {
+
+        DBObject bornOnTheDay = this.dateOfBirthDay == null
+                ? MatchPipeline.never()
+                : MatchPipeline.equal("dateOfBirthDay", this.dateOfBirthDay);
+
+        return Arrays.asList(
+                bornOnTheDay,
+                MatchPipeline.containsAll("phoneticKeys", this.phoneticKeys)
+        );
+    }
 
-        return collection.findOne(query);
+    private void record(Stage stage) {
+        MatchPipeline.record(this.metrics, PersonMatch.class, stage == null ? null : stage.metricName);
     }
 
-    private Pattern generateNameLikePattern(String name) {
-        return Pattern.compile(
-                String.format(".*%s.*", name),
-                Pattern.CASE_INSENSITIVE);
+    private DBQuery.Query nameQuery() {
+        return DBQuery.all("phoneticKeys", this.phoneticKeys);
     }
 
     private String parseName(String name) {
@@ -113,10 +175,10 @@ public class PersonMatch {
         return name.trim();
     }
 
-    private Date parseDateOfBirth(String dateOfBirth) {
+    private Integer parseDateOfBirth(String dateOfBirth) {
 
         if (dateOfBirth == null || dateOfBirth.isEmpty()) return null;
 
-        return SearchHelper.dateStringToDate(dateOfBirth, false).toDate();
+        return PersonKeys.dateOfBirthDay(SearchHelper.dateStringToDate(dateOfBirth, false).toDate());
     }
 }
@@ -0,0 +1,107 @@
+package uk.gov.ea.wastecarrier.services.match;
+
+import com.mongodb.BasicDBObject;
+import org.joda.time.LocalDate;
+import uk.gov.ea.wastecarrier.services.core.ConvictionSearchResult;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.core.KeyPerson;
+import uk.gov.ea.wastecarrier.services.core.Registration;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Re-runs the conviction checks for a registration against the entities we hold now, as `MatchResource` did when it
+ * was submitted, and works out which of its results have changed. Used by `RescreenTask` after a new conviction list
+ * has been loaded.
+ *
+ * A result is only replaced when what it matched is different: the match result, system, reference or name. Results
+ * that are the same keep their original search date and confirmation, so re-screening doesn't undo a conviction
+ * check that has already been signed off.
+ */
+public final class RegistrationRescreen {
+
+    private static final String RESULT_FIELD = "conviction_search_result";
+
+    private RegistrationRescreen() {
+    }
+
+    /**
+     * @param index the entities to match against
+     * @param registration the registration, which needs at least its company name and number and its key people
+     * @param searchedAt when the new results were searched
+     * @return the fields to `$set` on the registration, empty if none of its results have changed
+     */
+    public static BasicDBObject changes(EntityIndex index, Registration registration, Date searchedAt) {
+
+        BasicDBObject changes = new BasicDBObject();
+
+        ConvictionSearchResult company = result(
+                new CompanyMatch(index, registration.getCompanyName(), registration.getCompanyNo()).execute(),
+                searchedAt
+        );
+        if (changed(registration.getConvictionSearchResult(), company)) {
+            changes.append(RESULT_FIELD, toDbObject(company));
+        }
+
+        List<KeyPerson> people = registration.getKeyPeople();
+        if (people == null) return changes;
+
+        for (int i = 0; i < people.size(); i++) {
+            KeyPerson person = people.get(i);
+
+            ConvictionSearchResult result = result(
+                    new PersonMatch(
+                            index,
+                            person.getFirstName(),
+                            person.getLastName(),
+                            dateOfBirth(person.getDateOfBirth())
+                    ).execute(),
+                    searchedAt
+            );
+            if (changed(person.getConvictionSearchResult(), result)) {
+                changes.append("key_people." + i + "." + RESULT_FIELD, toDbObject(result));
+            }
+        }
+
+        return changes;
+    }
+
+    private static ConvictionSearchResult result(Entity match, Date searchedAt) {
+
+        ConvictionSearchResult result = new ConvictionSearchResult();
+        result.searchedAt = searchedAt;
+        result.update(match);
+
+        return result;
+    }
+
+    private static boolean changed(ConvictionSearchResult current, ConvictionSearchResult latest) {
+
+        if (current == null) return true;
+
+        return current.matchResult != latest.matchResult
+                || !Objects.equals(current.matchingSystem, latest.matchingSystem)
+                || !Objects.equals(current.reference, latest.reference)
+                || !Objects.equals(current.matchedName, latest.matchedName);
+    }
+
+    // PersonMatch takes the date of birth as it would be entered
+    private static String dateOfBirth(Date dateOfBirth) {
+        return dateOfBirth == null ? null : new LocalDate(dateOfBirth).toString("dd-MM-yyyy");
+    }
+
+    private static BasicDBObject toDbObject(ConvictionSearchResult result) {
+
+        BasicDBObject dbObject = new BasicDBObject("match_result", result.matchResult.name());
+
+        if (result.matchingSystem != null) dbObject.append("matching_system", result.matchingSystem);
+        if (result.reference != null) dbObject.append("reference", result.reference);
+        if (result.matchedName != null) dbObject.append("matched_name", result.matchedName);
+        dbObject.append("searched_at", result.searchedAt);
+        dbObject.append("confirmed", result.confirmed);
+
+        return dbObject;
+    }
+}
@@ -1,19 +1,39 @@
 package uk.gov.ea.wastecarrier.services.resources;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
 import com.mongodb.MongoException;
+import org.mongojack.JacksonDBCollection;
 import uk.gov.ea.wastecarrier.services.DatabaseConfiguration;
+import uk.gov.ea.wastecarrier.services.core.BatchMatchRequest;
+import uk.gov.ea.wastecarrier.services.core.BatchMatchResult;
 import uk.gov.ea.wastecarrier.services.core.ConvictionSearchResult;
 import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.core.ScoredMatches;
 import uk.gov.ea.wastecarrier.services.dao.EntityDao;
 import uk.gov.ea.wastecarrier.services.helper.DatabaseHelper;
 import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
 import uk.gov.ea.wastecarrier.services.match.CompanyMatch;
+import uk.gov.ea.wastecarrier.services.match.EntityIndex;
+import uk.gov.ea.wastecarrier.services.match.EntityIndexHolder;
+import uk.gov.ea.wastecarrier.services.match.FuzzyMatch;
+import uk.gov.ea.wastecarrier.services.match.MatchCache;
 import uk.gov.ea.wastecarrier.services.match.PersonMatch;
 
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 @Path("/match")
@@ -25,11 +45,48 @@ public class MatchResource {
 
     private final SearchHelper searchHelper;
 
+    private final EntityIndexHolder entityIndex;
+
+    private final ExecutorService executor;
+
+    private final MatchCache matchCache;
+
+    private final MetricRegistry metrics;
+
     public MatchResource(DatabaseConfiguration configuration) {
+        this(configuration, null, null, null, null);
+    }
+
+    public MatchResource(
+            DatabaseConfiguration configuration,
+            EntityIndexHolder entityIndex,
+            ExecutorService executor
+    ) {
+        this(configuration, entityIndex, executor, null, null);
+    }
+
+    /**
+     * @param configuration the entity matching database
+     * @param entityIndex the in memory entities to match against, or null to always query the database
+     * @param executor bounded executor the batch match can use to run its matches concurrently, or null
+     * @param matchCache recent company and person match results, or null to always make the match
+     * @param metrics registry to count which stage of each company and person match found it in, or null
+     */
+    public MatchResource(
+            DatabaseConfiguration configuration,
+            EntityIndexHolder entityIndex,
+            ExecutorService executor,
+            MatchCache matchCache,
+            MetricRegistry metrics
+    ) {
         this.searchHelper = new SearchHelper(
                 new DatabaseHelper(configuration),
                 new EntityDao(configuration)
         );
+        this.entityIndex = entityIndex;
+        this.executor = executor;
+        this.matchCache = matchCache;
+        this.metrics = metrics;
     }
 
     @GET
@@ -41,19 +98,12 @@ public class MatchResource {
 
         log.fine("Get Method Detected at /match/company");
 
-        ConvictionSearchResult result = new ConvictionSearchResult();
-        result.searchedAt = new Date();
-
         try {
-            CompanyMatch matcher = new CompanyMatch(this.searchHelper, name, number);
-            Entity match = matcher.execute();
-            result.update(match);
+            return companyResult(currentIndex(), name, number);
         } catch (MongoException e) {
             log.severe("Match error: " + e.getMessage());
             throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
         }
-
-        return result;
     }
 
     @GET
@@ -66,18 +116,207 @@ public class MatchResource {
 
         log.fine("Get Method Detected at /match/person");
 
-        ConvictionSearchResult result = new ConvictionSearchResult();
-        result.searchedAt = new Date();
+        try {
+            return personResult(currentIndex(), firstname, lastname, dateOfBirth);
+        } catch (MongoException e) {
+            log.severe("Match error: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Scored fuzzy match of a company (see `FuzzyMatch`). Unlike `/match/company` this returns every entity that
+     * scored at least the threshold, best first, rather than the first that matched.
+     */
+    @GET
+    @Path("/company/scored")
+    public ScoredMatches matchCompanyScored(
+            @QueryParam("name") String name,
+            @QueryParam("number") String number,
+            @QueryParam("threshold") Optional<Double> threshold
+    ) {
+
+        log.fine("Get Method Detected at /match/company/scored");
+
+        try {
+            return fuzzyMatch(threshold).company(name, number);
+        } catch (IllegalArgumentException e) {
+            log.info("Bad match request: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        } catch (MongoException e) {
+            log.severe("Match error: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Scored fuzzy match of a person (see `FuzzyMatch`). Where a date of birth is given, entities known to share it
+     * are returned first.
+     */
+    @GET
+    @Path("/person/scored")
+    public ScoredMatches matchPersonScored(
+            @QueryParam("firstname") String firstname,
+            @QueryParam("lastname") String lastname,
+            @QueryParam("dateofbirth") String dateOfBirth,
+            @QueryParam("threshold") Optional<Double> threshold
+    ) {
+
+        log.fine("Get Method Detected at /match/person/scored");
+
+        try {
+            return fuzzyMatch(threshold).person(firstname, lastname, dateOfBirth);
+        } catch (IllegalArgumentException e) {
+            log.info("Bad match request: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        } catch (MongoException e) {
+            log.severe("Match error: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Screens a company and all its key people in one call, rather than the client calling `/match/company` and then
+     * `/match/person` for each person in turn. Where we have an executor the matches are run at the same time, so the
+     * call takes about as long as the slowest of them. Every match is made against the same copy of the entities,
+     * even if they're reloaded part way through.
+     *
+     * The results are returned in the same order as the people were sent. Sending no people, or null for them, just
+     * screens the company; a null in place of a person is a bad request.
+     */
+    @POST
+    @Path("/batch")
+    public BatchMatchResult matchBatch(@Valid @NotNull BatchMatchRequest request) {
+
+        log.fine("Post Method Detected at /match/batch");
+
+        // Every match runs against this index, and caches its result under its generation, even if the entities are
+        // reloaded before the executor gets to it
+        EntityIndexHolder.Current index = currentIndex();
+
+        List<Callable<ConvictionSearchResult>> matches = new ArrayList<>();
+        if (request.company != null) {
+            matches.add(() -> companyResult(index, request.company.name, request.company.number));
+        }
+        List<BatchMatchRequest.Person> people = request.people == null
+                ? Collections.<BatchMatchRequest.Person>emptyList()
+                : request.people;
+        for (BatchMatchRequest.Person person : people) {
+            if (person == null) {
+                log.info("Bad match request: null person in batch");
+                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            }
+            matches.add(() -> personResult(index, person.firstName, person.lastName, person.dateOfBirth));
+        }
 
+        List<ConvictionSearchResult> results;
         try {
-            PersonMatch matcher = new PersonMatch(this.searchHelper, firstname, lastname, dateOfBirth);
-            Entity match = matcher.execute();
-            result.update(match);
+            results = runAll(matches);
         } catch (MongoException e) {
             log.severe("Match error: " + e.getMessage());
             throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
         }
 
+        BatchMatchResult batch = new BatchMatchResult();
+        if (request.company != null) batch.company = results.remove(0);
+        batch.people = results;
+
+        return batch;
+    }
+
+    private ConvictionSearchResult companyResult(EntityIndexHolder.Current index, String name, String number) {
+
+        ConvictionSearchResult result = new ConvictionSearchResult();
+        result.searchedAt = new Date();
+
+        CompanyMatch matcher = index.index == null
+                ? new CompanyMatch(this.searchHelper, name, number)
+                : new CompanyMatch(index.index, name, number);
+        matcher.setMetrics(this.metrics);
+        result.update(cached(matcher.cacheKey(), index.generation, matcher::execute));
+
+        return result;
+    }
+
+    private ConvictionSearchResult personResult(
+            EntityIndexHolder.Current index,
+            String firstname,
+            String lastname,
+            String dateOfBirth
+    ) {
+
+        ConvictionSearchResult result = new ConvictionSearchResult();
+        result.searchedAt = new Date();
+
+        PersonMatch matcher = index.index == null
+                ? new PersonMatch(this.searchHelper, firstname, lastname, dateOfBirth)
+                : new PersonMatch(index.index, firstname, lastname, dateOfBirth);
+        matcher.setMetrics(this.metrics);
+        result.update(cached(matcher.cacheKey(), index.generation, matcher::execute));
+
         return result;
     }
+
+    private Entity cached(String key, long generation, Supplier<Entity> match) {
+        return this.matchCache == null ? match.get() : this.matchCache.get(key, generation, match);
+    }
+
+    /**
+     * Runs the matches and returns their results in the same order. Without an executor they're run one after the
+     * other on the request thread.
+     */
+    private List<ConvictionSearchResult> runAll(List<Callable<ConvictionSearchResult>> matches) {
+
+        List<ConvictionSearchResult> results = new ArrayList<>(matches.size());
+
+        if (this.executor == null || matches.size() < 2) {
+            for (Callable<ConvictionSearchResult> match : matches) results.add(call(match));
+            return results;
+        }
+
+        List<Future<ConvictionSearchResult>> futures = new ArrayList<>(matches.size());
+        try {
+            for (Callable<ConvictionSearchResult> match : matches) futures.add(this.executor.submit(match));
+            for (Future<ConvictionSearchResult> future : futures) results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<ConvictionSearchResult> future : futures) future.cancel(true);
+        }
+
+        return results;
+    }
+
+    private ConvictionSearchResult call(Callable<ConvictionSearchResult> match) {
+        try {
+            return match.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Fuzzy matching needs the entities in memory. If the index hasn't been loaded we build one for this request,
+     * which costs about as much as the collection scan a regex match would make.
+     */
+    private FuzzyMatch fuzzyMatch(Optional<Double> threshold) {
+
+        EntityIndex index = currentIndex().index;
+        if (index == null) {
+            JacksonDBCollection<Entity, String> collection = this.searchHelper.getCollection();
+            index = EntityIndex.of(collection.find().toArray());
+        }
+
+        return new FuzzyMatch(index, threshold.or(FuzzyMatch.DEFAULT_THRESHOLD));
+    }
+
+    private EntityIndexHolder.Current currentIndex() {
+        return this.entityIndex == null ? EntityIndexHolder.Current.NOT_LOADED : this.entityIndex.current();
+    }
 }
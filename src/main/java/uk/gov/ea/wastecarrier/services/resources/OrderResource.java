@@ -5,6 +5,7 @@ import uk.gov.ea.wastecarrier.services.DatabaseConfiguration;
 import uk.gov.ea.wastecarrier.services.core.Order;
 import uk.gov.ea.wastecarrier.services.core.Registration;
 import uk.gov.ea.wastecarrier.services.dao.OrderDao;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
@@ -34,10 +35,11 @@ public class OrderResource
     /**
      *
      * @param database
+     * @param reportCache cached reports to invalidate as orders are updated, or null
      */
-    public OrderResource(DatabaseConfiguration database)
+    public OrderResource(DatabaseConfiguration database, ReportCache reportCache)
     {
-        dao = new OrderDao(database);
+        dao = new OrderDao(database, reportCache);
     }
 
 
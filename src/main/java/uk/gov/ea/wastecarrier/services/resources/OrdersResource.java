@@ -11,6 +11,7 @@ import uk.gov.ea.wastecarrier.services.dao.OrderDao;
 import uk.gov.ea.wastecarrier.services.helper.PaymentHelper;
 import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
 import uk.gov.ea.wastecarrier.services.dao.UserDao;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
@@ -44,12 +45,13 @@ public class OrdersResource
     /**
      *
      * @param database
+     * @param reportCache cached reports to invalidate as orders are added, or null
      */
     public OrdersResource(DatabaseConfiguration database, DatabaseConfiguration userDatabase,
-            SettingsConfiguration settingConfig)
+            SettingsConfiguration settingConfig, ReportCache reportCache)
     {
-        dao = new OrderDao(database);
-        regDao = new RegistrationDao(database);
+        dao = new OrderDao(database, reportCache);
+        regDao = new RegistrationDao(database, reportCache);
         userDao = new UserDao(userDatabase);
         paymentHelper = new PaymentHelper(new Settings(settingConfig));
     }
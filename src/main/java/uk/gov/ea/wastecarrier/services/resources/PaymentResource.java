@@ -11,6 +11,7 @@ import uk.gov.ea.wastecarrier.services.helper.PaymentHelper;
 import uk.gov.ea.wastecarrier.services.dao.PaymentDao;
 import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
 import uk.gov.ea.wastecarrier.services.dao.UserDao;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
@@ -45,12 +46,13 @@ public class PaymentResource
     /**
      *
      * @param database
+     * @param reportCache cached reports to invalidate as payments are added, or null
      */
     public PaymentResource(DatabaseConfiguration database, DatabaseConfiguration userDatabase,
-            SettingsConfiguration settingConfig)
+            SettingsConfiguration settingConfig, ReportCache reportCache)
     {
-        dao = new PaymentDao(database);
-        regDao = new RegistrationDao(database);
+        dao = new PaymentDao(database, reportCache);
+        regDao = new RegistrationDao(database, reportCache);
         paymentHelper = new PaymentHelper(new Settings(settingConfig));
         userDao = new UserDao(userDatabase);
     }
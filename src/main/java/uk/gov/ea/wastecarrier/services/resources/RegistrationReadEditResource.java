@@ -12,6 +12,7 @@ import uk.gov.ea.wastecarrier.services.helper.PaymentHelper;
 import uk.gov.ea.wastecarrier.services.helper.RegistrationHelper;
 import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
 import uk.gov.ea.wastecarrier.services.dao.UserDao;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 
 import com.mongodb.DB;
 
@@ -46,17 +47,22 @@ public class RegistrationReadEditResource
     private RegistrationDao regDao;
     private UserDao userDao;
     private PaymentHelper paymentHelper;
+    private ReportCache reportCache;
 
     // Standard logging declaration
     private Logger log = Logger.getLogger(RegistrationReadEditResource.class.getName());
 
     public RegistrationReadEditResource(
-            DatabaseConfiguration database, DatabaseConfiguration userDatabase, SettingsConfiguration settingConfig)
+            DatabaseConfiguration database,
+            DatabaseConfiguration userDatabase,
+            SettingsConfiguration settingConfig,
+            ReportCache reportCache)
     {
         this.databaseHelper = new DatabaseHelper(database);
-        this.regDao = new RegistrationDao(database);
+        this.regDao = new RegistrationDao(database, reportCache);
         this.paymentHelper = new PaymentHelper(new Settings(settingConfig));
         this.userDao = new UserDao(userDatabase);
+        this.reportCache = reportCache;
     }
 
     /**
@@ -149,6 +155,9 @@ public class RegistrationReadEditResource
             WriteResult<Registration, String> result = registrations.updateById(id, reg);
             log.fine("Found result: '" + result + "' ");
 
+            // This write doesn't go through the DAO, so it won't have invalidated any cached reports
+            if (reportCache != null) reportCache.invalidate(id, reg);
+
             log.info("Registration updated successfully in MongoDB for ID:" + id);
             try
             {
@@ -225,6 +234,8 @@ public class RegistrationReadEditResource
                     registrations.removeById(id);
                     log.info("Deleted registration with ID:" + foundReg.getId() + " from MongoDB");
 
+                    if (reportCache != null) reportCache.invalidate(foundReg);
+
                     // Operation completed
                     return null;
                 }
@@ -12,6 +12,7 @@ import uk.gov.ea.wastecarrier.services.DatabaseConfiguration;
 import uk.gov.ea.wastecarrier.services.core.*;
 import uk.gov.ea.wastecarrier.services.core.Registration.RegistrationTier;
 import uk.gov.ea.wastecarrier.services.helper.DatabaseHelper;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
 import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
 import uk.gov.ea.wastecarrier.services.helper.RegistrationHelper;
 
@@ -34,13 +35,15 @@ public class RegistrationsResource
 {
     private final RegistrationDao dao;
     private final DatabaseHelper databaseHelper;
+    private final ReportCache reportCache;
 
     // Standard logging declaration
     private Logger log = Logger.getLogger(RegistrationsResource.class.getName());
 
-    public RegistrationsResource(DatabaseConfiguration database) {
+    public RegistrationsResource(DatabaseConfiguration database, ReportCache reportCache) {
         this.databaseHelper = new DatabaseHelper(database);
-        this.dao = new RegistrationDao(database);
+        this.dao = new RegistrationDao(database, reportCache);
+        this.reportCache = reportCache;
     }
 
     @GET
@@ -154,6 +157,8 @@ public class RegistrationsResource
 
             log.info("Found savedObject: '" + savedObject.getId() );
 
+            if (reportCache != null) reportCache.invalidate(savedObject);
+
             // Return saved object to user (returned as JSON)
             return savedObject;
         } else {
@@ -1,21 +1,33 @@
 package uk.gov.ea.wastecarrier.services.resources;
 
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import com.mongodb.MongoException;
+import io.dropwizard.jackson.Jackson;
 import org.hibernate.validator.constraints.NotEmpty;
+import org.mongojack.DBCursor;
 import uk.gov.ea.wastecarrier.services.DatabaseConfiguration;
 import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.core.RegistrationSummary;
 import uk.gov.ea.wastecarrier.services.helper.DatabaseHelper;
 import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
+import uk.gov.ea.wastecarrier.services.helper.NdjsonStreamingOutput;
 import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
 import uk.gov.ea.wastecarrier.services.search.*;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 @Path("/search")
 @Produces(MediaType.APPLICATION_JSON)
@@ -24,50 +36,128 @@ public class SearchResource {
 
     private Logger log = Logger.getLogger(OrdersResource.class.getName());
 
+    // Upper limit on the page size a client can ask for
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private final Integer defaultResultCount;
 
     private final SearchHelper searchHelper;
 
+    private final ExecutorService executor;
+
+    private final long searchMaxTimeMillis;
+
+    private final MetricRegistry metrics;
+
+    private final ReportCache reportCache;
+
+    private final ObjectMapper mapper = Registration.withoutSearchKeys(Jackson.newObjectMapper());
+
+    private final ObjectMapper projectedMapper = Registration.withoutSearchKeys(Jackson.newObjectMapper())
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
     public SearchResource(
             DatabaseConfiguration configuration,
             Integer defaultResultCount
+    ) {
+        this(configuration, defaultResultCount, null, 0, null, null);
+    }
+
+    /**
+     * @param configuration the registrations database
+     * @param defaultResultCount the number of results returned by the home screen search
+     * @param executor bounded executor the home screen search can use to run its queries concurrently, or null
+     * @param searchMaxTimeMillis how long the home screen search's queries can run on the server, or 0 for no limit
+     * @param metrics registry for recording search timings, or null
+     * @param reportCache cache for the results of the registrations, payments and copy cards reports, or null
+     */
+    public SearchResource(
+            DatabaseConfiguration configuration,
+            Integer defaultResultCount,
+            ExecutorService executor,
+            long searchMaxTimeMillis,
+            MetricRegistry metrics,
+            ReportCache reportCache
     ) {
         this.searchHelper = new SearchHelper(
                 new DatabaseHelper(configuration),
                 new RegistrationDao(configuration)
         );
         this.defaultResultCount = defaultResultCount;
+        this.executor = executor;
+        this.searchMaxTimeMillis = searchMaxTimeMillis;
+        this.metrics = metrics;
+        this.reportCache = reportCache;
     }
 
+    /**
+     * Back office home screen search. Values are matched against the start of the registration number, company name,
+     * last name or postcode. Passing `match=exact` requires the whole value to match instead, and `match=substring`
+     * finds the value anywhere in the field. Substring matches can't use an index so are much slower, and should only
+     * be used if a prefix match fails to find anything. Finally `match=text` runs a full text search across all the
+     * fields, returning the best matches first; text searches can't be paged.
+     *
+     * By default this returns the first `searchResultCount` matches. If the client passes `pageSize` or `pageToken`
+     * it instead gets a single page of results, with the token for the next page in the X-Next-Page-Token response
+     * header. Adding `hasMore` also sets X-Has-More to say whether that next page will have anything in it.
+     *
+     * Like all the searches, `fields` can be used to limit what is returned for each registration. It takes either
+     * a comma separated list of field names, or `summary` for just the details shown in the results list.
+     */
     @GET
     @Path("/registrations/{searchWithin}")
-    public List<Registration> queryWithin(
+    public Response queryWithin(
             @PathParam("searchWithin") @NotEmpty String searchWithin,
-            @QueryParam("value") @NotEmpty String searchValue
+            @QueryParam("value") @NotEmpty String searchValue,
+            @QueryParam("match") Optional<String> match,
+            @QueryParam("fields") Optional<String> fields,
+            @QueryParam("pageSize") Optional<Integer> pageSize,
+            @QueryParam("pageToken") Optional<String> pageToken,
+            @QueryParam("hasMore") Optional<String> hasMore
     ) {
         log.fine("Get Method Detected at /search/registrations/{searchWithin}");
-        List<Registration> searchResults;
 
         try {
             WithinSearch search = new WithinSearch(
                     this.searchHelper,
                     searchValue,
                     searchWithin,
+                    match.or(WithinSearch.MatchMode.prefix.name()),
                     defaultResultCount
             );
-
-            searchResults = search.execute();
+            search.setExecutor(this.executor);
+            search.setMaxTime(this.searchMaxTimeMillis);
+            search.setMetrics(this.metrics);
+            SearchFields searchFields = SearchFields.parse(fields.orNull());
+            search.setFields(searchFields);
+
+            if (pageRequested(pageSize, pageToken)) {
+                return paged(search.page(pageToken.orNull(), pageSize(pageSize), hasMore.isPresent()), searchFields);
+            }
+
+            return Response.ok(render(search.execute(), searchFields), MediaType.APPLICATION_JSON_TYPE).build();
+        } catch (IllegalArgumentException e) {
+            log.info("Bad search request: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
         } catch (MongoException e) {
             log.severe("Query error: " + e.getMessage());
             throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
         }
-
-        return searchResults;
     }
 
+    /**
+     * Registration report search. If the client sends `Accept: application/x-ndjson` the results are streamed back
+     * one registration per line as they are read from the database, rather than being collected into a single JSON
+     * array first. This is the recommended way to pull back a report with no result count limit.
+     *
+     * Alternatively the report can be read a page at a time by passing `pageSize` and then `pageToken`, in the same
+     * way as the home screen search. Paging takes precedence over streaming and any result count.
+     */
     @GET
     @Path("/registrations")
-    public List<Registration> queryRegistrations(
+    @Produces({MediaType.APPLICATION_JSON, NdjsonStreamingOutput.MEDIA_TYPE})
+    public Response queryRegistrations(
+            @Context HttpHeaders headers,
             @QueryParam("from") @NotEmpty String from,
             @QueryParam("until") @NotEmpty String until,
             @QueryParam("route[]") Set<String> routes,
@@ -77,11 +167,14 @@ public class SearchResource {
             @QueryParam("copyCards") Optional<String> copyCards,
             @QueryParam("declaredConvictions") Optional<String> declaredConvictions,
             @QueryParam("convictionCheckMatch") Optional<String> convictionCheckMatch,
-            @QueryParam("resultCount") Optional<Integer> resultCount
+            @QueryParam("resultCount") Optional<Integer> resultCount,
+            @QueryParam("fields") Optional<String> fields,
+            @QueryParam("pageSize") Optional<Integer> pageSize,
+            @QueryParam("pageToken") Optional<String> pageToken,
+            @QueryParam("hasMore") Optional<String> hasMore
     ) {
 
         log.fine("Get Method Detected at /search/registrations");
-        List<Registration> searchResults;
 
         Integer extractedResultCount = 0;
         if (resultCount.isPresent()) extractedResultCount = resultCount.get();
@@ -103,29 +196,89 @@ public class SearchResource {
                     convictionCheckMatch.isPresent(),
                     extractedResultCount
             );
+            SearchFields searchFields = SearchFields.parse(fields.orNull());
+            search.setFields(searchFields);
 
-            searchResults = search.execute();
+            if (pageRequested(pageSize, pageToken)) {
+                return paged(search.page(pageToken.orNull(), pageSize(pageSize), hasMore.isPresent()), searchFields);
+            }
+
+            if (streamRequested(headers)) return streamed(search.cursor(), searchFields);
+
+            return Response.ok(render(report(search), searchFields), MediaType.APPLICATION_JSON_TYPE).build();
+        } catch (IllegalArgumentException e) {
+            log.info("Bad search request: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
         } catch (MongoException e) {
             log.severe("Query error: " + e.getMessage());
             throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
         }
+    }
 
-        return searchResults;
+    /**
+     * Counts of the registrations the registrations report would return for the same filters, broken down by route,
+     * tier, status, business type, copy cards and convictions. It's much cheaper than running the report, so the back
+     * office can use it to show the size of a report whilst the user is still refining the filters.
+     */
+    @GET
+    @Path("/registrations/facets")
+    public RegistrationFacets queryRegistrationFacets(
+            @QueryParam("from") @NotEmpty String from,
+            @QueryParam("until") @NotEmpty String until,
+            @QueryParam("route[]") Set<String> routes,
+            @QueryParam("tier[]") Set<String> tiers,
+            @QueryParam("status[]") Set<String> statuses,
+            @QueryParam("businessType[]") Set<String> businessTypes,
+            @QueryParam("copyCards") Optional<String> copyCards,
+            @QueryParam("declaredConvictions") Optional<String> declaredConvictions,
+            @QueryParam("convictionCheckMatch") Optional<String> convictionCheckMatch
+    ) {
+
+        log.fine("Get Method Detected at /search/registrations/facets");
+
+        try {
+            RegistrationSearch search = new RegistrationSearch(
+                    this.searchHelper,
+                    from,
+                    until,
+                    routes,
+                    tiers,
+                    statuses,
+                    businessTypes,
+                    copyCards.orNull(),
+                    declaredConvictions.isPresent(),
+                    convictionCheckMatch.isPresent(),
+                    0
+            );
+
+            return search.facets();
+        } catch (IllegalArgumentException e) {
+            log.info("Bad search request: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        } catch (MongoException e) {
+            log.severe("Query error: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+        }
     }
 
     @GET
     @Path("/payments")
-    public List<Registration> queryPayments(
+    @Produces({MediaType.APPLICATION_JSON, NdjsonStreamingOutput.MEDIA_TYPE})
+    public Response queryPayments(
+            @Context HttpHeaders headers,
             @QueryParam("from") @NotEmpty String from,
             @QueryParam("until") @NotEmpty String until,
             @QueryParam("paymentStatus") @NotEmpty String paymentStatus,
             @QueryParam("paymentType[]") Set<String> paymentTypes,
             @QueryParam("chargeType[]") Set<String> chargeTypes,
-            @QueryParam("resultCount") Optional<Integer> resultCount
+            @QueryParam("resultCount") Optional<Integer> resultCount,
+            @QueryParam("fields") Optional<String> fields,
+            @QueryParam("pageSize") Optional<Integer> pageSize,
+            @QueryParam("pageToken") Optional<String> pageToken,
+            @QueryParam("hasMore") Optional<String> hasMore
     ) {
 
         log.fine("Get Method Detected at /search/payments");
-        List<Registration> searchResults;
 
         Integer extractedResultCount = 0;
         if (resultCount.isPresent()) extractedResultCount = resultCount.get();
@@ -140,28 +293,42 @@ public class SearchResource {
                     chargeTypes,
                     extractedResultCount
             );
+            SearchFields searchFields = SearchFields.parse(fields.orNull());
+            search.setFields(searchFields);
 
-            searchResults = search.execute();
+            if (pageRequested(pageSize, pageToken)) {
+                return paged(search.page(pageToken.orNull(), pageSize(pageSize), hasMore.isPresent()), searchFields);
+            }
+
+            if (streamRequested(headers)) return streamed(search.cursor(), searchFields);
+
+            return Response.ok(render(report(search), searchFields), MediaType.APPLICATION_JSON_TYPE).build();
+        } catch (IllegalArgumentException e) {
+            log.info("Bad search request: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
         } catch (MongoException e) {
             log.severe("Query error: " + e.getMessage());
             throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
         }
-
-        return searchResults;
     }
 
     @GET
     @Path("/copycards")
-    public List<Registration> queryCopyCards(
+    @Produces({MediaType.APPLICATION_JSON, NdjsonStreamingOutput.MEDIA_TYPE})
+    public Response queryCopyCards(
+            @Context HttpHeaders headers,
             @QueryParam("from") @NotEmpty String from,
             @QueryParam("until") @NotEmpty String until,
             @QueryParam("declaredConvictions") Optional<String> declaredConvictions,
             @QueryParam("convictionCheckMatch") Optional<String> convictionCheckMatch,
-            @QueryParam("resultCount") Optional<Integer> resultCount
+            @QueryParam("resultCount") Optional<Integer> resultCount,
+            @QueryParam("fields") Optional<String> fields,
+            @QueryParam("pageSize") Optional<Integer> pageSize,
+            @QueryParam("pageToken") Optional<String> pageToken,
+            @QueryParam("hasMore") Optional<String> hasMore
     ) {
 
         log.fine("Get Method Detected at /search/copycards");
-        List<Registration> searchResults;
 
         Integer extractedResultCount = 0;
         if (resultCount.isPresent()) extractedResultCount = resultCount.get();
@@ -175,37 +342,49 @@ public class SearchResource {
                     convictionCheckMatch.isPresent(),
                     extractedResultCount
             );
+            SearchFields searchFields = SearchFields.parse(fields.orNull());
+            search.setFields(searchFields);
 
-            searchResults = search.execute();
+            if (pageRequested(pageSize, pageToken)) {
+                return paged(search.page(pageToken.orNull(), pageSize(pageSize), hasMore.isPresent()), searchFields);
+            }
+
+            if (streamRequested(headers)) return streamed(search.cursor(), searchFields);
+
+            return Response.ok(render(report(search), searchFields), MediaType.APPLICATION_JSON_TYPE).build();
+        } catch (IllegalArgumentException e) {
+            log.info("Bad search request: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
         } catch (MongoException e) {
             log.severe("Query error: " + e.getMessage());
             throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
         }
-
-        return searchResults;
     }
 
     @GET
     @Path("/account")
-    public List<Registration> queryAccountEmail(
-            @QueryParam("email") @NotEmpty String accountEmail
+    public Response queryAccountEmail(
+            @QueryParam("email") @NotEmpty String accountEmail,
+            @QueryParam("fields") Optional<String> fields
     ) {
         log.fine("Get Method Detected at /search/account");
-        List<Registration> searchResults;
 
         try {
             AccountSearch search = new AccountSearch(
                     this.searchHelper,
                     accountEmail
             );
+            SearchFields searchFields = SearchFields.parse(fields.orNull());
+            search.setFields(searchFields);
 
-            searchResults = search.execute();
+            return Response.ok(render(search.execute(), searchFields), MediaType.APPLICATION_JSON_TYPE).build();
+        } catch (IllegalArgumentException e) {
+            log.info("Bad search request: " + e.getMessage());
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
         } catch (MongoException e) {
             log.severe("Query error: " + e.getMessage());
             throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
         }
-
-        return searchResults;
     }
 
     @GET
@@ -230,4 +409,88 @@ public class SearchResource {
 
         return searchResult;
     }
+
+    /**
+     * Checks whether the client has explicitly asked for newline delimited JSON. We deliberately ignore wildcards
+     * so that existing clients who accept anything continue to get a standard JSON array back.
+     */
+    private boolean streamRequested(HttpHeaders headers) {
+
+        for (MediaType type : headers.getAcceptableMediaTypes()) {
+            if (NdjsonStreamingOutput.MEDIA_TYPE.equalsIgnoreCase(type.getType() + "/" + type.getSubtype())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean pageRequested(Optional<Integer> pageSize, Optional<String> pageToken) {
+        return pageSize.isPresent() || pageToken.isPresent();
+    }
+
+    /**
+     * Works out the page size to use. If not specified we fall back to the default result count, and we never
+     * return more than MAX_PAGE_SIZE registrations in a single page.
+     */
+    private int pageSize(Optional<Integer> pageSize) {
+
+        int size = pageSize.or(this.defaultResultCount);
+
+        if (size < 1) throw new IllegalArgumentException("Page size must be at least 1");
+
+        return Math.min(size, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Runs a report, using the cached results if the same report has been run recently. Pages and streams always
+     * go to the database, as they are how clients read reports too big to be worth holding on to.
+     */
+    private List<Registration> report(ReportSearch search) {
+
+        if (this.reportCache == null) return search.execute();
+
+        return this.reportCache.execute(search);
+    }
+
+    private Response paged(SearchPage<Registration> page, SearchFields fields) {
+
+        Response.ResponseBuilder response = Response.ok(
+                render(page.getResults(), fields),
+                MediaType.APPLICATION_JSON_TYPE
+        );
+
+        if (page.getNextPageToken() != null) {
+            response.header(SearchPage.NEXT_PAGE_TOKEN_HEADER, page.getNextPageToken());
+        }
+        if (page.getHasMore() != null) response.header(SearchPage.HAS_MORE_HEADER, page.getHasMore());
+
+        return response.build();
+    }
+
+    private Response streamed(DBCursor<Registration> cursor, SearchFields fields) {
+        return Response
+                .ok(new NdjsonStreamingOutput<>(cursor, this.mapper, view(fields)), NdjsonStreamingOutput.MEDIA_TYPE)
+                .build();
+    }
+
+    /**
+     * What we send back for each registration depends on the fields requested. For a summary it's a
+     * RegistrationSummary. For a specific list of fields we leave out everything that is null, else the client
+     * would get back every other property of the registration set to null.
+     */
+    private Function<Registration, ?> view(SearchFields fields) {
+
+        if (fields == null) return Function.identity();
+        if (fields.isSummary()) return RegistrationSummary::from;
+
+        return registration -> this.projectedMapper.valueToTree(registration);
+    }
+
+    private List<?> render(List<Registration> results, SearchFields fields) {
+
+        if (fields == null) return results;
+
+        return results.stream().map(view(fields)).collect(Collectors.toList());
+    }
 }
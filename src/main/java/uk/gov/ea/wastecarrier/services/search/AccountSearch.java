@@ -5,6 +5,7 @@ import org.mongojack.JacksonDBCollection;
 import uk.gov.ea.wastecarrier.services.core.Registration;
 import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -15,6 +16,7 @@ public class AccountSearch {
     private Logger log = Logger.getLogger(AccountSearch.class.getName());
 
     private String accountEmail;
+    private SearchFields fields;
 
     /**
      * Search for registrations in the database which have a matching accountEmail
@@ -30,21 +32,38 @@ public class AccountSearch {
         this.accountEmail = accountEmail;
     }
 
+    /**
+     * @param fields the fields to return for each registration, or null for all of them
+     */
+    public void setFields(SearchFields fields) {
+        this.fields = fields;
+    }
+
     public List<Registration> execute() {
 
         JacksonDBCollection<Registration, String> registrations = this.helper.getCollection();
 
-        // Query to find registrations with matching accountEmail
-        DBQuery.Query query = DBQuery.is("accountEmail", this.accountEmail);
-
         List<Registration> results = new LinkedList<>();
 
         try {
-            results = helper.toList(registrations.find(query));
+            results = helper.toList(registrations.find(query(), SearchFields.projection(this.fields)));
         } catch (IllegalArgumentException e) {
             log.severe("Caught exception: " + e.getMessage() + " - Cannot find accountEmail " + this.accountEmail);
         }
 
         return results;
     }
+
+    /**
+     * @return the query this search runs, so `QueryPlan` can explain it
+     */
+    public List<QueryShape> queryShapes() {
+        return Collections.singletonList(QueryShape.of(
+                "account email", this.helper.getCollection(), query(), null, SearchFields.projection(this.fields), 0));
+    }
+
+    // Query to find registrations with matching accountEmail
+    private DBQuery.Query query() {
+        return DBQuery.is("accountEmail", this.accountEmail);
+    }
 }
@@ -1,5 +1,6 @@
 package uk.gov.ea.wastecarrier.services.search;
 
+import org.mongojack.DBCursor;
 import org.mongojack.DBQuery;
 import org.mongojack.JacksonDBCollection;
 import uk.gov.ea.wastecarrier.services.core.ConvictionSearchResult;
@@ -10,7 +11,7 @@ import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
 import java.util.*;
 import java.util.logging.Logger;
 
-public class CopyCardSearch {
+public class CopyCardSearch implements ReportSearch {
 
     private final static String DATE_FILTER_PROPERTY = "financeDetails.orders.dateLastUpdated";
     private final static String COMPANY_CONVICTION_MATCH = "conviction_search_result.match_result";
@@ -25,6 +26,7 @@ public class CopyCardSearch {
     private Boolean declaredConvictions;
     private Boolean convictionCheckMatch;
     private Integer resultCount;
+    private SearchFields fields;
 
     /**
      * Search for registrations in the database which ordered copy cards between certain dates, and where specified they
@@ -56,10 +58,111 @@ public class CopyCardSearch {
         this.resultCount = resultCount;
     }
 
+    /**
+     * @param fields the fields to return for each registration, or null for all of them
+     */
+    public void setFields(SearchFields fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public String cacheKey() {
+        return ReportCache.key(
+                "copycards",
+                this.fromDate,
+                this.toDate,
+                this.declaredConvictions,
+                this.convictionCheckMatch,
+                this.resultCount,
+                this.fields
+        );
+    }
+
+    @Override
+    public Date getFromDate() {
+        return fromDate;
+    }
+
+    @Override
+    public Date getToDate() {
+        return toDate;
+    }
+
+    @Override
     public List<Registration> execute() {
 
+        List<Registration> results = new LinkedList<>();
+
+        try {
+            results = searchHelper.toList(cursor());
+        } catch (IllegalArgumentException e) {
+            log.severe("Caught exception: " + e.getMessage() + " - Cannot find copy cards");
+        }
+
+        return results;
+    }
+
+    /**
+     * Exposes the cursor behind `execute()` so the results can be streamed one document at a time. The caller must
+     * close it once done.
+     *
+     * @return cursor over the matching registrations
+     */
+    public DBCursor<Registration> cursor() {
+
+        JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
+
+        DBCursor<Registration> cursor = registrations.find(query(), SearchFields.projection(this.fields));
+
+        if (this.resultCount != 0) cursor.limit(this.resultCount);
+
+        return cursor;
+    }
+
+    /**
+     * Paged version of `execute()`. The copy cards report has no natural order of its own so we page through it by
+     * `_id`, which gives each page a cheap range query against the default index.
+     *
+     * @param pageToken token from the previous page, or null for the first
+     * @param pageSize number of registrations to return in the page
+     * @param checkHasMore whether to also report if there are more registrations after this page
+     * @return the page of registrations
+     * @throws IllegalArgumentException if the page token is invalid
+     */
+    public SearchPage<Registration> page(String pageToken, int pageSize, boolean checkHasMore) {
+
+        PageToken after = pageToken == null ? null : PageToken.decode(pageToken);
+
+        return SearchPage.fetch(
+                this.searchHelper.<Registration>getCollection(),
+                query(),
+                SearchFields.projection(this.fields),
+                PageToken.ID_FIELD,
+                registration -> null,
+                Registration::getId,
+                after,
+                pageSize,
+                checkHasMore
+        );
+    }
+
+    /**
+     * Describes the queries behind `cursor()` and `page()` without running them. See `QueryPlan`.
+     */
+    public List<QueryShape> queryShapes() {
+
         JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
 
+        return Arrays.asList(
+                QueryShape.of("copy cards report", registrations, query(), null,
+                        SearchFields.projection(this.fields), this.resultCount),
+                QueryShape.of("copy cards report page", registrations, query(), PageToken.sort(PageToken.ID_FIELD),
+                        SearchFields.projection(this.fields), this.resultCount)
+        );
+    }
+
+    private DBQuery.Query query() {
+
         DBQuery.Query query = DBQuery.and(DBQuery
                 .greaterThanEquals(DATE_FILTER_PROPERTY, this.fromDate)
                 .lessThanEquals(DATE_FILTER_PROPERTY, this.toDate)
@@ -73,18 +176,6 @@ public class CopyCardSearch {
             query.or(DBQuery.is(KEY_PEOPLE_CONVICTION_MATCH, ConvictionSearchResult.MatchResult.YES));
         }
 
-        List<Registration> results = new LinkedList<>();
-
-        try {
-            if (this.resultCount == 0) {
-                results = searchHelper.toList(registrations.find(query));
-            } else {
-                results = searchHelper.toList(registrations.find(query).limit(this.resultCount));
-            }
-        } catch (IllegalArgumentException e) {
-            log.severe("Caught exception: " + e.getMessage() + " - Cannot find copy cards");
-        }
-
-        return results;
+        return query;
     }
 }
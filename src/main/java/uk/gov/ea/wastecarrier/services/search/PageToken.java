@@ -0,0 +1,167 @@
+package uk.gov.ea.wastecarrier.services.search;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.mongojack.DBQuery;
+import org.mongojack.DBSort;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * A continuation token for keyset pagination. It records the sort key and `_id` of the last registration returned
+ * in a page, and from them builds the query for everything that comes after it.
+ *
+ * Because the next page is found with a range query against the sort key (rather than by skipping over the
+ * previous pages) MongoDB can go straight to the right point in the `{sortField: 1, _id: 1}` index, so asking for
+ * page 500 costs the same as asking for page 1. Adding `_id` as a tie-breaker means registrations that share a
+ * sort value, for example two companies with the same name, are neither repeated nor missed between pages.
+ *
+ * To the client the token is opaque; it is just URL safe base64 encoded JSON, and should be passed back as is.
+ */
+public class PageToken {
+
+    public static final String ID_FIELD = "_id";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String STRING_TYPE = "s";
+    private static final String DATE_TYPE = "d";
+    private static final String NULL_TYPE = "n";
+
+    private final String sortField;
+    private final Object sortValue;
+    private final String id;
+
+    /**
+     * @param sortField the field the results are sorted by, or `_id` if they are sorted by id alone
+     * @param sortValue the value of the sort field in the last registration returned. Only strings and dates are
+     *                  supported, though it can be null as not all registrations will have the field populated
+     * @param id the id of the last registration returned
+     */
+    public PageToken(String sortField, Object sortValue, String id) {
+        if (sortValue != null && !(sortValue instanceof String) && !(sortValue instanceof Date)) {
+            throw new IllegalArgumentException("Unsupported sort value type " + sortValue.getClass().getName());
+        }
+
+        this.sortField = sortField;
+        this.sortValue = sortValue;
+        this.id = id;
+    }
+
+    public String getSortField() {
+        return sortField;
+    }
+
+    public Object getSortValue() {
+        return sortValue;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The sort that must be used alongside the token's query. It's the same for every page, so it's also what the
+     * first page (which has no token) is sorted by.
+     */
+    public static DBSort.SortBuilder sort(String sortField) {
+        if (ID_FIELD.equals(sortField)) return DBSort.asc(ID_FIELD);
+
+        return DBSort.asc(sortField).asc(ID_FIELD);
+    }
+
+    /**
+     * Builds the query for all registrations that sort after this token. For a non-null sort value that is
+     *
+     * <code>
+     *   {field: {$gte: v}, $or: [{field: {$gt: v}}, {field: v, _id: {$gt: id}}]}
+     * </code>
+     *
+     * The `$gte` is logically redundant, but it gives the query planner a single contiguous range to scan in the
+     * index, with the `$or` then only applied as a filter to the handful of entries that share the value.
+     *
+     * MongoDB sorts nulls (and missing fields) before everything else, so if the last registration had no value we
+     * still need the rest of those, followed by everything that does have a value.
+     */
+    public DBQuery.Query after() {
+
+        if (ID_FIELD.equals(this.sortField)) return DBQuery.greaterThan(ID_FIELD, this.id);
+
+        if (this.sortValue == null) {
+            return DBQuery.or(
+                    DBQuery.is(this.sortField, null).greaterThan(ID_FIELD, this.id),
+                    DBQuery.notEquals(this.sortField, null)
+            );
+        }
+
+        return DBQuery.and(
+                DBQuery.greaterThanEquals(this.sortField, this.sortValue),
+                DBQuery.or(
+                        DBQuery.greaterThan(this.sortField, this.sortValue),
+                        DBQuery.is(this.sortField, this.sortValue).greaterThan(ID_FIELD, this.id)
+                )
+        );
+    }
+
+    public String encode() {
+
+        ObjectNode node = mapper.createObjectNode();
+        node.put("f", this.sortField);
+        node.put("id", this.id);
+
+        if (this.sortValue == null) {
+            node.put("t", NULL_TYPE);
+        } else if (this.sortValue instanceof Date) {
+            node.put("t", DATE_TYPE);
+            node.put("v", ((Date) this.sortValue).getTime());
+        } else {
+            node.put("t", STRING_TYPE);
+            node.put("v", (String) this.sortValue);
+        }
+
+        byte[] json = node.toString().getBytes(StandardCharsets.UTF_8);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+    }
+
+    /**
+     * @param token a token previously generated by `encode()`
+     * @return the decoded token
+     * @throws IllegalArgumentException if the token is not one we generated
+     */
+    public static PageToken decode(String token) {
+
+        JsonNode node;
+
+        try {
+            node = mapper.readTree(Base64.getUrlDecoder().decode(token));
+        } catch (IllegalArgumentException | IOException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+
+        if (node == null || !node.hasNonNull("f") || !node.hasNonNull("id") || !node.hasNonNull("t")) {
+            throw new IllegalArgumentException("Invalid page token");
+        }
+
+        Object value;
+        switch (node.get("t").asText()) {
+            case NULL_TYPE:
+                value = null;
+                break;
+            case DATE_TYPE:
+                value = new Date(node.path("v").asLong());
+                break;
+            case STRING_TYPE:
+                value = node.path("v").asText();
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid page token");
+        }
+
+        return new PageToken(node.get("f").asText(), value, node.get("id").asText());
+    }
+}
@@ -1,5 +1,6 @@
 package uk.gov.ea.wastecarrier.services.search;
 
+import org.mongojack.DBCursor;
 import org.mongojack.DBQuery;
 import org.mongojack.JacksonDBCollection;
 import uk.gov.ea.wastecarrier.services.core.Registration;
@@ -8,7 +9,7 @@ import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
 import java.util.*;
 import java.util.logging.Logger;
 
-public class PaymentSearch
+public class PaymentSearch implements ReportSearch
 {
     private final static String HAS_PAYMENTS = "financeDetails.payments";
     private final static String REG_BALANCE_FILTER_PROPERTY = "financeDetails.balance";
@@ -26,6 +27,7 @@ public class PaymentSearch
     private Set<String> paymentTypes;
     private Set<String> chargeTypes;
     private Integer resultCount;
+    private SearchFields fields;
 
     public enum PaymentStatus {
         AWAITING_PAYMENT,
@@ -68,10 +70,113 @@ public class PaymentSearch
         this.resultCount = resultCount;
     }
 
+    /**
+     * @param fields the fields to return for each registration, or null for all of them
+     */
+    public void setFields(SearchFields fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public String cacheKey() {
+        return ReportCache.key(
+                "payments",
+                this.fromDate,
+                this.toDate,
+                this.paymentStatus,
+                this.paymentTypes,
+                this.chargeTypes,
+                this.resultCount,
+                this.fields
+        );
+    }
+
+    @Override
+    public Date getFromDate() {
+        return fromDate;
+    }
+
+    @Override
+    public Date getToDate() {
+        return toDate;
+    }
+
+    @Override
     public List<Registration> execute() {
 
+        List<Registration> results = new LinkedList<>();
+
+        try {
+            results = searchHelper.toList(cursor());
+        } catch (IllegalArgumentException e) {
+            log.severe("Caught exception: " + e.getMessage() + " - Cannot find payments");
+        }
+
+        return results;
+    }
+
+    /**
+     * The payments report can cover a whole year, so rather than build a list we allow the caller to iterate the
+     * results directly. The caller must close the cursor once done.
+     *
+     * @return cursor over the matching registrations
+     */
+    public DBCursor<Registration> cursor() {
+
         JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
 
+        DBCursor<Registration> cursor = registrations.find(query(), SearchFields.projection(this.fields));
+
+        if (this.resultCount != 0) cursor.limit(this.resultCount);
+
+        return cursor;
+    }
+
+    /**
+     * Returns a single page of the payments report. Pages are ordered by id, which is enough to give the caller a
+     * stable order to work through and lets each page start straight from the `_id` index.
+     *
+     * @param pageToken token from the previous page, or null for the first
+     * @param pageSize number of registrations to return in the page
+     * @param checkHasMore whether to also report if there are more registrations after this page
+     * @return the page of registrations
+     * @throws IllegalArgumentException if the page token is invalid
+     */
+    public SearchPage<Registration> page(String pageToken, int pageSize, boolean checkHasMore) {
+
+        PageToken after = pageToken == null ? null : PageToken.decode(pageToken);
+
+        return SearchPage.fetch(
+                this.searchHelper.<Registration>getCollection(),
+                query(),
+                SearchFields.projection(this.fields),
+                PageToken.ID_FIELD,
+                registration -> null,
+                Registration::getId,
+                after,
+                pageSize,
+                checkHasMore
+        );
+    }
+
+    /**
+     * @return the report and page queries for this search, so `QueryPlan` can explain them. The result count is
+     * used as the page size
+     */
+    public List<QueryShape> queryShapes() {
+
+        JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
+
+        return Arrays.asList(
+                QueryShape.of("payments report", registrations, query(), null,
+                        SearchFields.projection(this.fields), this.resultCount),
+                QueryShape.of("payments report page", registrations, query(), PageToken.sort(PageToken.ID_FIELD),
+                        SearchFields.projection(this.fields), this.resultCount)
+        );
+    }
+
+    private DBQuery.Query query() {
+
         DBQuery.Query query = DBQuery.and(DBQuery
                 .exists(HAS_PAYMENTS)
                 .greaterThanEquals(PAY_DATE_FILTER_PROPERTY, this.fromDate)
@@ -87,19 +192,7 @@ public class PaymentSearch
 
         query.and(paymentStatusQuery());
 
-        List<Registration> results = new LinkedList<>();
-
-        try {
-            if (this.resultCount == 0) {
-                results = searchHelper.toList(registrations.find(query));
-            } else {
-                results = searchHelper.toList(registrations.find(query).limit(this.resultCount));
-            }
-        } catch (IllegalArgumentException e) {
-            log.severe("Caught exception: " + e.getMessage() + " - Cannot find payments");
-        }
-
-        return results;
+        return query;
     }
 
     private DBQuery.Query paymentStatusQuery() {
@@ -0,0 +1,239 @@
+package uk.gov.ea.wastecarrier.services.search;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How MongoDB ran a query, taken from the output of `explain` with `executionStats` verbosity.
+ *
+ * The numbers that matter most are how many documents MongoDB had to examine for each one it returned. A query
+ * served by a suitable index examines about as many as it returns. One that scans the collection (a COLLSCAN), or
+ * an index that only covers part of the criteria, examines many more, and gets slower as the collection grows.
+ *
+ * An aggregation is explained as the query that selects its input, with the pipeline stages run on what that returns
+ * shown above it, for example "$sort(limit 1) > $addFields > FETCH > IXSCAN(phoneticKeys_1)". A `$sort` there always
+ * sorts in memory.
+ */
+public class QueryPlan {
+
+    private static final String COLLSCAN = "COLLSCAN";
+    private static final String SORT = "SORT";
+    private static final String SORT_STAGE = "$sort";
+    private static final String CURSOR_STAGE = "$cursor";
+
+    private final String name;
+    private final String winningPlan;
+    private final boolean collectionScan;
+    private final boolean inMemorySort;
+    private final long returned;
+    private final long keysExamined;
+    private final long docsExamined;
+    private final long executionTimeMillis;
+
+    private QueryPlan(
+            String name,
+            String winningPlan,
+            boolean collectionScan,
+            boolean inMemorySort,
+            long returned,
+            long keysExamined,
+            long docsExamined,
+            long executionTimeMillis
+    ) {
+        this.name = name;
+        this.winningPlan = winningPlan;
+        this.collectionScan = collectionScan;
+        this.inMemorySort = inMemorySort;
+        this.returned = returned;
+        this.keysExamined = keysExamined;
+        this.docsExamined = docsExamined;
+        this.executionTimeMillis = executionTimeMillis;
+    }
+
+    /**
+     * Asks MongoDB to explain the query. Note that at this verbosity MongoDB runs the query to completion in order
+     * to collect the statistics, so explaining an unindexed query costs as much as running it.
+     *
+     * @param shape the query to explain
+     * @return the plan MongoDB chose and what running it cost
+     */
+    public static QueryPlan explain(QueryShape shape) {
+
+        DBObject command = new BasicDBObject("explain", shape.getPipeline() == null ? find(shape) : aggregate(shape))
+                .append("verbosity", "executionStats");
+
+        CommandResult result = shape.getCollection().getDB().command(command);
+        result.throwOnError();
+
+        return from(shape.getName(), result);
+    }
+
+    private static DBObject find(QueryShape shape) {
+
+        BasicDBObject find = new BasicDBObject("find", shape.getCollection().getName())
+                .append("filter", shape.getFilter());
+        if (shape.getSort() != null) find.append("sort", shape.getSort());
+        if (shape.getProjection() != null) find.append("projection", shape.getProjection());
+        if (shape.getLimit() > 0) find.append("limit", shape.getLimit());
+
+        return find;
+    }
+
+    private static DBObject aggregate(QueryShape shape) {
+        return new BasicDBObject("aggregate", shape.getCollection().getName())
+                .append("pipeline", shape.getPipeline())
+                .append("cursor", new BasicDBObject());
+    }
+
+    /**
+     * @param name the name of the query explained
+     * @param explain the output of the explain command
+     */
+    public static QueryPlan from(String name, DBObject explain) {
+
+        // Where the pipeline can't all be run as a query, its first stage is the query and the rest follow
+        List<String> stages = new ArrayList<>();
+        List<String> described = new ArrayList<>();
+        if (explain.get("stages") != null) {
+            List<?> pipeline = (List<?>) explain.get("stages");
+            for (int i = pipeline.size() - 1; i > 0; i--) {
+                described.add(describeStage((DBObject) pipeline.get(i), stages));
+            }
+            explain = (DBObject) ((DBObject) pipeline.get(0)).get(CURSOR_STAGE);
+        }
+
+        DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+        DBObject stats = (DBObject) explain.get("executionStats");
+
+        described.add(describe((DBObject) queryPlanner.get("winningPlan"), stages));
+
+        return new QueryPlan(
+                name,
+                String.join(" > ", described),
+                stages.contains(COLLSCAN),
+                stages.contains(SORT) || stages.contains(SORT_STAGE),
+                number(stats, "nReturned"),
+                number(stats, "totalKeysExamined"),
+                number(stats, "totalDocsExamined"),
+                number(stats, "executionTimeMillis")
+        );
+    }
+
+    /**
+     * Renders the tree of stages top down, for example "LIMIT > FETCH > IXSCAN(regIdentifier_1__id_1)". Stages
+     * with more than one input, such as the OR of an `$or` query, list them in brackets.
+     */
+    private static String describe(DBObject stage, List<String> stages) {
+
+        if (stage == null) return "";
+
+        String name = (String) stage.get("stage");
+        stages.add(name);
+
+        StringBuilder text = new StringBuilder(name);
+        if (stage.get("indexName") != null) text.append('(').append(stage.get("indexName")).append(')');
+
+        if (stage.get("inputStage") != null) {
+            text.append(" > ").append(describe((DBObject) stage.get("inputStage"), stages));
+        } else if (stage.get("inputStages") != null) {
+            List<String> inputs = new ArrayList<>();
+            for (Object input : (List<?>) stage.get("inputStages")) inputs.add(describe((DBObject) input, stages));
+            text.append('[').append(String.join(", ", inputs)).append(']');
+        }
+
+        return text.toString();
+    }
+
+    // A pipeline stage is a document with a single field named for the stage, such as `$sort`. MongoDB merges a
+    // `$limit` into the `$sort` before it, which then keeps only that many documents
+    private static String describeStage(DBObject stage, List<String> stages) {
+
+        String name = stage.keySet().iterator().next();
+        stages.add(name);
+
+        Object body = stage.get(name);
+        if (SORT_STAGE.equals(name) && body instanceof DBObject && ((DBObject) body).get("limit") != null) {
+            return name + "(limit " + ((DBObject) body).get("limit") + ")";
+        }
+
+        return name;
+    }
+
+    private static long number(DBObject stats, String field) {
+
+        Object value = stats == null ? null : stats.get(field);
+
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getWinningPlan() {
+        return winningPlan;
+    }
+
+    public boolean isCollectionScan() {
+        return collectionScan;
+    }
+
+    /**
+     * @return whether the results had to be sorted in memory, rather than read in order from an index
+     */
+    public boolean isInMemorySort() {
+        return inMemorySort;
+    }
+
+    public long getReturned() {
+        return returned;
+    }
+
+    public long getKeysExamined() {
+        return keysExamined;
+    }
+
+    public long getDocsExamined() {
+        return docsExamined;
+    }
+
+    public long getExecutionTimeMillis() {
+        return executionTimeMillis;
+    }
+
+    /**
+     * @return documents examined for each document returned. A query that returns nothing is treated as though it
+     * returned one, so examining lots of documents to find nothing still shows up
+     */
+    public double getExaminedRatio() {
+        return (double) docsExamined / Math.max(returned, 1);
+    }
+
+    /**
+     * @param maxRatio the most documents a query should examine for each one it returns
+     * @return whether this query examined more than that
+     */
+    public boolean exceeds(double maxRatio) {
+        return getExaminedRatio() > maxRatio;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s: %s | returned %d, keys examined %d, docs examined %d, ratio %.1f, %d ms%s%s",
+                name,
+                winningPlan,
+                returned,
+                keysExamined,
+                docsExamined,
+                getExaminedRatio(),
+                executionTimeMillis,
+                collectionScan ? " [COLLSCAN]" : "",
+                inMemorySort ? " [IN MEMORY SORT]" : ""
+        );
+    }
+}
@@ -0,0 +1,135 @@
+package uk.gov.ea.wastecarrier.services.search;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.mongojack.DBQuery;
+import org.mongojack.JacksonDBCollection;
+
+import java.util.List;
+
+/**
+ * One of the queries a search or match sends to MongoDB, described in enough detail to ask MongoDB how it would run
+ * it (see `QueryPlan`). Searches build these from the same methods they use to build the real query, so what gets
+ * explained is exactly what runs in production.
+ *
+ * A query is either a `find`, described by its filter, sort, projection and limit, or an aggregation, described by
+ * its pipeline.
+ */
+public class QueryShape {
+
+    private final String name;
+    private final DBCollection collection;
+    private final DBObject filter;
+    private final DBObject sort;
+    private final DBObject projection;
+    private final int limit;
+    private final List<DBObject> pipeline;
+
+    /**
+     * @param name describes the query in the plan report, for example "within prefix companyName"
+     * @param collection the collection the query runs against
+     * @param filter the query criteria
+     * @param sort the sort, or null if unsorted
+     * @param projection the projection, or null for whole documents
+     * @param limit the maximum number of documents returned, or 0 for no limit
+     */
+    public QueryShape(
+            String name,
+            DBCollection collection,
+            DBObject filter,
+            DBObject sort,
+            DBObject projection,
+            int limit
+    ) {
+        this(name, collection, filter, sort, projection, limit, null);
+    }
+
+    /**
+     * As above, but where `pipeline` isn't null the query is that aggregation, and the rest are only for information.
+     */
+    public QueryShape(
+            String name,
+            DBCollection collection,
+            DBObject filter,
+            DBObject sort,
+            DBObject projection,
+            int limit,
+            List<DBObject> pipeline
+    ) {
+        this.name = name;
+        this.collection = collection;
+        this.filter = filter;
+        this.sort = sort;
+        this.projection = projection;
+        this.limit = limit;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Builds a shape from a mongojack query, serialised the same way mongojack does when the query is run.
+     *
+     * @param projection the projection the search passes to `find()`, or null for whole documents
+     */
+    public static QueryShape of(
+            String name,
+            JacksonDBCollection<?, ?> collection,
+            DBQuery.Query query,
+            DBObject sort,
+            DBObject projection,
+            int limit
+    ) {
+        return new QueryShape(
+                name,
+                collection.getDbCollection(),
+                collection.serializeQuery(query),
+                sort,
+                projection,
+                limit
+        );
+    }
+
+    /**
+     * Builds the shape of an aggregation.
+     *
+     * @param filter the criteria of the pipeline's `$match`, for information
+     */
+    public static QueryShape aggregation(
+            String name,
+            JacksonDBCollection<?, ?> collection,
+            DBObject filter,
+            List<DBObject> pipeline
+    ) {
+        return new QueryShape(name, collection.getDbCollection(), filter, null, null, 0, pipeline);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public DBCollection getCollection() {
+        return collection;
+    }
+
+    public DBObject getFilter() {
+        return filter;
+    }
+
+    public DBObject getSort() {
+        return sort;
+    }
+
+    public DBObject getProjection() {
+        return projection;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the aggregation pipeline, or null if the query is a `find`
+     */
+    public List<DBObject> getPipeline() {
+        return pipeline;
+    }
+}
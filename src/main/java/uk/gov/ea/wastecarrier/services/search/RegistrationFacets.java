@@ -0,0 +1,222 @@
+package uk.gov.ea.wastecarrier.services.search;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import uk.gov.ea.wastecarrier.services.core.ConvictionSearchResult;
+import uk.gov.ea.wastecarrier.services.core.OrderItem;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts of the registrations matched by a registrations report search, broken down by each of the things the
+ * report can be filtered on. This lets the back office show how big a report will be, and how each filter would
+ * narrow it, without having to run the report itself.
+ *
+ * The counts are worked out by MongoDB in a single `$facet` aggregation (see `stage()`), so only the counts come
+ * back over the wire. Registrations with no value for a field are counted under `unknown`.
+ */
+public class RegistrationFacets {
+
+    public static final String UNKNOWN = "unknown";
+
+    private static final String COPY_CARDS = OrderItem.OrderItemType.COPY_CARDS.name();
+    private static final String MATCH = ConvictionSearchResult.MatchResult.YES.name();
+
+    @JsonProperty
+    private long total;
+
+    @JsonProperty
+    private Map<String, Long> route = new TreeMap<>();
+
+    @JsonProperty
+    private Map<String, Long> tier = new TreeMap<>();
+
+    @JsonProperty
+    private Map<String, Long> status = new TreeMap<>();
+
+    @JsonProperty
+    private Map<String, Long> businessType = new TreeMap<>();
+
+    @JsonProperty
+    private Map<String, Long> copyCards = new TreeMap<>();
+
+    @JsonProperty
+    private Map<String, Long> convictions = new TreeMap<>();
+
+    public RegistrationFacets() {
+    }
+
+    /**
+     * The `$facet` stage that counts the registrations passed into it.
+     *
+     * Each of the simple fields is a `$group` by that field. The copy card counts use the same categories as the
+     * report's copyCards filter (NEW, RENEW, ANY and NONE), and the conviction counts match its declaredConvictions
+     * and convictionCheckMatch filters. Those are worked out in one `$group` each using conditional sums, as a
+     * registration can fall into more than one category.
+     */
+    public static DBObject stage() {
+
+        BasicDBObject facets = new BasicDBObject()
+                .append("total", Arrays.asList(new BasicDBObject("$count", "count")))
+                .append("route", countBy("$metaData.route"))
+                .append("tier", countBy("$tier"))
+                .append("status", countBy("$metaData.status"))
+                .append("businessType", countBy("$businessType"))
+                .append("copyCards", copyCardsFacet())
+                .append("convictions", convictionsFacet());
+
+        return new BasicDBObject("$facet", facets);
+    }
+
+    /**
+     * @param result the single document output by the `$facet` stage, or null if there was none
+     */
+    public static RegistrationFacets from(DBObject result) {
+
+        RegistrationFacets facets = new RegistrationFacets();
+        if (result == null) return facets;
+
+        for (DBObject total : documents(result, "total")) facets.total = count(total, "count");
+
+        facets.route = grouped(result, "route");
+        facets.tier = grouped(result, "tier");
+        facets.status = grouped(result, "status");
+        facets.businessType = grouped(result, "businessType");
+
+        for (DBObject sums : documents(result, "copyCards")) {
+            for (String category : Arrays.asList("NEW", "RENEW", "ANY", "NONE")) {
+                facets.copyCards.put(category, count(sums, category));
+            }
+        }
+
+        for (DBObject sums : documents(result, "convictions")) {
+            for (String flag : Arrays.asList("declaredConvictions", "convictionCheckMatch")) {
+                facets.convictions.put(flag, count(sums, flag));
+            }
+        }
+
+        return facets;
+    }
+
+    private static List<DBObject> countBy(String field) {
+        return Arrays.asList(new BasicDBObject("$group", new BasicDBObject("_id", field)
+                .append("count", new BasicDBObject("$sum", 1))));
+    }
+
+    /**
+     * The order item types are held in an array of items within an array of orders, so the path to them gives an
+     * array of arrays. That's flattened into a single list of types before we check what it contains.
+     */
+    private static List<DBObject> copyCardsFacet() {
+
+        DBObject types = new BasicDBObject("$reduce", new BasicDBObject()
+                .append("input", ifNull("$financeDetails.orders.orderItems.type"))
+                .append("initialValue", new BasicDBList())
+                .append("in", new BasicDBObject("$concatArrays", Arrays.asList("$$value", "$$this"))));
+
+        DBObject hasCopyCards = contains("$types", COPY_CARDS);
+        DBObject hasItems = new BasicDBObject("$gt", Arrays.asList(new BasicDBObject("$size", "$types"), 0));
+
+        DBObject sums = new BasicDBObject("_id", null)
+                .append("NEW", sumIf(and(hasCopyCards, contains("$types", OrderItem.OrderItemType.NEW.name()))))
+                .append("RENEW", sumIf(and(hasCopyCards, contains("$types", OrderItem.OrderItemType.RENEW.name()))))
+                .append("ANY", sumIf(hasCopyCards))
+                .append("NONE", sumIf(and(hasItems, new BasicDBObject("$not", Arrays.asList(hasCopyCards)))));
+
+        return Arrays.asList(
+                new BasicDBObject("$project", new BasicDBObject("types", types)),
+                new BasicDBObject("$group", sums)
+        );
+    }
+
+    private static List<DBObject> convictionsFacet() {
+
+        DBObject declared = new BasicDBObject("$eq", Arrays.asList("$declaredConvictions", "yes"));
+        DBObject companyMatch = new BasicDBObject(
+                "$eq", Arrays.asList("$conviction_search_result.match_result", MATCH));
+        DBObject keyPersonMatch = contains(ifNull("$key_people.conviction_search_result.match_result"), MATCH);
+
+        DBObject sums = new BasicDBObject("_id", null)
+                .append("declaredConvictions", sumIf(declared))
+                .append("convictionCheckMatch", sumIf(
+                        new BasicDBObject("$or", Arrays.asList(companyMatch, keyPersonMatch))));
+
+        return Arrays.asList(new BasicDBObject("$group", sums));
+    }
+
+    private static DBObject ifNull(String field) {
+        return new BasicDBObject("$ifNull", Arrays.asList(field, new BasicDBList()));
+    }
+
+    private static DBObject contains(Object array, String value) {
+        return new BasicDBObject("$in", Arrays.asList(value, array));
+    }
+
+    private static DBObject and(DBObject... conditions) {
+        return new BasicDBObject("$and", Arrays.asList(conditions));
+    }
+
+    private static DBObject sumIf(DBObject condition) {
+        return new BasicDBObject("$sum", new BasicDBObject("$cond", Arrays.asList(condition, 1, 0)));
+    }
+
+    private static Map<String, Long> grouped(DBObject result, String facet) {
+
+        Map<String, Long> counts = new TreeMap<>();
+        for (DBObject group : documents(result, facet)) {
+            Object value = group.get("_id");
+            counts.merge(value == null ? UNKNOWN : value.toString(), count(group, "count"), Long::sum);
+        }
+
+        return counts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<DBObject> documents(DBObject result, String facet) {
+
+        Object documents = result.get(facet);
+
+        return documents == null ? Collections.<DBObject>emptyList() : (List<DBObject>) documents;
+    }
+
+    private static long count(DBObject document, String field) {
+
+        Object value = document.get(field);
+
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public Map<String, Long> getRoute() {
+        return route;
+    }
+
+    public Map<String, Long> getTier() {
+        return tier;
+    }
+
+    public Map<String, Long> getStatus() {
+        return status;
+    }
+
+    public Map<String, Long> getBusinessType() {
+        return businessType;
+    }
+
+    public Map<String, Long> getCopyCards() {
+        return copyCards;
+    }
+
+    public Map<String, Long> getConvictions() {
+        return convictions;
+    }
+}
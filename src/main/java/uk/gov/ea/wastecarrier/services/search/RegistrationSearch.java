@@ -1,5 +1,10 @@
 package uk.gov.ea.wastecarrier.services.search;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import org.mongojack.DBCursor;
 import org.mongojack.DBQuery;
 import org.mongojack.JacksonDBCollection;
 import uk.gov.ea.wastecarrier.services.core.ConvictionSearchResult;
@@ -10,11 +15,12 @@ import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
 import java.util.*;
 import java.util.logging.Logger;
 
-public class RegistrationSearch {
+public class RegistrationSearch implements ReportSearch {
 
     private final static String COMPANY_CONVICTION_MATCH = "conviction_search_result.match_result";
     private final static String KEY_PEOPLE_CONVICTION_MATCH = "key_people.conviction_search_result.match_result";
     private final static String ORDER_ITEM_TYPE_MATCH = "financeDetails.orders.orderItems.type";
+    private final static String SORT_FIELD = "metaData.dateRegistered";
 
     private SearchHelper searchHelper;
     private Logger log = Logger.getLogger(RegistrationSearch.class.getName());
@@ -29,6 +35,7 @@ public class RegistrationSearch {
     private Boolean declaredConvictions;
     private Boolean convictionCheckMatch;
     private Integer resultCount;
+    private SearchFields fields;
 
     /**
      * Search for all registrations in the database which match the specified filters.
@@ -76,11 +83,142 @@ public class RegistrationSearch {
         this.resultCount = resultCount;
     }
 
+    /**
+     * Limits which parts of each registration are read back. Reports which only show a few columns should use this,
+     * as loading the orders, payments and key people of every matching registration is the bulk of the cost.
+     *
+     * @param fields the fields to return, or null for all of them
+     */
+    public void setFields(SearchFields fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public String cacheKey() {
+        return ReportCache.key(
+                "registrations",
+                this.fromDate,
+                this.toDate,
+                this.routes,
+                this.tiers,
+                this.statuses,
+                this.businessTypes,
+                this.copyCardsFilter,
+                this.declaredConvictions,
+                this.convictionCheckMatch,
+                this.resultCount,
+                this.fields
+        );
+    }
+
+    @Override
+    public Date getFromDate() {
+        return fromDate;
+    }
+
+    @Override
+    public Date getToDate() {
+        return toDate;
+    }
+
+    @Override
     public List<Registration> execute() {
 
+        List<Registration> results = new LinkedList<>();
+
+        try {
+            results = searchHelper.toList(cursor());
+        } catch (IllegalArgumentException e) {
+            log.severe("Caught exception: " + e.getMessage() + " - Cannot find copy cards");
+        }
+
+        return results;
+    }
+
+    /**
+     * Returns the open cursor for the search rather than the results. This allows the caller to work through the
+     * matching registrations one at a time, for example when streaming a large report straight to the client,
+     * instead of holding them all in memory. The caller is responsible for closing the cursor.
+     *
+     * @return cursor over the registrations that match the search criteria
+     */
+    public DBCursor<Registration> cursor() {
+
         JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
 
-        List<Registration> results = new LinkedList<>();
+        DBCursor<Registration> cursor = registrations.find(query(), SearchFields.projection(this.fields));
+
+        if (this.resultCount != 0) cursor.limit(this.resultCount);
+
+        return cursor;
+    }
+
+    /**
+     * Returns a single page of results ordered by the date registered. Rather than a result count the caller
+     * specifies a page size, and to get the next page passes back the token returned with the previous one.
+     *
+     * @param pageToken token from the previous page, or null for the first
+     * @param pageSize number of registrations to return in the page
+     * @param checkHasMore whether to also report if there are more registrations after this page
+     * @return the page of registrations
+     * @throws IllegalArgumentException if the page token is invalid
+     */
+    public SearchPage<Registration> page(String pageToken, int pageSize, boolean checkHasMore) {
+
+        PageToken after = pageToken == null ? null : PageToken.decode(pageToken);
+
+        return SearchPage.fetch(
+                this.searchHelper.<Registration>getCollection(),
+                query(),
+                SearchFields.projection(this.fields, SORT_FIELD),
+                SORT_FIELD,
+                registration -> registration.getMetaData().getDateRegistered(),
+                Registration::getId,
+                after,
+                pageSize,
+                checkHasMore
+        );
+    }
+
+    /**
+     * Counts the registrations this search matches, broken down by route, tier, status, business type, copy cards
+     * and convictions. MongoDB does the counting, so no registrations are read back. See `RegistrationFacets`.
+     *
+     * @return the counts
+     */
+    public RegistrationFacets facets() {
+
+        JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
+
+        List<DBObject> pipeline = Arrays.asList(
+                new BasicDBObject("$match", registrations.serializeQuery(query())),
+                RegistrationFacets.stage()
+        );
+
+        AggregationOptions options = AggregationOptions.builder().build();
+
+        try (Cursor cursor = registrations.getDbCollection().aggregate(pipeline, options)) {
+            return RegistrationFacets.from(cursor.hasNext() ? cursor.next() : null);
+        }
+    }
+
+    /**
+     * The queries `cursor()` and `page()` send to MongoDB for this search, for checking how they are run (see
+     * `QueryPlan`). The result count is used as the page size.
+     */
+    public List<QueryShape> queryShapes() {
+
+        JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
+
+        return Arrays.asList(
+                QueryShape.of("registrations report", registrations, query(), null,
+                        SearchFields.projection(this.fields), this.resultCount),
+                QueryShape.of("registrations report page", registrations, query(), PageToken.sort(SORT_FIELD),
+                        SearchFields.projection(this.fields, SORT_FIELD), this.resultCount)
+        );
+    }
+
+    private DBQuery.Query query() {
 
         DBQuery.Query query = DBQuery.and(DBQuery
                 .greaterThanEquals("metaData.dateRegistered", this.fromDate)
@@ -89,7 +227,13 @@ public class RegistrationSearch {
 
         if (!this.routes.isEmpty()) query.in("metaData.route", this.routes);
         if (!this.tiers.isEmpty()) query.in("tier", this.tiers);
-        if (!this.statuses.isEmpty()) query.in("metaData.status", this.statuses);
+        if (this.statuses.size() == 1) {
+            // An equality match rather than $in means a search for just active registrations can use the partial
+            // index on active registrations (see `IndexCatalogue`)
+            query.is("metaData.status", this.statuses.iterator().next());
+        } else if (!this.statuses.isEmpty()) {
+            query.in("metaData.status", this.statuses);
+        }
         if (!this.businessTypes.isEmpty()) query.in("businessType", this.businessTypes);
         if (this.copyCardsFilter != null) copyCardsQuery(query);
 
@@ -100,17 +244,7 @@ public class RegistrationSearch {
             query.or(DBQuery.is(KEY_PEOPLE_CONVICTION_MATCH, ConvictionSearchResult.MatchResult.YES));
         }
 
-        try {
-            if (this.resultCount == 0) {
-                results = searchHelper.toList(registrations.find(query));
-            } else {
-                results = searchHelper.toList(registrations.find(query).limit(this.resultCount));
-            }
-        } catch (IllegalArgumentException e) {
-            log.severe("Caught exception: " + e.getMessage() + " - Cannot find copy cards");
-        }
-
-        return results;
+        return query;
     }
 
     /**
@@ -0,0 +1,242 @@
+package uk.gov.ea.wastecarrier.services.search;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import uk.gov.ea.wastecarrier.services.core.FinanceDetails;
+import uk.gov.ea.wastecarrier.services.core.Order;
+import uk.gov.ea.wastecarrier.services.core.Payment;
+import uk.gov.ea.wastecarrier.services.core.Registration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Holds the results of recently run back office reports, so that running the same report again is just a lookup.
+ *
+ * The cache is bounded by the total number of registrations it holds rather than the number of reports, as one year
+ * long report can be bigger than hundreds of short ones. Entries also expire a fixed time after they were added.
+ *
+ * Whenever a registration is saved the write paths call `invalidate()`, which drops every report the change could
+ * affect. That's any report that returned the registration, as it might no longer match or its details are now out
+ * of date, plus any report whose date range includes one of the registration's dates, as it might now match when it
+ * didn't before.
+ *
+ * Invalidation only reaches the cache of the instance the change was made through. Where the service runs as more
+ * than one instance, a registration saved, paid for or deleted through one leaves the others serving the old report
+ * until it expires, which as reports filter on status, payments and conviction checks means wrong answers. So the
+ * cache is off unless `reportCacheSize` is set, which should only be done where a single instance is run.
+ */
+public class ReportCache {
+
+    private static Logger log = Logger.getLogger(ReportCache.class.getName());
+
+    private final Cache<String, Entry> cache;
+
+    // Bumped on every invalidation, so a report that was running whilst a registration was saved isn't cached
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxRegistrations the most registrations to hold across all cached reports
+     * @param ttlMinutes how long to keep a report's results for
+     * @param metrics registry to report hits, misses, evictions and invalidations to, or null
+     */
+    public ReportCache(long maxRegistrations, long ttlMinutes, MetricRegistry metrics) {
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxRegistrations)
+                .weigher((String key, Entry entry) -> entry.results.size() + 1)
+                .expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+
+        if (metrics != null) registerMetrics(metrics);
+    }
+
+    /**
+     * Returns the cached results for the report if we have them, else runs it.
+     *
+     * @param search the report to run
+     * @return the report results. These may be shared with other callers so must not be changed
+     */
+    public List<Registration> execute(ReportSearch search) {
+
+        String key = search.cacheKey();
+
+        Entry entry = this.cache.getIfPresent(key);
+        if (entry != null) return entry.results;
+
+        long writesBefore = this.writes.get();
+        List<Registration> results = Collections.unmodifiableList(search.execute());
+
+        // If a registration was saved whilst the report ran we can't tell whether the results include the change,
+        // so we return them but don't keep them. A save between this check and the put could look for the entry
+        // before it's there, so we check again once it is and take it back out if one did
+        if (this.writes.get() == writesBefore) {
+            Entry added = new Entry(search.getFromDate(), search.getToDate(), results);
+            this.cache.put(key, added);
+
+            if (this.writes.get() != writesBefore) this.cache.asMap().remove(key, added);
+        } else {
+            log.fine("Not caching report " + key + " as registrations were saved whilst it ran");
+        }
+
+        return results;
+    }
+
+    /**
+     * Drops the cached reports affected by a change to the registration.
+     *
+     * @param registration the registration as saved
+     */
+    public void invalidate(Registration registration) {
+
+        if (registration == null) return;
+
+        invalidate(registration.getId(), datesOf(registration));
+    }
+
+    /**
+     * As above, for write paths that take the id separately from the registration saved, which may not have it set.
+     *
+     * @param registrationId id of the registration changed
+     * @param registration the registration as saved
+     */
+    public void invalidate(String registrationId, Registration registration) {
+
+        if (registration == null) return;
+
+        invalidate(registrationId, datesOf(registration));
+    }
+
+    /**
+     * Drops the cached reports affected by a change to a registration, for write paths that only have part of it to
+     * hand.
+     *
+     * @param registrationId id of the registration changed
+     * @param dates the dates on the registration that changed
+     */
+    public void invalidate(String registrationId, Collection<Date> dates) {
+
+        this.writes.incrementAndGet();
+
+        Iterator<Entry> entries = this.cache.asMap().values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().affectedBy(registrationId, dates)) {
+                entries.remove();
+                this.invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops every cached report, for bulk changes where working out which reports are affected would cost more than
+     * running them again.
+     */
+    public void invalidateAll() {
+
+        this.writes.incrementAndGet();
+
+        this.invalidations.addAndGet(this.cache.size());
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Builds a cache key from the criteria of a report. Collections are sorted, so the order filter values were
+     * passed in doesn't matter, and dates are reduced to the instant they represent.
+     */
+    public static String key(String report, Object... criteria) {
+
+        StringBuilder key = new StringBuilder(report);
+        for (Object criterion : criteria) key.append('|').append(canonical(criterion));
+
+        return key.toString();
+    }
+
+    private static String canonical(Object criterion) {
+
+        if (criterion == null) return "";
+        if (criterion instanceof Date) return String.valueOf(((Date) criterion).getTime());
+        if (criterion instanceof Collection) return new TreeSet<>((Collection<?>) criterion).toString();
+        if (criterion instanceof SearchFields) {
+            SearchFields fields = (SearchFields) criterion;
+            return fields.isSummary() ? SearchFields.SUMMARY : fields.getFields().toString();
+        }
+
+        return criterion.toString();
+    }
+
+    private static List<Date> datesOf(Registration registration) {
+
+        List<Date> dates = new ArrayList<>();
+
+        if (registration.getMetaData() != null) dates.add(registration.getMetaData().getDateRegistered());
+
+        FinanceDetails financeDetails = registration.getFinanceDetails();
+        if (financeDetails != null) {
+            if (financeDetails.getOrders() != null) {
+                for (Order order : financeDetails.getOrders()) {
+                    dates.add(order.getDateCreated());
+                    dates.add(order.getDateLastUpdated());
+                }
+            }
+            if (financeDetails.getPayments() != null) {
+                for (Payment payment : financeDetails.getPayments()) dates.add(payment.getDateReceived());
+            }
+        }
+
+        return dates;
+    }
+
+    private void registerMetrics(MetricRegistry metrics) {
+        metrics.register(MetricRegistry.name(ReportCache.class, "hits"),
+                (Gauge<Long>) () -> this.cache.stats().hitCount());
+        metrics.register(MetricRegistry.name(ReportCache.class, "misses"),
+                (Gauge<Long>) () -> this.cache.stats().missCount());
+        metrics.register(MetricRegistry.name(ReportCache.class, "evictions"),
+                (Gauge<Long>) () -> this.cache.stats().evictionCount());
+        metrics.register(MetricRegistry.name(ReportCache.class, "invalidations"),
+                (Gauge<Long>) this.invalidations::get);
+        metrics.register(MetricRegistry.name(ReportCache.class, "reports"),
+                (Gauge<Long>) this.cache::size);
+    }
+
+    private static class Entry {
+
+        private final Date from;
+        private final Date to;
+        private final List<Registration> results;
+        private final Set<String> ids = new HashSet<>();
+
+        private Entry(Date from, Date to, List<Registration> results) {
+            this.from = from;
+            this.to = to;
+            this.results = results;
+            for (Registration registration : results) this.ids.add(registration.getId());
+        }
+
+        private boolean affectedBy(String registrationId, Collection<Date> dates) {
+
+            if (registrationId != null && this.ids.contains(registrationId)) return true;
+
+            for (Date date : dates) {
+                if (date != null && !date.before(this.from) && !date.after(this.to)) return true;
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package uk.gov.ea.wastecarrier.services.search;
+
+import uk.gov.ea.wastecarrier.services.core.Registration;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A back office report search whose results can be held in the `ReportCache`. Reports always cover a date range, and
+ * a registration can only appear in the results if one of its dates falls within it.
+ */
+public interface ReportSearch {
+
+    /**
+     * @return a key that is the same for any two searches with the same criteria, however they were expressed. For
+     * example the order of the filter values, or the format of the dates, must not change it
+     */
+    String cacheKey();
+
+    Date getFromDate();
+
+    Date getToDate();
+
+    List<Registration> execute();
+}
@@ -0,0 +1,128 @@
+package uk.gov.ea.wastecarrier.services.search;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * The fields a client has asked to get back from a search. These are passed to MongoDB as a projection, so the
+ * fields we don't need are never sent over the wire, decoded from BSON or mapped onto the registration.
+ *
+ * Fields are named as they appear in the stored document (which is also how they appear in the JSON we return),
+ * using dot notation for nested fields, for example `metaData.status` or `addresses.postcode`. The `_id` is always
+ * returned.
+ *
+ * The special value `summary` selects the handful of fields shown in the back office search results list. Results
+ * for a summary search are returned as `RegistrationSummary` rather than `Registration`.
+ */
+public class SearchFields {
+
+    public static final String SUMMARY = "summary";
+
+    // What we'll accept as a field name. Importantly this rules out anything starting with $
+    private static final Pattern FIELD_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*");
+
+    private static final Set<String> SUMMARY_FIELDS = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+            "regIdentifier",
+            "tier",
+            "businessType",
+            "companyName",
+            "firstName",
+            "lastName",
+            "expires_on",
+            "metaData.status",
+            "metaData.dateRegistered",
+            "addresses.addressType",
+            "addresses.postcode"
+    )));
+
+    private final Set<String> fields;
+    private final boolean summary;
+
+    private SearchFields(Set<String> fields, boolean summary) {
+        this.fields = fields;
+        this.summary = summary;
+    }
+
+    /**
+     * @param fields comma separated list of field names, or `summary`
+     * @return the fields to return, or null if none were specified (meaning return the whole document)
+     * @throws IllegalArgumentException if any of the field names are not valid
+     */
+    public static SearchFields parse(String fields) {
+
+        if (fields == null || fields.trim().isEmpty()) return null;
+
+        if (SUMMARY.equalsIgnoreCase(fields.trim())) return new SearchFields(SUMMARY_FIELDS, true);
+
+        Set<String> parsed = new TreeSet<>();
+        for (String field : fields.split(",")) {
+            field = field.trim();
+            if (field.isEmpty()) continue;
+            if (!FIELD_NAME.matcher(field).matches()) {
+                throw new IllegalArgumentException("Invalid field name " + field);
+            }
+            parsed.add(field);
+        }
+
+        if (parsed.isEmpty()) return null;
+
+        return new SearchFields(Collections.unmodifiableSet(parsed), false);
+    }
+
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    public boolean isSummary() {
+        return summary;
+    }
+
+    /**
+     * Builds the MongoDB projection for these fields. Searches can name additional fields they always need, for
+     * example the field they are paging on, regardless of what the client asked for.
+     *
+     * A field is left out if one of its parents is already included, as asking for both `metaData` and
+     * `metaData.status` is redundant and newer versions of MongoDB reject it as a path collision.
+     *
+     * @param required fields that must be included in addition to those requested
+     * @return the projection to pass to `find()`
+     */
+    public DBObject projection(String... required) {
+
+        Set<String> all = new TreeSet<>(this.fields);
+        all.addAll(Arrays.asList(required));
+
+        BasicDBObject projection = new BasicDBObject();
+        for (String field : all) {
+            if (!coveredByParent(field, all)) projection.append(field, 1);
+        }
+
+        return projection;
+    }
+
+    /**
+     * Convenience for searches which may not have been given any fields.
+     *
+     * @return the projection for `fields`, or null (meaning the whole document) if `fields` is null
+     */
+    public static DBObject projection(SearchFields fields, String... required) {
+        return fields == null ? null : fields.projection(required);
+    }
+
+    private static boolean coveredByParent(String field, Set<String> all) {
+
+        int dot = field.lastIndexOf('.');
+        while (dot > 0) {
+            if (all.contains(field.substring(0, dot))) return true;
+            dot = field.lastIndexOf('.', dot - 1);
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,128 @@
+package uk.gov.ea.wastecarrier.services.search;
+
+import com.mongodb.DBObject;
+import org.mongojack.DBCursor;
+import org.mongojack.DBQuery;
+import org.mongojack.JacksonDBCollection;
+import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A single page of search results, along with the token needed to fetch the next page.
+ *
+ * @param <T> the type of document in the page
+ */
+public class SearchPage<T> {
+
+    public static final String NEXT_PAGE_TOKEN_HEADER = "X-Next-Page-Token";
+    public static final String HAS_MORE_HEADER = "X-Has-More";
+
+    private final List<T> results;
+    private final String nextPageToken;
+    private final Boolean hasMore;
+
+    public SearchPage(List<T> results, String nextPageToken, Boolean hasMore) {
+        this.results = results;
+        this.nextPageToken = nextPageToken;
+        this.hasMore = hasMore;
+    }
+
+    public List<T> getResults() {
+        return results;
+    }
+
+    /**
+     * @return token for the next page, or null if we know there are no more results
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    /**
+     * @return whether there are more results after this page, or null if the caller did not ask us to check
+     */
+    public Boolean getHasMore() {
+        return hasMore;
+    }
+
+    /**
+     * Fetches the page of documents matching `query` that follow the position recorded in `after`.
+     *
+     * Working out whether there are more results is optional. When asked for we simply read one more document than
+     * the page size and discard it, which is far cheaper than a count. When not asked for, a full page always comes
+     * with a next page token, even if that page later turns out to be empty.
+     *
+     * @param collection the collection to search
+     * @param query the search criteria
+     * @param keys projection to apply, or null for whole documents. It must include the sort field
+     * @param sortField field the results are ordered by (with `_id` as the tie-breaker)
+     * @param sortValue extracts the value of the sort field from a document, used to build the next page token
+     * @param idValue extracts the id from a document
+     * @param after position of the last document in the previous page, or null for the first page
+     * @param pageSize maximum number of documents to return
+     * @param checkHasMore whether to find out if there are more results after this page
+     */
+    public static <T> SearchPage<T> fetch(
+            JacksonDBCollection<T, String> collection,
+            DBQuery.Query query,
+            DBObject keys,
+            String sortField,
+            Function<T, Object> sortValue,
+            Function<T, String> idValue,
+            PageToken after,
+            int pageSize,
+            boolean checkHasMore
+    ) {
+        return fetch(collection, query, keys, sortField, sortValue, idValue, after, pageSize, checkHasMore, 0);
+    }
+
+    /**
+     * As above, but MongoDB stops the query if it runs for longer than `maxTimeMillis` (see `SearchHelper.maxTime()`).
+     *
+     * @param maxTimeMillis the longest the query may run for, or 0 for no limit
+     */
+    public static <T> SearchPage<T> fetch(
+            JacksonDBCollection<T, String> collection,
+            DBQuery.Query query,
+            DBObject keys,
+            String sortField,
+            Function<T, Object> sortValue,
+            Function<T, String> idValue,
+            PageToken after,
+            int pageSize,
+            boolean checkHasMore,
+            long maxTimeMillis
+    ) {
+        if (after != null && !after.getSortField().equals(sortField)) {
+            throw new IllegalArgumentException("Page token is for a different search");
+        }
+
+        DBQuery.Query pageQuery = after == null ? query : DBQuery.and(query, after.after());
+
+        List<T> results = new ArrayList<>(checkHasMore ? pageSize + 1 : pageSize);
+
+        try (DBCursor<T> cursor = SearchHelper.maxTime(collection.find(pageQuery, keys)
+                .sort(PageToken.sort(sortField))
+                .limit(checkHasMore ? pageSize + 1 : pageSize), maxTimeMillis)) {
+            while (cursor.hasNext()) results.add(cursor.next());
+        }
+
+        Boolean hasMore = null;
+        if (checkHasMore) {
+            hasMore = results.size() > pageSize;
+            if (hasMore) results.remove(pageSize);
+        }
+
+        String nextPageToken = null;
+        if (results.size() == pageSize && pageSize > 0 && !Boolean.FALSE.equals(hasMore)) {
+            T last = results.get(pageSize - 1);
+            Object lastValue = PageToken.ID_FIELD.equals(sortField) ? null : sortValue.apply(last);
+            nextPageToken = new PageToken(sortField, lastValue, idValue.apply(last)).encode();
+        }
+
+        return new SearchPage<>(results, nextPageToken, hasMore);
+    }
+}
@@ -1,25 +1,53 @@
 package uk.gov.ea.wastecarrier.services.search;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoInterruptedException;
 import org.mongojack.DBQuery;
 import org.mongojack.DBSort;
 import org.mongojack.JacksonDBCollection;
 import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.core.SearchKeys;
 import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 public class WithinSearch {
 
+    private static final String REG_IDENTIFIER_FIELD = "regIdentifier";
+
+    // Names of the timers recording how long each stage of the search takes
+    public static final String REG_IDENTIFIER_PHASE = MetricRegistry.name(WithinSearch.class, "regIdentifier");
+    public static final String FIELDS_PHASE = MetricRegistry.name(WithinSearch.class, "fields");
+
+    // Name of the computed field holding the text search score. It's not mapped onto the registration
+    private static final String TEXT_SCORE_FIELD = "textScore";
+
     private SearchHelper searchHelper;
     private Logger log = Logger.getLogger(WithinSearch.class.getName());
 
     private String searchValue;
     private SearchWithin searchWithin;
+    private MatchMode matchMode;
     private Pattern likePattern;
     private Integer resultCount;
+    private SearchFields fields;
+    private ExecutorService executor;
+    private long maxTimeMillis;
+    private MetricRegistry metrics;
 
 
     public enum SearchWithin {
@@ -29,9 +57,31 @@ public class WithinSearch {
         postcode
     }
 
+    /**
+     * How the search value is compared against the fields.
+     *
+     * - prefix: the normalised field starts with the normalised value. This is the default
+     * - exact: the normalised field is the same as the normalised value
+     * - substring: the field contains the value anywhere, ignoring case. This is how the search worked originally,
+     *      but it cannot use an index so every search is a scan of the whole registrations collection. It should
+     *      only be used when a prefix search hasn't found what the user is looking for
+     * - text: a full text search of the registration number, company name and number, contact name and postcodes.
+     *      Any of the words entered can match, and results are ranked by how well they match. As the text index
+     *      covers all of these fields the searchWithin value is ignored
+     *
+     * The prefix and exact modes compare against the normalised `searchKeys` stored on each registration (see
+     * `SearchKeys`), so case, punctuation and the spacing in postcodes make no difference.
+     */
+    public enum MatchMode {
+        prefix,
+        exact,
+        substring,
+        text
+    }
+
     /**
      * Search for registrations in the database by looking within specific fields, namely companyName, contactName and
-     * the postcode field in the addresses.
+     * the postcode field in the addresses. Values are matched as a prefix.
      *
      * This search directly supports the search run from the home screen of the back office.
      *
@@ -41,25 +91,78 @@ public class WithinSearch {
      *                     field by selecting from a dropdown. The values that translates to are 'any', 'companyName',
      *                     'contactName', and 'postcode'
      * @param resultCount the user doesn't get to specify this value, nor is it passed in the query like other searches.
-     *                    However we do limit the results generated to just 100 as the back office does not support
-     *                    paging, and exposing it as a param aids with unit testing.
+     *                    However we do limit the results generated by `execute()` to just 100, and exposing it as
+     *                    a param aids with unit testing. Clients that need more should use `page()` instead.
+     */
+    public WithinSearch(
+            SearchHelper searchHelper,
+            String searchValue,
+            String searchWithin,
+            Integer resultCount
+    ) {
+        this(searchHelper, searchValue, searchWithin, MatchMode.prefix.name(), resultCount);
+    }
+
+    /**
+     * As above, but with control over how the value is matched.
+     *
+     * @param matchMode one of 'prefix', 'exact', 'substring' or 'text'
      */
     public WithinSearch(
             SearchHelper searchHelper,
             String searchValue,
             String searchWithin,
+            String matchMode,
             Integer resultCount
     ) {
         this.searchHelper = searchHelper;
         this.searchValue = searchValue;
         this.searchWithin = SearchWithin.valueOf(searchWithin);
+        this.matchMode = MatchMode.valueOf(matchMode);
         this.resultCount = resultCount;
 
-        this.likePattern =  Pattern.compile(
-                String.format(".*%s.*", this.searchValue),
+        this.likePattern = Pattern.compile(
+                String.format(".*%s.*", SearchHelper.escapeRegex(this.searchValue)),
                 Pattern.CASE_INSENSITIVE);
     }
 
+    /**
+     * Restrict the fields returned for each registration. If not set the whole registration is returned.
+     *
+     * @param fields the fields to return, or null for all of them
+     */
+    public void setFields(SearchFields fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Lets the search run its two stages concurrently (see `firstNonEmpty()`). The executor should be bounded, and
+     * shared by all searches.
+     *
+     * @param executor the executor to run the stages on, or null to run them one after the other
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Limits how long each query the search makes can run for on the server. When both stages run at the same time
+     * and the `regIdentifier` stage wins, cancelling the fields stage only stops us waiting for it, so this is what
+     * stops the query itself.
+     *
+     * @param maxTimeMillis the longest a query may run for, or 0 for no limit
+     */
+    public void setMaxTime(long maxTimeMillis) {
+        this.maxTimeMillis = maxTimeMillis;
+    }
+
+    /**
+     * @param metrics registry to record the time taken by each stage of the search in, or null to not record them
+     */
+    public void setMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * The order events in this search `execute()` is different from others hence this note. Based on the historic
      * behaviour before the search was refactored, if a the searchWithin value was 'any' then the first search was
@@ -67,21 +170,31 @@ public class WithinSearch {
      *
      * Hence if 'any' is selected there is a possibility of running 2 searches; the first for any registrations with a
      * regIdentifier 'like' the `searchValue` provided. If no results we then make a second which looks in all 3 of the
-     * possible search within fields.
+     * possible search within fields. Where an executor has been set these run at the same time, though the
+     * regIdentifier results still take precedence.
      * @return List of registrations that matched the search criteria
      */
     public List<Registration> execute() {
 
-        List<Registration> results = executeAny();
-        if (!results.isEmpty()) return results;
+        if (this.matchMode == MatchMode.text) return executeText();
+
+        return firstNonEmpty(this::executeAny, this::executeFields, List::isEmpty);
+    }
+
+    private List<Registration> executeFields() {
 
         JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
 
+        List<Registration> results = new LinkedList<>();
+
         DBQuery.Query query = determineQuery();
         DBSort.SortBuilder sortBy = determineSort();
 
         try {
-            results = searchHelper.toList(registrations.find(query).limit(this.resultCount).sort(sortBy));
+            results = searchHelper.toList(SearchHelper.maxTime(registrations
+                    .find(query, SearchFields.projection(this.fields))
+                    .limit(this.resultCount)
+                    .sort(sortBy), this.maxTimeMillis));
         } catch (IllegalArgumentException e) {
             log.severe("Caught exception: " + e.getMessage() + " - Cannot find registrations within");
         }
@@ -93,13 +206,16 @@ public class WithinSearch {
 
         JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
 
-        DBQuery.Query query = DBQuery.regex("regIdentifier", likePattern);
-        DBSort.SortBuilder sortBy = DBSort.asc("regIdentifier");
+        DBQuery.Query query = regIdentifierQuery();
+        DBSort.SortBuilder sortBy = DBSort.asc(REG_IDENTIFIER_FIELD);
 
         List<Registration> results = new LinkedList<>();
 
         try {
-            results = searchHelper.toList(registrations.find(query).limit(this.resultCount).sort(sortBy));
+            results = searchHelper.toList(SearchHelper.maxTime(registrations
+                    .find(query, SearchFields.projection(this.fields))
+                    .limit(this.resultCount)
+                    .sort(sortBy), this.maxTimeMillis));
         } catch (IllegalArgumentException e) {
             log.severe("Caught exception: " + e.getMessage() + " - Cannot find registrations within any");
         }
@@ -107,7 +223,262 @@ public class WithinSearch {
         return results;
     }
 
+    /**
+     * Runs the search against the registrations text index (see `IndexCatalogue.REGISTRATIONS`). MongoDB
+     * splits the value into words and finds registrations containing any of them. These are returned
+     * best match first, with a match on each field weighted as follows:
+     *
+     * - regIdentifier: 10
+     * - company_no: 10
+     * - companyName: 5
+     * - lastName: 3
+     * - addresses.postcode: 3
+     * - firstName: 1
+     */
+    private List<Registration> executeText() {
+
+        JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
+
+        List<Registration> results = new LinkedList<>();
+
+        try {
+            results = searchHelper.toList(SearchHelper.maxTime(registrations
+                    .find(textQuery(), textKeys())
+                    .limit(this.resultCount)
+                    .sort(textScore()), this.maxTimeMillis));
+        } catch (IllegalArgumentException e) {
+            log.severe("Caught exception: " + e.getMessage() + " - Cannot find registrations by text");
+        }
+
+        return results;
+    }
+
+    private DBObject textQuery() {
+        return new BasicDBObject("$text", new BasicDBObject("$search", this.searchValue));
+    }
+
+    private DBObject textScore() {
+        return new BasicDBObject(TEXT_SCORE_FIELD, new BasicDBObject("$meta", "textScore"));
+    }
+
+    /**
+     * Before MongoDB 4.4 you can only sort by the text score if it's also included in the projection.
+     */
+    private DBObject textKeys() {
+
+        DBObject keys = textScore();
+        if (this.fields != null) keys.putAll(this.fields.projection());
+
+        return keys;
+    }
+
+    /**
+     * Paged version of `execute()`. The same two stage search applies; whilst the `regIdentifier` search is
+     * returning results we page through those, and only if the first page of it is empty do we move on to the
+     * other fields. The token records which stage it belongs to, so the next page picks up in the right place.
+     *
+     * The second stage is paged on the company name or last name (plus `_id`) to keep the same order as `execute()`.
+     * The one exception is postcode, because a registration has more than one postcode and so no single value to
+     * continue from. Those results are paged in `_id` order instead.
+     *
+     * Text searches are ordered by how well each registration matches, which isn't a value we can continue from,
+     * so they can't be paged.
+     *
+     * @param pageToken token from the previous page, or null for the first
+     * @param pageSize number of registrations to return in the page
+     * @param checkHasMore whether to also report if there are more registrations after this page
+     * @return the page of registrations
+     * @throws IllegalArgumentException if the page token is invalid, or this is a text search
+     */
+    public SearchPage<Registration> page(String pageToken, int pageSize, boolean checkHasMore) {
+
+        if (this.matchMode == MatchMode.text) throw new IllegalArgumentException("Text searches cannot be paged");
+
+        PageToken after = pageToken == null ? null : PageToken.decode(pageToken);
+
+        // On the first page we don't yet know which stage we'll end up in, so as with `execute()` we run both
+        if (after == null) {
+            return firstNonEmpty(
+                    () -> regIdentifierPage(null, pageSize, checkHasMore),
+                    () -> fieldsPage(null, pageSize, checkHasMore),
+                    page -> page.getResults().isEmpty()
+            );
+        }
+
+        if (REG_IDENTIFIER_FIELD.equals(after.getSortField())) {
+            return timed(REG_IDENTIFIER_PHASE, () -> regIdentifierPage(after, pageSize, checkHasMore));
+        }
+
+        return timed(FIELDS_PHASE, () -> fieldsPage(after, pageSize, checkHasMore));
+    }
+
+    private SearchPage<Registration> regIdentifierPage(PageToken after, int pageSize, boolean checkHasMore) {
+        return SearchPage.fetch(
+                this.searchHelper.<Registration>getCollection(),
+                regIdentifierQuery(),
+                SearchFields.projection(this.fields, REG_IDENTIFIER_FIELD),
+                REG_IDENTIFIER_FIELD,
+                Registration::getRegIdentifier,
+                Registration::getId,
+                after,
+                pageSize,
+                checkHasMore,
+                this.maxTimeMillis
+        );
+    }
+
+    private SearchPage<Registration> fieldsPage(PageToken after, int pageSize, boolean checkHasMore) {
+
+        String sortField = determinePageSortField();
+
+        return SearchPage.fetch(
+                this.searchHelper.<Registration>getCollection(),
+                determineQuery(),
+                SearchFields.projection(this.fields, sourceField(sortField)),
+                sortField,
+                registration -> sortValue(registration, sortField),
+                Registration::getId,
+                after,
+                pageSize,
+                checkHasMore,
+                this.maxTimeMillis
+        );
+    }
+
+    /**
+     * The queries this search sends to MongoDB, so we can check how they are run (see `QueryPlan`). Other than for
+     * text searches that is both stages of `execute()`, and the same two stages as the first page of `page()`, which
+     * are sorted differently.
+     */
+    public List<QueryShape> queryShapes() {
+
+        JacksonDBCollection<Registration, String> registrations = this.searchHelper.getCollection();
+        String name = "within " + this.matchMode + " " + this.searchWithin;
+
+        if (this.matchMode == MatchMode.text) {
+            return Collections.singletonList(new QueryShape(
+                    name, registrations.getDbCollection(), textQuery(), textScore(), textKeys(), this.resultCount));
+        }
+
+        DBObject projection = SearchFields.projection(this.fields);
+        String pageSortField = determinePageSortField();
+
+        return Arrays.asList(
+                QueryShape.of(name + " regIdentifier", registrations, regIdentifierQuery(),
+                        DBSort.asc(REG_IDENTIFIER_FIELD), projection, this.resultCount),
+                QueryShape.of(name, registrations, determineQuery(), determineSort(), projection, this.resultCount),
+                QueryShape.of(name + " regIdentifier page", registrations, regIdentifierQuery(),
+                        PageToken.sort(REG_IDENTIFIER_FIELD),
+                        SearchFields.projection(this.fields, REG_IDENTIFIER_FIELD), this.resultCount),
+                QueryShape.of(name + " page", registrations, determineQuery(), PageToken.sort(pageSortField),
+                        SearchFields.projection(this.fields, sourceField(pageSortField)), this.resultCount)
+        );
+    }
+
+    /**
+     * Runs the `regIdentifier` stage and the fields stage of the search, returning the result of the first unless
+     * it is empty. If we have an executor both stages are run at the same time, rather than one after the other, and
+     * as soon as the `regIdentifier` stage comes back with results the fields stage is cancelled. Else they are run
+     * in order and the fields stage only if needed, which is how the search has always worked.
+     *
+     * @param regIdentifierStage the first stage, whose results win if there are any
+     * @param fieldsStage the second stage
+     * @param isEmpty tests whether a stage found anything
+     */
+    private <T> T firstNonEmpty(Callable<T> regIdentifierStage, Callable<T> fieldsStage, Predicate<T> isEmpty) {
+
+        if (this.executor == null) {
+            T result = timed(REG_IDENTIFIER_PHASE, regIdentifierStage);
+            if (!isEmpty.test(result)) return result;
+
+            return timed(FIELDS_PHASE, fieldsStage);
+        }
+
+        Future<T> regIdentifierFuture = this.executor.submit(() -> timed(REG_IDENTIFIER_PHASE, regIdentifierStage));
+        Future<T> fieldsFuture = this.executor.submit(() -> timed(FIELDS_PHASE, fieldsStage));
+
+        try {
+            T result = regIdentifierFuture.get();
+            if (!isEmpty.test(result)) {
+                fieldsFuture.cancel(true);
+                return result;
+            }
+
+            return fieldsFuture.get();
+        } catch (InterruptedException e) {
+            regIdentifierFuture.cancel(true);
+            fieldsFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new MongoInterruptedException("Interrupted waiting for search results", e);
+        } catch (ExecutionException e) {
+            fieldsFuture.cancel(true);
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs a stage of the search, recording how long it took if we have been given a metric registry. We only time
+     * stages that complete, so the timings aren't skewed by those cancelled part way through.
+     */
+    private <T> T timed(String phase, Callable<T> stage) {
+
+        Timer.Context context = this.metrics == null ? null : this.metrics.timer(phase).time();
+
+        try {
+            T result = stage.call();
+            if (context != null) context.stop();
+            return result;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Registration numbers are always upper case, so rather than a case insensitive regex (which MongoDB can't turn
+     * into a tight index range) we upper case the value and match it as a prefix, or exactly in exact mode.
+     */
+    private DBQuery.Query regIdentifierQuery() {
+
+        if (this.matchMode == MatchMode.substring) return DBQuery.regex(REG_IDENTIFIER_FIELD, likePattern);
+
+        String regIdentifier = this.searchValue.trim().toUpperCase(Locale.ENGLISH);
+
+        return keyQuery(REG_IDENTIFIER_FIELD, regIdentifier.isEmpty() ? null : regIdentifier);
+    }
+
     private DBQuery.Query determineQuery() {
+
+        if (this.matchMode == MatchMode.substring) return determineSubstringQuery();
+
+        String name = SearchKeys.normaliseName(this.searchValue);
+        String postcode = SearchKeys.compactPostcode(this.searchValue);
+
+        DBQuery.Query query = null;
+
+        switch(this.searchWithin) {
+            case any:
+                query = DBQuery.or(keyQuery(SearchKeys.COMPANY_NAME, name));
+                query.or(keyQuery(SearchKeys.LAST_NAME, name));
+                query.or(keyQuery(SearchKeys.POSTCODE_COMPACT, postcode));
+                break;
+            case companyName:
+                query = keyQuery(SearchKeys.COMPANY_NAME, name);
+                break;
+            case contactName:
+                query = keyQuery(SearchKeys.LAST_NAME, name);
+                break;
+            case postcode:
+                query = keyQuery(SearchKeys.POSTCODE_COMPACT, postcode);
+                break;
+        }
+
+        return query;
+    }
+
+    private DBQuery.Query determineSubstringQuery() {
         DBQuery.Query query = null;
 
         switch(this.searchWithin) {
@@ -130,6 +501,22 @@ public class WithinSearch {
         return query;
     }
 
+    /**
+     * An anchored, case sensitive regex like `^waste` is turned by MongoDB into a range scan of the index between
+     * "waste" and "wastf", so it is nearly as cheap as an exact match.
+     *
+     * If the value was nothing but punctuation or spaces there is nothing left to search for, in which case we want
+     * to match nothing rather than everything.
+     */
+    private DBQuery.Query keyQuery(String field, String key) {
+
+        if (key == null) return DBQuery.in(field, Collections.emptyList());
+
+        if (this.matchMode == MatchMode.exact) return DBQuery.is(field, key);
+
+        return DBQuery.regex(field, Pattern.compile("^" + SearchHelper.escapeRegex(key)));
+    }
+
     /**
      * Essentially we sort the results based on the following
      * - If the user selected search within 'contactName' then we sort by last name
@@ -143,13 +530,47 @@ public class WithinSearch {
      * If however no matches are found we sort by `companyName` as the assumption is they have just entered the
      * organisation's name and not bothered to select the search within company name option.
      *
+     * For prefix and exact searches the names are sorted using their search keys. This means the sort can be served
+     * by the same index as the query, and as a bonus ignores case.
+     *
      * @return sort to use based on the type of searchWithin requested
      */
     private DBSort.SortBuilder determineSort() {
 
-        if (this.searchWithin == SearchWithin.contactName) return DBSort.asc("lastName");
         if (this.searchWithin == SearchWithin.postcode) return DBSort.asc("addresses.postcode");
 
-        return DBSort.asc("companyName");
+        return DBSort.asc(determinePageSortField());
+    }
+
+    private String determinePageSortField() {
+
+        boolean keyed = this.matchMode != MatchMode.substring;
+
+        if (this.searchWithin == SearchWithin.contactName) return keyed ? SearchKeys.LAST_NAME : "lastName";
+        if (this.searchWithin == SearchWithin.postcode) return PageToken.ID_FIELD;
+
+        return keyed ? SearchKeys.COMPANY_NAME : "companyName";
+    }
+
+    /**
+     * The search keys are derived from the registration, so when paging on one we need to read back the field it is
+     * derived from in order to build the next page token.
+     */
+    private String sourceField(String sortField) {
+
+        if (SearchKeys.LAST_NAME.equals(sortField)) return "lastName";
+        if (SearchKeys.COMPANY_NAME.equals(sortField)) return "companyName";
+
+        return sortField;
+    }
+
+    private Object sortValue(Registration registration, String sortField) {
+
+        if ("lastName".equals(sortField)) return registration.getLastName();
+        if ("companyName".equals(sortField)) return registration.getCompanyName();
+        if (SearchKeys.LAST_NAME.equals(sortField)) return SearchKeys.normaliseName(registration.getLastName());
+        if (SearchKeys.COMPANY_NAME.equals(sortField)) return SearchKeys.normaliseName(registration.getCompanyName());
+
+        return null;
     }
 }
@@ -7,12 +7,20 @@ import java.io.PrintWriter;
 import java.util.logging.Logger;
 
 import io.dropwizard.servlets.tasks.Task;
+import uk.gov.ea.wastecarrier.services.dao.EntityDao;
+import uk.gov.ea.wastecarrier.services.dao.IRRenewalDao;
+import uk.gov.ea.wastecarrier.services.dao.IndexCatalogue;
 import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
+import uk.gov.ea.wastecarrier.services.dao.UserDao;
 
 import com.google.common.collect.ImmutableMultimap;
 
 /**
  * DropWizard task to ensure that indexes have been defined on the MongoDb database collections.
+ *
+ * The indexes are declared in `IndexCatalogue`. Any that are missing are built in the background, and any
+ * differences between what is declared and what is in the database are written to the task output and logged. Nothing
+ * is dropped.
  * @author gmueller
  *
  */
@@ -21,25 +29,52 @@ public class EnsureDatabaseIndexesTask extends Task {
     /** Logger for this class. */
     private Logger log = Logger.getLogger(EnsureDatabaseIndexesTask.class.getName());
 
-    /** The DAO (injected). */
+    /** The DAOs (injected). */
     private RegistrationDao dao;
+    private UserDao userDao;
+    private EntityDao entityDao;
+    private IRRenewalDao irRenewalDao;
 
     /**
      * Constructor.
      * @param name the task name
-     * @param dao the DAO
+     * @param dao the registrations DAO
+     * @param userDao the users DAO
+     * @param entityDao the entity matching DAO
+     * @param irRenewalDao the IR renewals DAO
      */
-    public EnsureDatabaseIndexesTask(String name, RegistrationDao dao) {
+    public EnsureDatabaseIndexesTask(
+            String name,
+            RegistrationDao dao,
+            UserDao userDao,
+            EntityDao entityDao,
+            IRRenewalDao irRenewalDao
+    ) {
         super(name);
         this.dao = dao;
+        this.userDao = userDao;
+        this.entityDao = entityDao;
+        this.irRenewalDao = irRenewalDao;
     }
 
     @Override
     public void execute(ImmutableMultimap<String, String> parameters,
             PrintWriter output) throws Exception {
         log.info("Executing the task - ensuring indexes have been defined in the database.");
-        dao.ensureIndexes();
+        report(dao.ensureIndexes(), output);
+        report(userDao.ensureIndexes(), output);
+        report(entityDao.ensureIndexes(), output);
+        report(irRenewalDao.ensureIndexes(), output);
+        output.flush();
         log.info("Task completed.");
     }
 
+    private void report(IndexCatalogue.Report report, PrintWriter output) {
+
+        if (report.hasDrift()) {
+            log.warning("Indexes differ from the catalogue. " + report);
+        }
+        output.println(report);
+    }
+
 }
@@ -8,54 +8,145 @@ import uk.gov.ea.wastecarrier.services.DatabaseConfiguration;
 import uk.gov.ea.wastecarrier.services.EntityCsvReader;
 import uk.gov.ea.wastecarrier.services.core.Entity;
 import uk.gov.ea.wastecarrier.services.dao.EntityDao;
+import uk.gov.ea.wastecarrier.services.match.EntityIndexHolder;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import java.io.PrintWriter;
+import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Logger;
 
 // POST http://localhost:8005/tasks/entity-populator
+// POST http://localhost:8005/tasks/entity-populator?mode=incremental to write only the rows that have changed
 public class EntityPopulatorTask extends PostBodyTask {
 
     private final EntityCsvReader reader;
     private final EntityDao dao;
     private final String filePath;
+    private final EntityIndexHolder entityIndex;
 
     private static Logger log = Logger.getLogger(EntityPopulatorTask.class.getName());
 
     public EntityPopulatorTask(
             String name,
             DatabaseConfiguration databaseConfig,
-            String entityMatchingSeedFile
+            String entityMatchingSeedFile,
+            EntityIndexHolder entityIndex
     ) {
         super(name);
 
         this.reader = new EntityCsvReader();
         this.dao = new EntityDao(databaseConfig);
         this.filePath = entityMatchingSeedFile;
+        this.entityIndex = entityIndex;
     }
 
-    public void execute(ImmutableMultimap<String, String> arg0, String body, PrintWriter out) {
+    public void execute(ImmutableMultimap<String, String> parameters, String body, PrintWriter out) {
 
+        boolean incremental = parameters.get("mode").contains("incremental");
+
+        boolean imported = false;
         try {
-            dao.recreate(entities(body));
-        } catch (Exception e) {
-            log.severe("Caught exception: " + e.getMessage());
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            try {
+                if (body == null || body.isEmpty()) {
+                    try (EntityCsvReader.Rows rows = reader.open(this.filePath)) {
+                        load(rows, incremental, out);
+                        out.println("Rejected " + rows.rejected() + " lines with no name or too few fields");
+                    }
+                } else {
+                    Iterator<Entity> entities = entities(body).iterator();
+                    load(entities, incremental, out);
+                }
+                imported = true;
+            } catch (Exception e) {
+                log.severe("Caught exception: " + e.getMessage());
+                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            }
+        } finally {
+            // Even a failed import may have written some of the entities, so this runs either way
+            if (entityIndex != null) refresh(imported, out);
         }
     }
 
-    private List<Entity> entities(String body) throws java.io.IOException {
-        List<Entity> entities = null;
+    /**
+     * Reloads the index if the import changed the entities, which also writes the snapshot it's loaded from at
+     * startup. Where nothing changed we keep the index, and with it any match results cached against it.
+     *
+     * Where the import succeeded a failure here isn't a bad request, so it's reported as an error of its own. The
+     * index will be reloaded by the next refresh, so we say so rather than have the import run again. Where the
+     * import failed we just log it, so the failed import is what's reported.
+     */
+    private void refresh(boolean imported, PrintWriter out) {
+        try {
+            entityIndex.refresh();
+        } catch (Exception e) {
+            String message = "Could not reload the match index: " + e.getMessage()
+                    + ". It will be reloaded when the index is next refreshed";
+            log.severe(message);
+            if (!imported) return;
 
-        if (body == null || body.isEmpty()) {
-            entities = reader.read(this.filePath);
+            out.println("Imported the entities. " + message);
+            out.flush();
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private void load(Iterator<Entity> entities, boolean incremental, PrintWriter out) {
+        if (incremental) {
+            update(entities, out);
         } else {
-            ObjectMapper mapper = new ObjectMapper();
-            TypeFactory factory = mapper.getTypeFactory();
-            entities = mapper.readValue(body, factory.constructCollectionType(List.class, Entity.class));
+            populate(entities, out);
         }
-        return entities;
+    }
+
+    /**
+     * Applies just the rows that have changed, and prints a summary of what did.
+     */
+    private void update(Iterator<Entity> entities, PrintWriter out) {
+
+        long started = System.nanoTime();
+
+        EntityDao.Changes changes = dao.update(entities);
+
+        String summary = String.format("%s in %.1fs", changes, (System.nanoTime() - started) / 1e9);
+        out.println(summary);
+        log.info(summary);
+    }
+
+    /**
+     * Replaces the entities, printing how many have been imported and how quickly after each batch.
+     */
+    private void populate(Iterator<Entity> entities, PrintWriter out) {
+
+        long started = System.nanoTime();
+
+        long inserted = dao.recreate(entities, EntityDao.INSERT_BATCH_SIZE, count -> {
+            out.println(String.format("Imported %d entities, %.0f rows a second", count, rate(count, started)));
+            out.flush();
+        });
+
+        String summary = String.format(
+                "Imported %d entities in %.1fs, %.0f rows a second",
+                inserted,
+                (System.nanoTime() - started) / 1e9,
+                rate(inserted, started)
+        );
+        out.println(summary);
+        log.info(summary);
+    }
+
+    private static double rate(long count, long started) {
+
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        return seconds > 0 ? count / seconds : 0;
+    }
+
+    private List<Entity> entities(String body) throws java.io.IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        TypeFactory factory = mapper.getTypeFactory();
+
+        return mapper.readValue(body, factory.constructCollectionType(List.class, Entity.class));
     }
 }
@@ -10,6 +10,13 @@ import uk.gov.ea.wastecarrier.services.dao.IRRenewalDao;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.Date;
 import java.text.SimpleDateFormat;
@@ -34,6 +41,9 @@ public class IRRenewalPopulatorTask extends Task
     private String irIndividualDataFilePath;
     private String irPartnersDataFilePath;
     private String irPublicBodyDataFilePath;
+    private int batchSize;
+    private int queueSize;
+    private ExecutorService executor;
     private static Logger log = Logger.getLogger(IRRenewalPopulatorTask.class.getName());
     
     public enum IRRenewal_Type {
@@ -43,7 +53,18 @@ public class IRRenewalPopulatorTask extends Task
         PublicBody
     }
 
-    public IRRenewalPopulatorTask(String name, DatabaseConfiguration database, IRConfiguration irRenewalConfig)
+    /**
+     * @param name the task name
+     * @param database the registrations database
+     * @param irRenewalConfig where the IR data files are, and how to load them
+     * @param executor threads to parse the files on at the same time, or null to parse them one after the other
+     */
+    public IRRenewalPopulatorTask(
+            String name,
+            DatabaseConfiguration database,
+            IRConfiguration irRenewalConfig,
+            ExecutorService executor
+    )
     {
         super(name);
         this.dao = new IRRenewalDao(database);
@@ -59,6 +80,9 @@ public class IRRenewalPopulatorTask extends Task
         this.irPublicBodyDataFilePath = irRenewalConfig.getIrFolderPath()
                 + File.separatorChar
                 + irRenewalConfig.getIrPublicBodyFileName();
+        this.batchSize = irRenewalConfig.getIrInsertBatchSize();
+        this.queueSize = irRenewalConfig.getIrQueueSize();
+        this.executor = executor;
         this.irDataList = new ArrayList<IRData>();
         log.fine("IR data populator loaded");
     }
@@ -68,6 +92,10 @@ public class IRRenewalPopulatorTask extends Task
      * in the mongo database. It first drops all existing data, then parses the 4 different CSV files
      * and puts each row found in the database, (excluding header rows)
      *
+     * Each file is read a row at a time and inserted in bulk batches as it's read, so the files are never held in
+     * memory. Where we have an executor the files are read at the same time (see `populateConcurrently()`). How many
+     * rows were read from each, and how quickly, is printed once they're loaded.
+     *
      * Usage:
      * curl -X POST http://[SERVER]:[ADMINPORT]/tasks/[this.getName()]
      */
@@ -76,18 +104,35 @@ public class IRRenewalPopulatorTask extends Task
     {
         // Drop any existing IR renewal data
         dropAllIRData();
-        
-        // Populate list with initial set of test data
-        populateListwithTestIRData();
-        
-        // Setup IR data with list in CSV files
-        populateIRData(this.irCompanyDataFilePath, IRRenewal_Type.Company);
-        populateIRData(this.irIndividualDataFilePath, IRRenewal_Type.Individual);
-        populateIRData(this.irPartnersDataFilePath, IRRenewal_Type.Partner);
-        populateIRData(this.irPublicBodyDataFilePath, IRRenewal_Type.PublicBody);
-        
-        // Populate database with data found in list
-        populateDBwithIRData();
+
+        try
+        {
+            // Populate list with initial set of test data
+            populateListwithTestIRData();
+
+            // Populate database with the test data found in list
+            populateDBwithIRData();
+
+            // Stream the IR data in the CSV files into the database
+            Map<IRRenewal_Type, String> files = new LinkedHashMap<>();
+            files.put(IRRenewal_Type.Company, this.irCompanyDataFilePath);
+            files.put(IRRenewal_Type.Individual, this.irIndividualDataFilePath);
+            files.put(IRRenewal_Type.Partner, this.irPartnersDataFilePath);
+            files.put(IRRenewal_Type.PublicBody, this.irPublicBodyDataFilePath);
+
+            long started = System.nanoTime();
+            long loaded = this.executor == null ? populateInTurn(files, out) : populateConcurrently(files, out);
+
+            String summary = summary("Added", loaded, "the IR data files", started);
+            log.info(summary);
+            out.println(summary);
+        }
+        finally
+        {
+            // The indexes went when the collection was dropped. Even if the load fails part way, the renewal
+            // lookups need them for whatever did get loaded
+            dao.ensureIndexes();
+        }
     }
     
     private void dropAllIRData()
@@ -101,97 +146,216 @@ public class IRRenewalPopulatorTask extends Task
     private void populateDBwithIRData()
     {
         // Populate database with data found in list
-        for (IRData irData : irDataList)
+        dao.insertIRData(irDataList.iterator(), this.batchSize, inserted -> { });
+        log.info("Added " + irDataList.size() + " test IR records to the database.");
+    }
+
+    /**
+     * Parses the files at the same time, one thread each, while this thread writes the rows they've parsed to the
+     * database (see `QueuedLoad`), so reading the files and writing to the database overlap and the rows held in
+     * memory are limited by the queue size rather than the size of the files.
+     *
+     * @return the number of rows loaded
+     */
+    private long populateConcurrently(Map<IRRenewal_Type, String> files, PrintWriter out) throws Exception
+    {
+        List<QueuedLoad.Source<IRData>> parsers = new ArrayList<>();
+        for (Map.Entry<IRRenewal_Type, String> file : files.entrySet())
         {
-            dao.addIRData(irData);
+            parsers.add(sink -> parse(file.getValue(), file.getKey(), sink));
         }
-        log.info("Added " + irDataList.size() + " IR records to the database.");
+
+        return new QueuedLoad<IRData>(this.executor, this.queueSize).run(
+                parsers,
+                rows -> dao.insertIRData(rows, this.batchSize, inserted -> { }),
+                out::println
+        );
     }
 
     /**
-     * Creates a lookup for the IR renewal data based on a CSV Files provided
+     * Reads and loads the files one after the other, for when we have no executor to parse them on.
+     *
+     * @return the number of rows loaded
+     */
+    private long populateInTurn(Map<IRRenewal_Type, String> files, PrintWriter out)
+    {
+        long loaded = 0;
+
+        for (Map.Entry<IRRenewal_Type, String> file : files.entrySet())
+        {
+            long count = 0;
+            long started = System.nanoTime();
+
+            try (IRDataRows rows = open(file.getValue(), file.getKey()))
+            {
+                count = dao.insertIRData(rows, this.batchSize, inserted -> { });
+            }
+            catch (FileNotFoundException e)
+            {
+                log.severe("File not Found: " + e.getMessage());
+            }
+            catch (IOException | UncheckedIOException e)
+            {
+                log.severe("IO Exception: " + e.getMessage());
+            }
+
+            out.println(readSummary(file.getValue(), count, started));
+            out.flush();
+            loaded += count;
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Reads the IR renewal data in a CSV file onto the sink.
      *
      * @param csvFile a string of the path to the CSV file
      * @param irType IRRenewal_Type is the type of IR data provided, as each type has unique data entry
+     * @return how many rows were read, and how quickly
      */
-    private void populateIRData(String csvFile, IRRenewal_Type irType)
+    private String parse(String csvFile, IRRenewal_Type irType, QueuedLoad.Sink<IRData> sink)
+            throws InterruptedException
     {
-        String[] irDataRow;
-        CSVReader reader = null;
-        try {
-            int count = 0;
-            reader = new CSVReader(new FileReader(csvFile));
-            while ((irDataRow = reader.readNext()) != null) {
-                // use comma as separator
-                if (irDataRow.length < 4) {
-                    continue;
-                }
-                log.fine("IR Data [0: " + irDataRow[0] +
-                        " , 1: " + irDataRow[1] +
-                        " , 2: "+ irDataRow[2] +
-                        " , 3: " + irDataRow[3] + "]");
+        long count = 0;
+        long started = System.nanoTime();
 
-                if ("CB_REFERENCE_NUMBER".equalsIgnoreCase(irDataRow[0]))
-                {
-                    // skip this iteration, to ignore CSV headings
-                    continue;
-                }
-                count++;
-                
-                // Updated method
-                switch (irType)
-                {
-                case Company:
-                    //
-                    this.irDataList.add(new CompanyIRData(irDataRow));
-                    break;
-                case Individual:
-                    //
-                    this.irDataList.add(new IndividualIRData(irDataRow));
-                    break;
-                case Partner:
-                    //
-                    this.irDataList.add(new PartnersIRData(irDataRow));
-                    break;
-                case PublicBody:
-                    //
-                    this.irDataList.add(new PublicBodyIRData(irDataRow));
-                    break;
-                default:
-                    break;
-                }
-            }
-            log.info("Read: " + count + " irrenewals from " + csvFile + " file.");
-            if (count == 0)
+        try (IRDataRows rows = open(csvFile, irType))
+        {
+            while (rows.hasNext())
             {
-                log.severe("Error: Could not find any irdata");
+                sink.put(rows.next());
+                count++;
             }
-            
         }
         catch (FileNotFoundException e)
         {
             log.severe("File not Found: " + e.getMessage());
         }
-        catch (IOException e)
+        catch (IOException | UncheckedIOException e)
         {
             log.severe("IO Exception: " + e.getMessage());
         }
-        finally
+
+        return readSummary(csvFile, count, started);
+    }
+
+    private IRDataRows open(String csvFile, IRRenewal_Type irType) throws FileNotFoundException
+    {
+        return new IRDataRows(new CSVReader(new FileReader(csvFile)), fromRow(irType));
+    }
+
+    private static Function<String[], IRData> fromRow(IRRenewal_Type irType)
+    {
+        switch (irType)
+        {
+        case Company:
+            return CompanyIRData::new;
+        case Individual:
+            return IndividualIRData::new;
+        case Partner:
+            return PartnersIRData::new;
+        default:
+            return PublicBodyIRData::new;
+        }
+    }
+
+    private static String readSummary(String csvFile, long count, long started)
+    {
+        String summary = summary("Read:", count, csvFile + " file", started);
+        log.info(summary);
+
+        if (count == 0)
+        {
+            log.severe("Error: Could not find any irdata in " + csvFile);
+        }
+        return summary;
+    }
+
+    private static String summary(String done, long count, String from, long started)
+    {
+        double seconds = Math.max((System.nanoTime() - started) / 1e9, 0.001);
+
+        return String.format(
+                "%s %d irrenewals from %s in %.1fs, %.0f rows a second",
+                done,
+                count,
+                from,
+                seconds,
+                count / seconds
+        );
+    }
+
+    /**
+     * The IR data in a CSV file, read a row at a time as it's asked for. Rows that are too short, and the headings,
+     * are skipped.
+     */
+    private static class IRDataRows implements Iterator<IRData>, Closeable
+    {
+        private final CSVReader reader;
+        private final Function<String[], IRData> fromRow;
+        private IRData next;
+
+        IRDataRows(CSVReader reader, Function<String[], IRData> fromRow)
+        {
+            this.reader = reader;
+            this.fromRow = fromRow;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (this.next == null)
+            {
+                this.next = readNext();
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public IRData next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            IRData irData = this.next;
+            this.next = null;
+            return irData;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.reader.close();
+        }
+
+        private IRData readNext()
         {
             try
             {
-                if (reader != null)
+                String[] irDataRow;
+                while ((irDataRow = this.reader.readNext()) != null)
                 {
-                    reader.close();
+                    // use comma as separator
+                    if (irDataRow.length < 4)
+                    {
+                        continue;
+                    }
+                    if ("CB_REFERENCE_NUMBER".equalsIgnoreCase(irDataRow[0]))
+                    {
+                        // skip this iteration, to ignore CSV headings
+                        continue;
+                    }
+                    return this.fromRow.apply(irDataRow);
                 }
+                return null;
             }
             catch (IOException e)
             {
-                log.severe("IOException while closing CSV reader: "
-                        + e.getMessage());
+                throw new UncheckedIOException(e);
             }
         }
-        log.fine("Done");
     }
     
     /**
@@ -0,0 +1,205 @@
+package uk.gov.ea.wastecarrier.services.tasks;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.mongodb.MongoException;
+import io.dropwizard.servlets.tasks.Task;
+import org.joda.time.DateTime;
+import uk.gov.ea.wastecarrier.services.DatabaseConfiguration;
+import uk.gov.ea.wastecarrier.services.dao.EntityDao;
+import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
+import uk.gov.ea.wastecarrier.services.helper.DatabaseHelper;
+import uk.gov.ea.wastecarrier.services.helper.SearchHelper;
+import uk.gov.ea.wastecarrier.services.match.CompanyMatch;
+import uk.gov.ea.wastecarrier.services.match.PersonMatch;
+import uk.gov.ea.wastecarrier.services.search.AccountSearch;
+import uk.gov.ea.wastecarrier.services.search.CopyCardSearch;
+import uk.gov.ea.wastecarrier.services.search.PaymentSearch;
+import uk.gov.ea.wastecarrier.services.search.QueryPlan;
+import uk.gov.ea.wastecarrier.services.search.QueryShape;
+import uk.gov.ea.wastecarrier.services.search.RegistrationSearch;
+import uk.gov.ea.wastecarrier.services.search.SearchFields;
+import uk.gov.ea.wastecarrier.services.search.WithinSearch;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Explains every query the searches and matches can send to MongoDB, so we can catch a query that has stopped
+ * using an index before it shows up in the slow query log.
+ *
+ * Each search is built with representative parameters and the queries it would run are explained with
+ * `executionStats` verbosity (see `QueryPlan`). For each we report the winning plan, how many keys and documents were
+ * examined, and whether it scanned the whole collection. Any query that examined more documents per document
+ * returned than the threshold is flagged.
+ *
+ * Explaining a query runs it, so those that can't use an index cost as much as the real thing. Run it against a
+ * copy of production data, or out of hours.
+ *
+ * To use this service call, E.g.
+ * curl -X POST http://localhost:9091/tasks/query-plans
+ * The parameters can be overridden, for example
+ * curl -X POST 'http://localhost:9091/tasks/query-plans?threshold=5&value=acme&from=01/01/2017&to=31/12/2017'
+ * By default the searches are explained as they run when returning whole registrations. Add the same `fields` value
+ * the searches take to explain them with that projection instead, for example
+ * curl -X POST 'http://localhost:9091/tasks/query-plans?fields=summary'
+ */
+public class QueryPlanTask extends Task {
+
+    private static Logger log = Logger.getLogger(QueryPlanTask.class.getName());
+
+    private static final String DATE_FORMAT = "dd/MM/yyyy";
+
+    private final SearchHelper registrationsHelper;
+    private final SearchHelper entitiesHelper;
+
+    public QueryPlanTask(String name, DatabaseConfiguration registrationsDb, DatabaseConfiguration entityMatchingDb) {
+        super(name);
+        this.registrationsHelper = new SearchHelper(
+                new DatabaseHelper(registrationsDb),
+                new RegistrationDao(registrationsDb)
+        );
+        this.entitiesHelper = new SearchHelper(
+                new DatabaseHelper(entityMatchingDb),
+                new EntityDao(entityMatchingDb)
+        );
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+
+        double threshold = Double.parseDouble(parameter(parameters, "threshold", "10"));
+
+        log.info("Executing the task - explaining search queries (threshold=" + threshold + ")");
+
+        int explained = 0;
+        int flagged = 0;
+
+        for (QueryShape shape : shapes(parameters)) {
+            try {
+                QueryPlan plan = QueryPlan.explain(shape);
+                explained++;
+
+                if (plan.exceeds(threshold)) {
+                    flagged++;
+                    log.warning("Query examined too many documents. " + plan);
+                    output.println("FLAGGED " + plan);
+                } else {
+                    output.println(plan);
+                }
+            } catch (MongoException e) {
+                log.warning("Could not explain " + shape.getName() + ": " + e.getMessage());
+                output.println("FAILED " + shape.getName() + ": " + e.getMessage());
+            }
+            output.flush();
+        }
+
+        String summary = String.format(
+                "Explained %d queries, %d examined more than %.1f documents per document returned",
+                explained,
+                flagged,
+                threshold
+        );
+        output.println(summary);
+        log.info("Task completed. " + summary);
+    }
+
+    private List<QueryShape> shapes(ImmutableMultimap<String, String> parameters) {
+
+        String from = parameter(parameters, "from", DateTime.now().minusYears(1).toString(DATE_FORMAT));
+        String to = parameter(parameters, "to", DateTime.now().toString(DATE_FORMAT));
+        String value = parameter(parameters, "value", "waste");
+        int resultCount = Integer.parseInt(parameter(parameters, "resultCount", "100"));
+        SearchFields fields = SearchFields.parse(parameter(parameters, "fields", null));
+
+        List<QueryShape> shapes = new ArrayList<>();
+
+        RegistrationSearch registrations = new RegistrationSearch(
+                registrationsHelper, from, to,
+                Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), Collections.emptySet(),
+                null, false, false, resultCount
+        );
+        registrations.setFields(fields);
+        shapes.addAll(registrations.queryShapes());
+
+        RegistrationSearch activeUpperTier = new RegistrationSearch(
+                registrationsHelper, from, to,
+                Collections.emptySet(), Collections.singleton("UPPER"), Collections.singleton("ACTIVE"),
+                Collections.emptySet(), null, false, false, resultCount
+        );
+        activeUpperTier.setFields(fields);
+        shapes.addAll(renamed("active upper tier", activeUpperTier.queryShapes()));
+
+        PaymentSearch payments = new PaymentSearch(
+                registrationsHelper, from, to, PaymentSearch.PaymentStatus.AWAITING_PAYMENT.name(),
+                Collections.emptySet(), Collections.emptySet(), resultCount
+        );
+        payments.setFields(fields);
+        shapes.addAll(payments.queryShapes());
+
+        CopyCardSearch copyCards = new CopyCardSearch(registrationsHelper, from, to, false, false, resultCount);
+        copyCards.setFields(fields);
+        shapes.addAll(copyCards.queryShapes());
+
+        for (WithinSearch.MatchMode mode : WithinSearch.MatchMode.values()) {
+            for (WithinSearch.SearchWithin within : WithinSearch.SearchWithin.values()) {
+                // The text index covers every field, so what to search within makes no difference
+                if (mode == WithinSearch.MatchMode.text && within != WithinSearch.SearchWithin.any) continue;
+
+                WithinSearch search = new WithinSearch(
+                        registrationsHelper, value, within.name(), mode.name(), resultCount
+                );
+                search.setFields(fields);
+                shapes.addAll(search.queryShapes());
+            }
+        }
+
+        AccountSearch accounts = new AccountSearch(
+                registrationsHelper, parameter(parameters, "email", "user@example.com")
+        );
+        accounts.setFields(fields);
+        shapes.addAll(accounts.queryShapes());
+
+        shapes.addAll(new CompanyMatch(
+                entitiesHelper,
+                parameter(parameters, "companyName", value),
+                parameter(parameters, "companyNumber", "01234567")
+        ).queryShapes());
+
+        shapes.addAll(new PersonMatch(
+                entitiesHelper,
+                parameter(parameters, "firstName", "john"),
+                parameter(parameters, "lastName", "smith"),
+                parameter(parameters, "dateOfBirth", "01/01/1980")
+        ).queryShapes());
+
+        return shapes;
+    }
+
+    private List<QueryShape> renamed(String variant, List<QueryShape> shapes) {
+
+        List<QueryShape> renamed = new ArrayList<>(shapes.size());
+        for (QueryShape shape : shapes) {
+            renamed.add(new QueryShape(
+                    shape.getName() + " (" + variant + ")",
+                    shape.getCollection(),
+                    shape.getFilter(),
+                    shape.getSort(),
+                    shape.getProjection(),
+                    shape.getLimit(),
+                    shape.getPipeline()
+            ));
+        }
+
+        return renamed;
+    }
+
+    private String parameter(ImmutableMultimap<String, String> parameters, String name, String defaultValue) {
+
+        if (parameters == null || parameters.get(name).isEmpty()) return defaultValue;
+
+        return parameters.get(name).iterator().next();
+    }
+}
@@ -0,0 +1,159 @@
+package uk.gov.ea.wastecarrier.services.tasks;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Reads several sources at the same time, one thread each, while the calling thread writes the rows they've read.
+ * The readers hand their rows over through a bounded queue, and wait whenever it's full, so reading and writing
+ * overlap and the rows held in memory are limited by the queue size rather than the size of the sources.
+ *
+ * If the writer fails the readers are cancelled and the queue cleared, so none of them is left waiting on it.
+ */
+public class QueuedLoad<T> {
+
+    /**
+     * Somewhere to read rows from, such as a file.
+     */
+    @FunctionalInterface
+    public interface Source<T> {
+
+        /**
+         * Puts every row onto the sink. Rows that can't be read should be skipped rather than fail the load.
+         *
+         * @return a summary of what was read, such as how many rows and how quickly
+         * @throws InterruptedException if cancelled whilst waiting for the sink
+         */
+        String read(Sink<T> sink) throws InterruptedException;
+    }
+
+    @FunctionalInterface
+    public interface Sink<T> {
+
+        /**
+         * Hands over a row, waiting if the writer is behind.
+         */
+        void put(T row) throws InterruptedException;
+    }
+
+    // Put on the queue by each reader when it gets to the end of its source
+    private static final Object END_OF_SOURCE = new Object();
+
+    private final ExecutorService executor;
+    private final int queueSize;
+
+    /**
+     * @param executor threads to read the sources on, at least one for each source
+     * @param queueSize the most rows to hold waiting to be written
+     */
+    public QueuedLoad(ExecutorService executor, int queueSize) {
+        this.executor = executor;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @param writer writes every row it's given, returning how many it wrote
+     * @param summaries told the summary of each source in turn, once they've all been written
+     * @return what the writer returned
+     */
+    public long run(List<Source<T>> sources, ToLongFunction<Iterator<T>> writer, Consumer<String> summaries)
+            throws Exception {
+
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(this.queueSize);
+
+        List<Future<String>> readers = new ArrayList<>();
+        for (Source<T> source : sources) readers.add(this.executor.submit(() -> read(source, queue)));
+
+        long written;
+        try {
+            written = writer.applyAsLong(new QueuedRows<>(queue, readers.size()));
+        } catch (RuntimeException e) {
+            // Otherwise the readers would wait on the full queue forever. Clearing it lets go of the rows waiting,
+            // and frees a reader that put one between the cancel and its interrupt
+            for (Future<String> reader : readers) reader.cancel(true);
+            queue.clear();
+            throw e;
+        }
+
+        for (Future<String> reader : readers) summaries.accept(reader.get());
+
+        return written;
+    }
+
+    /**
+     * Reads the source onto the queue, followed by `END_OF_SOURCE` even if the source failed, so the writer doesn't
+     * wait for it forever. Not if we were interrupted though, as then the writer has failed and nothing is taking
+     * from the queue. The interrupt is cleared when `put()` throws, so another `put()` would wait on a full queue.
+     */
+    private static <T> String read(Source<T> source, BlockingQueue<Object> queue) throws InterruptedException {
+
+        boolean interrupted = false;
+        try {
+            return source.read(queue::put);
+        } catch (InterruptedException e) {
+            interrupted = true;
+            throw e;
+        } finally {
+            if (!interrupted) queue.put(END_OF_SOURCE);
+        }
+    }
+
+    /**
+     * The rows the readers put on the queue, until every one of them has reached the end of its source.
+     */
+    private static class QueuedRows<T> implements Iterator<T> {
+
+        private final BlockingQueue<Object> queue;
+        private int reading;
+        private T next;
+
+        QueuedRows(BlockingQueue<Object> queue, int readers) {
+            this.queue = queue;
+            this.reading = readers;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean hasNext() {
+
+            while (this.next == null && this.reading > 0) {
+                Object row = take();
+                if (row == END_OF_SOURCE) {
+                    this.reading--;
+                } else {
+                    this.next = (T) row;
+                }
+            }
+
+            return this.next != null;
+        }
+
+        @Override
+        public T next() {
+
+            if (!hasNext()) throw new NoSuchElementException();
+
+            T row = this.next;
+            this.next = null;
+
+            return row;
+        }
+
+        private Object take() {
+            try {
+                return this.queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for rows to be read", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package uk.gov.ea.wastecarrier.services.tasks;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.util.concurrent.RateLimiter;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import io.dropwizard.servlets.tasks.Task;
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.DBQuery;
+import org.mongojack.DBSort;
+import org.mongojack.JacksonDBCollection;
+import uk.gov.ea.wastecarrier.services.core.MetaData;
+import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
+import uk.gov.ea.wastecarrier.services.match.EntityIndex;
+import uk.gov.ea.wastecarrier.services.match.EntityIndexHolder;
+import uk.gov.ea.wastecarrier.services.match.RegistrationRescreen;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Re-screens every active upper tier registration against the conviction entities we hold now. Run it after loading
+ * a new list with the entity-populator task, else registrations keep the results from when they were submitted.
+ *
+ * Registrations are read in batches in `_id` order. Each batch is matched in parallel against the in memory
+ * `EntityIndex`, and only the results that changed are written back, in one unordered bulk update per batch. After
+ * each batch we print how far we got, including the `_id` of the last registration done, so a run that was stopped
+ * can be picked up from there.
+ *
+ * To use this service call, E.g.
+ * curl -X POST http://localhost:9091/tasks/rescreen
+ * To carry on from a checkpoint, and limit the load on the database to 200 registrations a second, use
+ * curl -X POST 'http://localhost:9091/tasks/rescreen?from=5b0e6c7f2d1e3a0001a1b2c3&rate=200'
+ */
+public class RescreenTask extends Task {
+
+    private static Logger log = Logger.getLogger(RescreenTask.class.getName());
+
+    // Number of registrations matched and written back together
+    private static final int BATCH_SIZE = 500;
+
+    private final RegistrationDao dao;
+    private final EntityIndexHolder entityIndex;
+    private final ExecutorService executor;
+    private final ReportCache reportCache;
+
+    /**
+     * @param name the task name
+     * @param dao the registrations
+     * @param entityIndex the entities to screen against
+     * @param executor the threads to match on, or null to match on the task's thread
+     * @param reportCache cached reports to drop when results change, or null if there are none
+     */
+    public RescreenTask(
+            String name,
+            RegistrationDao dao,
+            EntityIndexHolder entityIndex,
+            ExecutorService executor,
+            ReportCache reportCache
+    ) {
+        super(name);
+        this.dao = dao;
+        this.entityIndex = entityIndex;
+        this.executor = executor;
+        this.reportCache = reportCache;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+
+        // Screen against the entities as they are now, even if they changed since this instance last checked
+        this.entityIndex.refresh();
+        EntityIndex index = this.entityIndex.get();
+
+        String from = parameter(parameters, "from");
+        String rate = parameter(parameters, "rate");
+        RateLimiter limiter = rate == null ? null : RateLimiter.create(Double.parseDouble(rate));
+
+        log.info("Executing the task - re-screening registrations against " + index.size() + " entities"
+                + (from == null ? "" : " from " + from));
+
+        JacksonDBCollection<Registration, String> collection = this.dao.getCollection();
+        DBCollection dbCollection = collection.getDbCollection();
+
+        DBQuery.Query query = DBQuery
+                .is("metaData.status", MetaData.RegistrationStatus.ACTIVE.name())
+                .is("tier", Registration.RegistrationTier.UPPER.name());
+        if (from != null) query = query.greaterThan("_id", new ObjectId(from));
+
+        Progress progress = new Progress();
+        List<Registration> batch = new ArrayList<>(BATCH_SIZE);
+
+        // Walk the _id index rather than the status and tier one, so we can resume from a checkpoint without sorting
+        try (DBCursor<Registration> cursor = collection
+                .find(query, DBProjection.include(
+                        "companyName", "company_no", "key_people", "conviction_search_result", "metaData.lastModified"))
+                .sort(DBSort.asc("_id"))
+                .hint(new BasicDBObject("_id", 1))
+                .batchSize(BATCH_SIZE)) {
+
+            for (Registration registration : cursor) {
+                batch.add(registration);
+
+                if (batch.size() == BATCH_SIZE) {
+                    rescreen(index, batch, dbCollection, limiter, progress, output);
+                    batch.clear();
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) rescreen(index, batch, dbCollection, limiter, progress, output);
+
+        log.info("Task completed. " + progress);
+        output.println("Finished. " + progress);
+    }
+
+    private void rescreen(
+            EntityIndex index,
+            List<Registration> batch,
+            DBCollection dbCollection,
+            RateLimiter limiter,
+            Progress progress,
+            PrintWriter output
+    ) throws InterruptedException, ExecutionException {
+
+        if (limiter != null) limiter.acquire(batch.size());
+
+        Date searchedAt = new Date();
+        List<BasicDBObject> changes = changes(index, batch, searchedAt);
+
+        BulkWriteOperation bulk = dbCollection.initializeUnorderedBulkOperation();
+        int pending = 0;
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (changes.get(i).isEmpty()) continue;
+
+            Registration registration = batch.get(i);
+
+            // Only update the registration if it hasn't been saved since we read it, as its key people might not be
+            // the ones we matched. It will be checked again the next time this is run
+            BasicDBObject filter = new BasicDBObject("_id", new ObjectId(registration.getId()))
+                    .append("metaData.lastModified", lastModified(registration));
+
+            bulk.find(filter).updateOne(new BasicDBObject("$set", changes.get(i)));
+            pending++;
+        }
+
+        if (pending > 0) {
+            progress.changed += bulk.execute().getMatchedCount();
+            if (this.reportCache != null) this.reportCache.invalidateAll();
+        }
+
+        progress.screened += batch.size();
+        progress.checkpoint = batch.get(batch.size() - 1).getId();
+
+        output.println(progress);
+        output.flush();
+    }
+
+    /**
+     * @return the changes for each registration, in the same order
+     */
+    private List<BasicDBObject> changes(EntityIndex index, List<Registration> batch, Date searchedAt)
+            throws InterruptedException, ExecutionException {
+
+        List<BasicDBObject> changes = new ArrayList<>(batch.size());
+
+        if (this.executor == null) {
+            for (Registration registration : batch) {
+                changes.add(RegistrationRescreen.changes(index, registration, searchedAt));
+            }
+            return changes;
+        }
+
+        List<Callable<BasicDBObject>> matches = new ArrayList<>(batch.size());
+        for (Registration registration : batch) {
+            matches.add(() -> RegistrationRescreen.changes(index, registration, searchedAt));
+        }
+
+        for (Future<BasicDBObject> future : this.executor.invokeAll(matches)) changes.add(future.get());
+
+        return changes;
+    }
+
+    private static Date lastModified(Registration registration) {
+        return registration.getMetaData() == null ? null : registration.getMetaData().getLastModified();
+    }
+
+    private static String parameter(ImmutableMultimap<String, String> parameters, String name) {
+
+        if (parameters == null || !parameters.containsKey(name)) return null;
+
+        return parameters.get(name).iterator().next();
+    }
+
+    private static class Progress {
+
+        private final long started = System.nanoTime();
+
+        private int screened;
+        private int changed;
+        private String checkpoint;
+
+        @Override
+        public String toString() {
+
+            double seconds = Math.max((System.nanoTime() - this.started) / 1e9, 0.001);
+
+            return String.format(
+                    "Re-screened %d registrations, %d changed, %.0f a second. Checkpoint %s",
+                    this.screened,
+                    this.changed,
+                    this.screened / seconds,
+                    this.checkpoint
+            );
+        }
+    }
+}
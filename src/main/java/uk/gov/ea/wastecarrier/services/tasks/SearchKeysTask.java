@@ -0,0 +1,41 @@
+package uk.gov.ea.wastecarrier.services.tasks;
+
+import com.google.common.collect.ImmutableMultimap;
+import io.dropwizard.servlets.tasks.Task;
+import uk.gov.ea.wastecarrier.services.dao.RegistrationDao;
+
+import java.io.PrintWriter;
+import java.util.logging.Logger;
+
+/**
+ * Backfills the normalised search keys used by the home screen search on registrations which were saved before we
+ * started storing them.
+ *
+ * To use this service call, E.g.
+ * curl -X POST http://localhost:9091/tasks/search-keys
+ * Which only updates registrations that have no search keys. To recalculate them for every registration use
+ * curl -X POST http://localhost:9091/tasks/search-keys?all=true
+ */
+public class SearchKeysTask extends Task {
+
+    private static Logger log = Logger.getLogger(SearchKeysTask.class.getName());
+
+    private final RegistrationDao dao;
+
+    public SearchKeysTask(String name, RegistrationDao dao) {
+        super(name);
+        this.dao = dao;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+
+        boolean all = parameters.containsEntry("all", "true");
+
+        log.info("Executing the task - updating registration search keys (all=" + all + ")");
+        int updated = this.dao.updateSearchKeys(all);
+
+        log.info("Task completed. Updated search keys for " + updated + " registrations.");
+        output.println("Updated search keys for " + updated + " registrations");
+    }
+}
@@ -1,5 +1,6 @@
 package uk.gov.ea.wastecarrier.services;
 
+import com.codahale.metrics.MetricRegistry;
 import org.junit.*;
 import uk.gov.ea.wastecarrier.services.core.Entity;
 import uk.gov.ea.wastecarrier.services.match.CompanyMatch;
@@ -117,6 +118,19 @@ public class CompanyMatchTest {
         assertEquals("Company with number of '00123456' is found", "00123456", document.companyNumber);
     }
 
+    @Test
+    public void numberTakesPrecedenceOverName() {
+        MetricRegistry metrics = new MetricRegistry();
+        CompanyMatch matcher = new CompanyMatch(connection.searchHelper, "Isaac and sons", "123456");
+        matcher.setMetrics(metrics);
+
+        Entity document = matcher.execute();
+
+        assertNotNull(document);
+        assertEquals("Company with number of '00123456' is found", "00123456", document.companyNumber);
+        assertEquals(1, metrics.meter(MetricRegistry.name(CompanyMatch.class, "hits", "canonical-number")).getCount());
+    }
+
     /**
      * Create test data to then test the classes search functions
      */
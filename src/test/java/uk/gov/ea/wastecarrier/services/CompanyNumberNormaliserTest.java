@@ -0,0 +1,35 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.match.CompanyNumberNormaliser;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompanyNumberNormaliserTest {
+
+    @Test
+    public void digitsOnly() {
+        assertEquals("123456", CompanyNumberNormaliser.canonical("00123456"));
+        assertEquals("123456", CompanyNumberNormaliser.canonical(" 123456 "));
+        assertEquals("1020304", CompanyNumberNormaliser.canonical("01020304"));
+    }
+
+    @Test
+    public void prefixKept() {
+        assertEquals("SC12345", CompanyNumberNormaliser.canonical("SC012345"));
+        assertEquals("NI1234", CompanyNumberNormaliser.canonical("ni 001234"));
+        assertEquals("OC300001", CompanyNumberNormaliser.canonical("oc300001"));
+    }
+
+    @Test
+    public void allZeroes() {
+        assertEquals("0", CompanyNumberNormaliser.canonical("00000000"));
+        assertEquals("SC0", CompanyNumberNormaliser.canonical("SC000000"));
+    }
+
+    @Test
+    public void nothingToNormalise() {
+        assertEquals("", CompanyNumberNormaliser.canonical(null));
+        assertEquals("", CompanyNumberNormaliser.canonical("  "));
+    }
+}
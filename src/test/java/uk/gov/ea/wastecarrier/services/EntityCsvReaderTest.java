@@ -1,15 +1,27 @@
 package uk.gov.ea.wastecarrier.services;
 
+import org.joda.time.LocalDate;
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import uk.gov.ea.wastecarrier.services.core.Entity;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 
 public class EntityCsvReaderTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void recordCountIsCorrect() {
         EntityCsvReader reader = new EntityCsvReader();
@@ -29,6 +41,7 @@ public class EntityCsvReaderTest {
 
         assertEquals("Will have read details for 4 companies", 4, results.size());
         assertEquals("The first is 'Test Waste Services Ltd.'", "Test Waste Services Ltd.", results.get(0).name);
+        assertEquals("Its normalised name is 'test waste'", "test waste", results.get(0).normalisedName);
     }
 
     @Test
@@ -69,4 +82,46 @@ public class EntityCsvReaderTest {
                 results.get(2).dateOfBirth
         );
     }
+
+    @Test
+    public void streamsEntriesAndCountsRejectedLines() throws IOException {
+        EntityCsvReader reader = new EntityCsvReader();
+
+        try (EntityCsvReader.Rows rows = reader.open("src/test/resources/entity_data/entities.csv")) {
+            assertEquals("The first is 'Blogs, Fred'", "Blogs, Fred", rows.next().name);
+
+            int count = 1;
+            while (rows.hasNext()) {
+                rows.next();
+                count++;
+            }
+
+            assertEquals("Will have read details for 8 entities", 8, count);
+            assertEquals("The 2 blank lines are rejected but the header isn't", 2, rows.rejected());
+            assertFalse(rows.hasNext());
+        }
+    }
+
+    @Test
+    public void readsDatesLeniently() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("entities.csv");
+        Files.write(file, Arrays.asList(
+                "\"Isaacs, Jason\",04/04/1984 00:00,,ABC,1",
+                "\"Isaacs, Jason\",04/04/1984 (approx),,ABC,2",
+                "\"Isaacs, Jason\",1984-04-04T00:00:00.000Z,,ABC,3",
+                "\"Isaacs, Jason\",unknown,,ABC,4"
+        ), StandardCharsets.UTF_8);
+
+        List<Entity> results = new EntityCsvReader().read(file.toString());
+
+        assertEquals(4, results.size());
+        assertEquals("A time after the date is ignored", new LocalDate(1984, 4, 4), date(results.get(0)));
+        assertEquals("As is any other text", new LocalDate(1984, 4, 4), date(results.get(1)));
+        assertEquals(new LocalDate(1984, 4, 4), date(results.get(2)));
+        assertNull("Anything else has no date", results.get(3).dateOfBirth);
+    }
+
+    private LocalDate date(Entity entity) {
+        return new LocalDate(entity.dateOfBirth);
+    }
 }
@@ -3,17 +3,26 @@ package uk.gov.ea.wastecarrier.services;
 import org.apache.commons.lang3.RandomUtils;
 import org.assertj.core.internal.bytebuddy.utility.RandomString;
 import org.junit.*;
+import org.mongojack.DBQuery;
 import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.dao.EntityDao;
 import uk.gov.ea.wastecarrier.services.match.CompanyMatch;
 import uk.gov.ea.wastecarrier.services.match.PersonMatch;
 import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
 import uk.gov.ea.wastecarrier.services.support.EntityMatchingConnectionUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class EntityDaoTest {
 
@@ -93,4 +102,68 @@ public class EntityDaoTest {
         assertEquals("A company with the name '" + companyName + "'", companyName, company.name);
         assertEquals("A person with the name of 'Jason " + personName + "'", "Jason " + personName, person.name);
     }
+
+    @Test
+    public void recreateWithNothingKeepsCurrentEntities() {
+        this.connection.dao.insert(new EntityBuilder(EntityBuilder.BuildType.COMPANY).build());
+        long current = this.connection.dao.getCollection().count();
+
+        try {
+            this.connection.dao.recreate(Collections.emptyList());
+        } catch (IllegalStateException e) {
+            assertEquals("The current entities are kept", current, this.connection.dao.getCollection().count());
+            for (String name : this.connection.databaseHelper.getConnection().getCollectionNames()) {
+                assertFalse(
+                        "The staging collection is dropped",
+                        name.startsWith(EntityDao.STAGING_COLLECTION_PREFIX)
+                );
+            }
+            return;
+        }
+
+        fail("Recreating with no entities should fail");
+    }
+
+    @Test
+    public void writesStartANewGeneration() {
+        this.connection.dao.recreate(Collections.singletonList(
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("1").build()
+        ));
+        String recreated = this.connection.dao.generation();
+        assertNotNull("Recreating the entities records a generation", recreated);
+
+        this.connection.dao.update(Collections.singletonList(
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("1").build()
+        ).iterator());
+        assertEquals("An update that changes nothing keeps it", recreated, this.connection.dao.generation());
+
+        this.connection.dao.update(Collections.singletonList(
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("2").build()
+        ).iterator());
+        assertNotEquals("An update that changes something moves it on", recreated, this.connection.dao.generation());
+    }
+
+    @Test
+    public void updateWritesOnlyChanges() {
+        Entity kept = new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("1").build();
+        Entity changed = new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("2").build();
+        Entity removed = new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("3").build();
+        this.connection.dao.recreate(Arrays.asList(kept, changed, removed));
+
+        EntityDao.Changes changes = this.connection.dao.update(Arrays.asList(
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("1").build(),
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("2").systemFlag("XYZ").build(),
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("4").build(),
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).incidentNumber("4").build()
+        ).iterator());
+
+        assertEquals(1, changes.inserted);
+        assertEquals(1, changes.updated);
+        assertEquals(1, changes.deleted);
+        assertEquals(1, changes.unchanged);
+        assertEquals(1, changes.duplicates);
+        assertEquals(3, this.connection.dao.getCollection().count());
+        assertEquals("XYZ", this.connection.dao.getCollection().findOne(DBQuery.is("incidentNumber", "2")).systemFlag);
+        assertNull(this.connection.dao.getCollection().findOne(DBQuery.is("incidentNumber", "3")));
+    }
 }
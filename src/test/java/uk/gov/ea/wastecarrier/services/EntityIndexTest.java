@@ -0,0 +1,186 @@
+package uk.gov.ea.wastecarrier.services;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.match.CompanyMatch;
+import uk.gov.ea.wastecarrier.services.match.EntityIndex;
+import uk.gov.ea.wastecarrier.services.match.PersonMatch;
+import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the same scenarios as `CompanyMatchTest` and `PersonMatchTest`, but against an `EntityIndex` rather than the
+ * database.
+ */
+public class EntityIndexTest {
+
+    private final EntityIndex companies = EntityIndex.of(Arrays.asList(
+            new EntityBuilder(EntityBuilder.BuildType.COMPANY)
+                    .name("Isaac and sons")
+                    .companyNumber("12345678")
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.COMPANY)
+                    .name("Isaacs Waste Contractors Ltd")
+                    .companyNumber("00123456")
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.COMPANY)
+                    .name("Isaacs  Waste  Recycling")
+                    .companyNumber("000123456")
+                    .build()
+    ));
+
+    private final EntityIndex people = EntityIndex.of(Arrays.asList(
+            new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                    .name("Mark Kermode")
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                    .name("Jason Isaacs")
+                    .dateOfBirth(new Date(449884800000L))
+                    .build()
+    ));
+
+    @Test
+    public void companyNullArguments() {
+        assertNull(new CompanyMatch(companies, null, null).execute());
+    }
+
+    @Test
+    public void companyNameNoMatch() {
+        assertNull(new CompanyMatch(companies, "We eat your waste", null).execute());
+    }
+
+    @Test
+    public void companyNameExact() {
+        assertEquals("Isaac and sons", new CompanyMatch(companies, "Isaac and sons", null).execute().name);
+    }
+
+    @Test
+    public void companyNameSingleWord() {
+        assertEquals("Isaac and sons", new CompanyMatch(companies, "Isaac", null).execute().name);
+    }
+
+    @Test
+    public void companyNamePartOfWordNoMatch() {
+        assertNull(new CompanyMatch(companies, "saac", null).execute());
+    }
+
+    @Test
+    public void companyNameWordsInAnyOrder() {
+        assertEquals(
+                "Isaacs Waste Contractors Ltd",
+                new CompanyMatch(companies, "Contractors, Isaacs", null).execute().name
+        );
+        // Extra spaces in the entity's name don't stop it matching
+        assertEquals(
+                "Isaacs  Waste  Recycling",
+                new CompanyMatch(companies, "waste recycling isaacs", null).execute().name
+        );
+    }
+
+    @Test
+    public void companyNameIgnoreCommonWords() {
+        Entity document = new CompanyMatch(companies, "Isaacs Waste Services Ltd.", null).execute();
+
+        assertEquals("Isaacs Waste Contractors Ltd", document.name);
+    }
+
+    @Test
+    public void companyNameIgnoresPeople() {
+        assertNull(EntityIndex.of(Arrays.asList(new EntityBuilder(EntityBuilder.BuildType.PERSON).build()))
+                .findCompanyByName("isaacs"));
+    }
+
+    @Test
+    public void companyNumberExact() {
+        assertEquals("12345678", new CompanyMatch(companies, null, "12345678").execute().companyNumber);
+    }
+
+    @Test
+    public void companyNumberPartial() {
+        assertNull(new CompanyMatch(companies, null, "1234").execute());
+    }
+
+    @Test
+    public void companyNumberKeepsPrefix() {
+        EntityIndex scottish = EntityIndex.of(Arrays.asList(
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).companyNumber("SC012345").build(),
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY).companyNumber("00012345").build()
+        ));
+
+        assertEquals("SC012345", new CompanyMatch(scottish, null, "sc 12345").execute().companyNumber);
+        assertEquals("00012345", new CompanyMatch(scottish, null, "12345").execute().companyNumber);
+    }
+
+    @Test
+    public void companyNumberIgnoreLeadingZeroesTakesLowest() {
+        assertEquals("000123456", new CompanyMatch(companies, null, "0123456").execute().companyNumber);
+    }
+
+    @Test
+    public void personFirstNameOnly() {
+        assertEquals("Isaacs, Jason", new PersonMatch(people, "Jason", null, null).execute().name);
+    }
+
+    @Test
+    public void personLastNameOnly() {
+        assertEquals("Isaacs, Jason", new PersonMatch(people, null, "Isaacs", null).execute().name);
+    }
+
+    @Test
+    public void personFirstThenLast() {
+        assertEquals("Mark Kermode", new PersonMatch(people, "Mark", "Kermode", null).execute().name);
+    }
+
+    @Test
+    public void personPartialName() {
+        assertNull(new PersonMatch(people, "Mark", "Isaacs", null).execute());
+    }
+
+    @Test
+    public void personSpellingVariant() {
+        assertEquals("Jason Isaacs", new PersonMatch(people, "Jayson", "Isaaks", "04-04-1984").execute().name);
+    }
+
+    @Test
+    public void personDateOfBirthOnly() {
+        assertNull(new PersonMatch(people, null, null, "05-03-1978").execute());
+    }
+
+    @Test
+    public void personNameAndDateOfBirth() {
+        Entity document = new PersonMatch(people, "Jason", "Isaacs", "04-04-1984").execute();
+
+        assertEquals(new Date(449884800000L), document.dateOfBirth);
+        assertEquals("Jason Isaacs", document.name);
+    }
+
+    @Test
+    public void stageHitsCounted() {
+        MetricRegistry metrics = new MetricRegistry();
+
+        CompanyMatch byName = new CompanyMatch(companies, "Isaac and sons", null);
+        byName.setMetrics(metrics);
+        byName.execute();
+
+        PersonMatch byDateOfBirth = new PersonMatch(people, "Jason", "Isaacs", "04-04-1984");
+        byDateOfBirth.setMetrics(metrics);
+        byDateOfBirth.execute();
+
+        PersonMatch noMatch = new PersonMatch(people, "Joan", "Smith", null);
+        noMatch.setMetrics(metrics);
+        noMatch.execute();
+
+        assertEquals(1, metrics.meter(MetricRegistry.name(CompanyMatch.class, "hits", "name")).getCount());
+        assertEquals(0, metrics.meter(MetricRegistry.name(CompanyMatch.class, "hits", "name-tokens")).getCount());
+        assertEquals(1, metrics.meter(
+                MetricRegistry.name(PersonMatch.class, "hits", "name-and-date-of-birth")).getCount());
+        assertEquals(1, metrics.meter(MetricRegistry.name(PersonMatch.class, "misses")).getCount());
+    }
+}
@@ -0,0 +1,73 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.dao.EntityRowHash;
+import uk.gov.ea.wastecarrier.services.match.NameNormaliser;
+import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class EntityRowHashTest {
+
+    @Test
+    public void sameRowSameHashes() {
+        Entity first = person().build();
+        Entity second = person().build();
+
+        assertEquals(EntityRowHash.key(first), EntityRowHash.key(second));
+        assertEquals(EntityRowHash.hash(first), EntityRowHash.hash(second));
+    }
+
+    @Test
+    public void systemChangedIsAnUpdate() {
+        Entity before = person().build();
+        Entity after = person().systemFlag("XYZ").build();
+
+        assertEquals(EntityRowHash.key(before), EntityRowHash.key(after));
+        assertNotEquals(EntityRowHash.hash(before), EntityRowHash.hash(after));
+    }
+
+    @Test
+    public void naturalKeyChangedIsANewRow() {
+        Entity person = person().build();
+
+        assertNotEquals(EntityRowHash.key(person), EntityRowHash.key(person().name("Jason Isaac").build()));
+        assertNotEquals(
+                EntityRowHash.key(person),
+                EntityRowHash.key(person().dateOfBirth(new Date(257952324000L)).build())
+        );
+        assertNotEquals(EntityRowHash.key(person), EntityRowHash.key(person().incidentNumber("9999").build()));
+    }
+
+    @Test
+    public void derivationChangedIsAnUpdate() {
+        Entity person = person().build();
+
+        assertEquals(EntityRowHash.hash(person), EntityRowHash.hash(person, NameNormaliser.DERIVATION_VERSION));
+        assertNotEquals(
+                EntityRowHash.hash(person, NameNormaliser.DERIVATION_VERSION - 1),
+                EntityRowHash.hash(person, NameNormaliser.DERIVATION_VERSION)
+        );
+    }
+
+    @Test
+    public void fieldsDontRunTogether() {
+        Entity first = new EntityBuilder(EntityBuilder.BuildType.COMPANY).name("Isaacs 1").companyNumber("23").build();
+        Entity second = new EntityBuilder(EntityBuilder.BuildType.COMPANY).name("Isaacs").companyNumber("123").build();
+        first.incidentNumber = second.incidentNumber;
+
+        assertNotEquals(EntityRowHash.key(first), EntityRowHash.key(second));
+    }
+
+    private EntityBuilder person() {
+        return new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                .name("Jason Isaacs")
+                .dateOfBirth(new Date(449884800000L))
+                .systemFlag("ABC")
+                .incidentNumber("1234");
+    }
+}
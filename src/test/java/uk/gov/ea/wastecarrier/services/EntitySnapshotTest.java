@@ -0,0 +1,137 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.joda.time.LocalDate;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.match.CompanyMatch;
+import uk.gov.ea.wastecarrier.services.match.EntityIndex;
+import uk.gov.ea.wastecarrier.services.match.EntitySnapshot;
+import uk.gov.ea.wastecarrier.services.match.PersonMatch;
+import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EntitySnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Entity> entities = Arrays.asList(
+            new EntityBuilder(EntityBuilder.BuildType.COMPANY)
+                    .name("Isaacs Waste Contractors Ltd")
+                    .companyNumber("00123456")
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                    .name("Isaacs, Jason")
+                    .dateOfBirth(new Date(449884800000L))
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.COMPANY)
+                    .name("Gwastraff Môn Cyf")
+                    .build()
+    );
+
+    @Test
+    public void roundTrip() throws IOException {
+        EntitySnapshot snapshot = EntitySnapshot.map(write());
+
+        assertEquals(3, snapshot.size());
+        assertEquals("5b0d7b1e2f8fb814b56fa181", snapshot.generation());
+
+        Entity company = snapshot.get(0);
+        assertEquals("Isaacs Waste Contractors Ltd", company.name);
+        assertEquals("00123456", company.companyNumber);
+        assertEquals(entities.get(0).systemFlag, company.systemFlag);
+        assertEquals(entities.get(0).incidentNumber, company.incidentNumber);
+        assertNull(company.dateOfBirth);
+
+        Entity person = snapshot.get(1);
+        assertEquals("Isaacs, Jason", person.name);
+        assertEquals(new LocalDate(entities.get(1).dateOfBirth), new LocalDate(person.dateOfBirth));
+
+        assertEquals("Gwastraff Môn Cyf", snapshot.get(2).name);
+    }
+
+    @Test
+    public void unknownGeneration() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("entities.snapshot");
+        EntitySnapshot.write(entities.iterator(), null, file);
+
+        EntitySnapshot snapshot = EntitySnapshot.map(file);
+
+        assertNull(snapshot.generation());
+        assertEquals(3, snapshot.size());
+        assertEquals("Gwastraff Môn Cyf", snapshot.get(2).name);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfRange() throws IOException {
+        EntitySnapshot.map(write()).get(3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void corruptSnapshot() throws IOException {
+        Path file = write();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        }
+
+        EntitySnapshot.map(file);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void corruptHeader() throws IOException {
+        Path file = write();
+
+        // The entity count, which were it believed would have us read far past the end of the file
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(8);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        EntitySnapshot.map(file);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void truncatedSnapshot() throws IOException {
+        Path file = write();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        EntitySnapshot.map(file);
+    }
+
+    @Test
+    public void indexMatchesSnapshot() throws IOException {
+        EntityIndex index = EntityIndex.of(EntitySnapshot.map(write()));
+
+        assertEquals(3, index.size());
+
+        Entity company = new CompanyMatch(index, "Isaacs Waste Contractors", "123456").execute();
+        assertEquals("Isaacs Waste Contractors Ltd", company.name);
+
+        Entity person = new PersonMatch(index, "Jason", "Isaacs", "04-04-1984").execute();
+        assertEquals("Isaacs, Jason", person.name);
+    }
+
+    private Path write() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("entities.snapshot");
+        EntitySnapshot.write(entities.iterator(), "5b0d7b1e2f8fb814b56fa181", file);
+
+        return file;
+    }
+}
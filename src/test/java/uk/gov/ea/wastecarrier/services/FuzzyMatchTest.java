@@ -0,0 +1,113 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.core.ScoredMatches;
+import uk.gov.ea.wastecarrier.services.match.EntityIndex;
+import uk.gov.ea.wastecarrier.services.match.FuzzyMatch;
+import uk.gov.ea.wastecarrier.services.match.JaroWinkler;
+import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class FuzzyMatchTest {
+
+    private final EntityIndex index = EntityIndex.of(Arrays.asList(
+            new EntityBuilder(EntityBuilder.BuildType.COMPANY)
+                    .name("Isaacs Waste Contractors Ltd")
+                    .companyNumber("00123456")
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.COMPANY)
+                    .name("Kermode Skips Limited")
+                    .companyNumber("87654321")
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                    .name("Isaacs, Jason")
+                    .dateOfBirth(new Date(449884800000L))
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                    .name("Jason Isaac")
+                    .dateOfBirth(new Date(257952324000L))
+                    .build(),
+            new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                    .name("Mark Kermode")
+                    .build()
+    ));
+
+    @Test
+    public void jaroWinkler() {
+        assertEquals(1.0, JaroWinkler.similarity("martha", "martha"), 0.001);
+        assertEquals(0.961, JaroWinkler.similarity("martha", "marhta"), 0.001);
+        assertEquals(0.813, JaroWinkler.similarity("dixon", "dicksonx"), 0.001);
+        assertEquals(0.0, JaroWinkler.similarity("abc", "xyz"), 0.001);
+        assertEquals(0.0, JaroWinkler.similarity("", "xyz"), 0.001);
+    }
+
+    @Test
+    public void signature() {
+        assertEquals("isaacs jason", EntityIndex.signature("jason isaacs"));
+        assertEquals("contractors isaacs waste", EntityIndex.signature("waste isaacs contractors"));
+    }
+
+    @Test
+    public void companyTypo() {
+        ScoredMatches result = new FuzzyMatch(index, FuzzyMatch.DEFAULT_THRESHOLD)
+                .company("Isaacs Wsate Contractors Limited", null);
+
+        assertEquals(1, result.matches.size());
+        assertEquals("Isaacs Waste Contractors Ltd", result.matches.get(0).matchedName);
+        assertTrue(result.matches.get(0).score >= FuzzyMatch.DEFAULT_THRESHOLD);
+        assertTrue(result.matches.get(0).score < 1.0);
+        assertEquals(FuzzyMatch.DEFAULT_THRESHOLD, result.threshold, 0.0);
+    }
+
+    @Test
+    public void companyIgnoresPeople() {
+        ScoredMatches result = new FuzzyMatch(index, 0.8).company("Mark Kermode", null);
+
+        for (ScoredMatches.Match match : result.matches) assertNotEquals("Mark Kermode", match.matchedName);
+    }
+
+    @Test
+    public void companyNumber() {
+        ScoredMatches result = new FuzzyMatch(index, FuzzyMatch.DEFAULT_THRESHOLD).company("Nothing Alike", "123456");
+
+        assertEquals(1, result.matches.size());
+        assertEquals("Isaacs Waste Contractors Ltd", result.matches.get(0).matchedName);
+        assertEquals(1.0, result.matches.get(0).score, 0.0);
+    }
+
+    @Test
+    public void personWordsInAnyOrder() {
+        ScoredMatches result = new FuzzyMatch(index, FuzzyMatch.DEFAULT_THRESHOLD).person("Jason", "Isaacs", null);
+
+        assertEquals("Isaacs, Jason", result.matches.get(0).matchedName);
+        assertEquals(1.0, result.matches.get(0).score, 0.001);
+        assertNull(result.matches.get(0).dateOfBirthMatch);
+    }
+
+    @Test
+    public void personDateOfBirthRanksFirst() {
+        ScoredMatches result = new FuzzyMatch(index, 0.85).person("Jason", "Isaacs", "05-03-1978");
+
+        assertEquals(2, result.matches.size());
+        assertEquals("Jason Isaac", result.matches.get(0).matchedName);
+        assertTrue(result.matches.get(0).dateOfBirthMatch);
+        assertEquals("Isaacs, Jason", result.matches.get(1).matchedName);
+        assertFalse(result.matches.get(1).dateOfBirthMatch);
+    }
+
+    @Test
+    public void belowThreshold() {
+        ScoredMatches result = new FuzzyMatch(index, FuzzyMatch.DEFAULT_THRESHOLD).person("Joan", "Smith", null);
+
+        assertTrue(result.matches.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidThreshold() {
+        new FuzzyMatch(index, 1.5);
+    }
+}
@@ -0,0 +1,58 @@
+package uk.gov.ea.wastecarrier.services;
+
+import com.mongodb.DBObject;
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.dao.IndexCatalogue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class IndexCatalogueTest {
+
+    @Test
+    public void defaultNamesMatchMongo() {
+        assertEquals("uuid_1", IndexCatalogue.Index.on("uuid").getName());
+        assertEquals("regIdentifier_1__id_1", IndexCatalogue.Index.on("regIdentifier", "_id").getName());
+    }
+
+    @Test
+    public void alwaysBuiltInBackground() {
+        DBObject options = IndexCatalogue.Index.on("uuid").unique().sparse().getOptions();
+
+        assertEquals("uuid_1", options.get("name"));
+        assertEquals(true, options.get("background"));
+        assertEquals(true, options.get("unique"));
+        assertEquals(true, options.get("sparse"));
+    }
+
+    @Test
+    public void namesAreUniqueWithinEachCollection() {
+        List<List<IndexCatalogue.Index>> collections = Arrays.asList(
+                IndexCatalogue.REGISTRATIONS,
+                IndexCatalogue.USERS,
+                IndexCatalogue.ENTITIES,
+                IndexCatalogue.IR_RENEWALS
+        );
+
+        for (List<IndexCatalogue.Index> indexes : collections) {
+            Set<String> names = new HashSet<>();
+            for (IndexCatalogue.Index index : indexes) {
+                assertTrue("Duplicate index " + index.getName(), names.add(index.getName()));
+            }
+        }
+    }
+
+    @Test
+    public void onlyOneTextIndex() {
+        int textIndexes = 0;
+        for (IndexCatalogue.Index index : IndexCatalogue.REGISTRATIONS) {
+            if (index.getKeys().toMap().containsValue("text")) textIndexes++;
+        }
+
+        assertEquals(1, textIndexes);
+    }
+}
@@ -0,0 +1,108 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.match.CompanyMatch;
+import uk.gov.ea.wastecarrier.services.match.EntityIndex;
+import uk.gov.ea.wastecarrier.services.match.MatchCache;
+import uk.gov.ea.wastecarrier.services.match.PersonMatch;
+import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class MatchCacheTest {
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final MatchCache cache = new MatchCache(2, null);
+
+    private final AtomicInteger matches = new AtomicInteger();
+
+    private final Entity entity = new EntityBuilder(EntityBuilder.BuildType.COMPANY).build();
+
+    @Test
+    public void repeatedMatchIsCached() {
+        assertSame(entity, cache.get("key", generation.get(), this::match));
+        assertSame(entity, cache.get("key", generation.get(), this::match));
+
+        assertEquals(1, matches.get());
+    }
+
+    @Test
+    public void noMatchIsCached() {
+        assertNull(cache.get("key", generation.get(), this::noMatch));
+        assertNull(cache.get("key", generation.get(), this::noMatch));
+
+        assertEquals(1, matches.get());
+    }
+
+    @Test
+    public void reloadInvalidates() {
+        cache.get("key", generation.get(), this::match);
+
+        generation.incrementAndGet();
+        cache.get("key", generation.get(), this::match);
+        cache.get("key", generation.get(), this::match);
+
+        assertEquals(2, matches.get());
+    }
+
+    @Test
+    public void resultFromBeforeAReloadIsNotServedAfterIt() {
+        // A match picks up the entities and their generation, then they're reloaded before it runs
+        long pickedUp = generation.get();
+        generation.incrementAndGet();
+
+        cache.get("key", pickedUp, this::match);
+        cache.get("key", generation.get(), this::match);
+        cache.get("key", generation.get(), this::match);
+
+        assertEquals("The match against the new entities is made, and then cached", 2, matches.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsDropped() {
+        cache.get("first", generation.get(), this::match);
+        cache.get("second", generation.get(), this::match);
+        cache.get("first", generation.get(), this::match);
+        cache.get("third", generation.get(), this::match);
+
+        cache.get("first", generation.get(), this::match);
+        assertEquals(3, matches.get());
+
+        cache.get("second", generation.get(), this::match);
+        assertEquals(4, matches.get());
+    }
+
+    @Test
+    public void keysAreNormalised() {
+        EntityIndex index = EntityIndex.of(Collections.emptyList());
+
+        assertEquals(
+                new CompanyMatch(index, "Isaacs Waste Services Ltd.", " 123 ").cacheKey(),
+                new CompanyMatch(index, "isaacs  waste", "123").cacheKey()
+        );
+        assertEquals(
+                new PersonMatch(index, "Stephen", "Smith", "05-03-1978").cacheKey(),
+                new PersonMatch(index, "Steven", "Smith", "05/03/1978").cacheKey()
+        );
+        assertNotEquals(
+                new PersonMatch(index, "Stephen", "Smith", null).cacheKey(),
+                new PersonMatch(index, "Stephen", "Smith", "05-03-1978").cacheKey()
+        );
+    }
+
+    private Entity match() {
+        matches.incrementAndGet();
+        return entity;
+    }
+
+    private Entity noMatch() {
+        matches.incrementAndGet();
+        return null;
+    }
+}
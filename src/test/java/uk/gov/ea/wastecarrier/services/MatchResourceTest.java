@@ -4,16 +4,28 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.core.BatchMatchRequest;
+import uk.gov.ea.wastecarrier.services.core.BatchMatchResult;
 import uk.gov.ea.wastecarrier.services.core.ConvictionSearchResult;
 import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.match.CompanyMatch;
+import uk.gov.ea.wastecarrier.services.match.EntityIndexHolder;
+import uk.gov.ea.wastecarrier.services.match.MatchCache;
 import uk.gov.ea.wastecarrier.services.resources.MatchResource;
 import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
 import uk.gov.ea.wastecarrier.services.support.EntityMatchingConnectionUtil;
 
+import javax.ws.rs.WebApplicationException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 public class MatchResourceTest {
 
@@ -64,6 +76,101 @@ public class MatchResourceTest {
         assertEquals("Matched person 'Jason Isaacs'", "Jason Isaacs", result.matchedName);
     }
 
+    @Test
+    public void matchBatch() {
+        BatchMatchResult result = this.resource.matchBatch(batchRequest());
+
+        assertBatchResult(result);
+    }
+
+    @Test
+    public void matchBatchConcurrently() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            MatchResource concurrent = new MatchResource(connection.databaseHelper.configuration(), null, executor);
+
+            assertBatchResult(concurrent.matchBatch(batchRequest()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void matchBatchPeopleOnly() {
+        BatchMatchRequest request = batchRequest();
+        request.company = null;
+
+        BatchMatchResult result = this.resource.matchBatch(request);
+
+        assertNull(result.company);
+        assertEquals(3, result.people.size());
+    }
+
+    @Test
+    public void matchBatchNullPeople() {
+        BatchMatchRequest request = batchRequest();
+        request.people = null;
+
+        BatchMatchResult result = this.resource.matchBatch(request);
+
+        assertEquals("Isaac and sons", result.company.matchedName);
+        assertEquals(0, result.people.size());
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void matchBatchNullPerson() {
+        BatchMatchRequest request = batchRequest();
+        request.people = Arrays.asList(new BatchMatchRequest.Person("Mark", "Kermode", ""), null);
+
+        this.resource.matchBatch(request);
+    }
+
+    @Test
+    public void matchCachedUnderTheGenerationOfItsIndex() {
+        EntityIndexHolder holder = new EntityIndexHolder(connection.dao);
+        holder.reload();
+        MatchCache cache = new MatchCache(10, null);
+
+        EntityIndexHolder.Current pickedUp = holder.current();
+        // The entities are reloaded between picking up the index and matching against it
+        holder.reload();
+
+        CompanyMatch old = new CompanyMatch(pickedUp.index, "Isaac and sons", "");
+        cache.get(old.cacheKey(), pickedUp.generation, old::execute);
+
+        AtomicInteger matched = new AtomicInteger();
+        EntityIndexHolder.Current current = holder.current();
+        CompanyMatch match = new CompanyMatch(current.index, "Isaac and sons", "");
+        Entity entity = cache.get(match.cacheKey(), current.generation, () -> {
+            matched.incrementAndGet();
+            return match.execute();
+        });
+
+        assertNotEquals(pickedUp.generation, current.generation);
+        assertEquals("The result from the old index isn't served for the new one", 1, matched.get());
+        assertEquals("Isaac and sons", entity.name);
+    }
+
+    private BatchMatchRequest batchRequest() {
+        BatchMatchRequest request = new BatchMatchRequest();
+        request.company = new BatchMatchRequest.Company("Isaac and sons", "");
+        request.people = Arrays.asList(
+                new BatchMatchRequest.Person("Mark", "Kermode", ""),
+                new BatchMatchRequest.Person("Nobody", "Known", ""),
+                new BatchMatchRequest.Person("Jason", "Isaacs", "04-04-1984")
+        );
+
+        return request;
+    }
+
+    private void assertBatchResult(BatchMatchResult result) {
+        assertEquals("Isaac and sons", result.company.matchedName);
+        assertEquals(3, result.people.size());
+        assertEquals("Mark Kermode", result.people.get(0).matchedName);
+        assertEquals(ConvictionSearchResult.MatchResult.NO, result.people.get(1).matchResult);
+        assertEquals("Jason Isaacs", result.people.get(2).matchedName);
+    }
+
     /**
      * Create test data to then test the classes search functions
      */
@@ -0,0 +1,44 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.core.Entity;
+import uk.gov.ea.wastecarrier.services.match.NameNormaliser;
+import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class NameNormaliserTest {
+
+    @Test
+    public void normalise() {
+        assertEquals("isaacs waste", NameNormaliser.normalise("Isaacs Waste Services Ltd."));
+        assertEquals("isaacs waste contractors", NameNormaliser.normalise("  Isaacs  Waste Contractors Ltd"));
+        assertEquals("isaacs kermode mayo", NameNormaliser.normalise("Isaacs, Kermode & Mayo"));
+        assertEquals("o brien skips", NameNormaliser.normalise("O'Brien Skips (UK) Limited"));
+    }
+
+    @Test
+    public void normaliseNothingLeft() {
+        assertEquals("", NameNormaliser.normalise(null));
+        assertEquals("", NameNormaliser.normalise(" - "));
+        assertEquals("", NameNormaliser.normalise("UK Ltd"));
+    }
+
+    @Test
+    public void tokens() {
+        assertEquals(Arrays.asList("isaacs", "and", "sons"), NameNormaliser.tokens("isaacs and sons"));
+        assertEquals(Arrays.asList("skip", "hire"), NameNormaliser.tokens("skip hire skip"));
+        assertEquals(Collections.emptyList(), NameNormaliser.tokens(""));
+    }
+
+    @Test
+    public void apply() {
+        Entity entity = NameNormaliser.apply(new EntityBuilder(EntityBuilder.BuildType.COMPANY).build());
+
+        assertEquals("isaacs waste", entity.normalisedName);
+        assertEquals(Arrays.asList("isaacs", "waste"), entity.nameTokens);
+    }
+}
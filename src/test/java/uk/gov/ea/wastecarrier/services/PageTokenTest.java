@@ -0,0 +1,59 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.search.PageToken;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class PageTokenTest {
+
+    @Test
+    public void stringValueRoundTrip() {
+        PageToken token = new PageToken("companyName", "Waste carriers (Westonsmith)", "5a1b2c3d4e5f6a7b8c9d0e1f");
+
+        PageToken decoded = PageToken.decode(token.encode());
+
+        assertEquals("companyName", decoded.getSortField());
+        assertEquals("Waste carriers (Westonsmith)", decoded.getSortValue());
+        assertEquals("5a1b2c3d4e5f6a7b8c9d0e1f", decoded.getId());
+    }
+
+    @Test
+    public void dateValueRoundTrip() {
+        Date registered = new Date(1514764800000L);
+        PageToken token = new PageToken("metaData.dateRegistered", registered, "5a1b2c3d4e5f6a7b8c9d0e1f");
+
+        PageToken decoded = PageToken.decode(token.encode());
+
+        assertEquals("The date is restored", registered, decoded.getSortValue());
+    }
+
+    @Test
+    public void nullValueRoundTrip() {
+        PageToken token = new PageToken("lastName", null, "5a1b2c3d4e5f6a7b8c9d0e1f");
+
+        PageToken decoded = PageToken.decode(token.encode());
+
+        assertNull("The null sort value is kept", decoded.getSortValue());
+        assertEquals("5a1b2c3d4e5f6a7b8c9d0e1f", decoded.getId());
+    }
+
+    @Test
+    public void tokenIsUrlSafe() {
+        PageToken token = new PageToken("companyName", "???>>>~~~", "5a1b2c3d4e5f6a7b8c9d0e1f");
+
+        assertTrue("Only URL safe characters are used", token.encode().matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidToken() {
+        PageToken.decode("not-a-token");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tokenMissingId() {
+        PageToken.decode("eyJmIjoiY29tcGFueU5hbWUiLCJ0IjoibiJ9");
+    }
+}
@@ -0,0 +1,48 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.match.PersonKeys;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PersonKeysTest {
+
+    @Test
+    public void spellingsThatSoundTheSame() {
+        assertEquals(PersonKeys.searchKeys("Steven"), PersonKeys.searchKeys("Stephen"));
+        assertEquals(PersonKeys.searchKeys("Jon", "Smith"), PersonKeys.searchKeys("John", "Smyth"));
+    }
+
+    @Test
+    public void longNamesAreNotCut() {
+        assertNotEquals(PersonKeys.searchKeys("Richardson"), PersonKeys.searchKeys("Richards"));
+        assertNotEquals(PersonKeys.searchKeys("Richardsen"), PersonKeys.searchKeys("Richards"));
+        assertEquals(Collections.singletonList("RXRTSN"), PersonKeys.searchKeys("Richardson"));
+        // Though these still sound the same
+        assertEquals(PersonKeys.searchKeys("Richardson"), PersonKeys.searchKeys("Richardsen"));
+    }
+
+    @Test
+    public void entityHoldsAlternateKeys() {
+        // 'Schmidt' is primarily XMT, though could also be said SMT
+        assertTrue(PersonKeys.phoneticKeys("Schmidt").containsAll(Arrays.asList("XMT", "SMT")));
+        assertTrue(PersonKeys.phoneticKeys("Isaacs, Jason").containsAll(PersonKeys.searchKeys("Jason", "Isaacs")));
+    }
+
+    @Test
+    public void noWords() {
+        assertEquals(Collections.emptyList(), PersonKeys.searchKeys(null, " - "));
+        assertEquals(Collections.emptyList(), PersonKeys.phoneticKeys(null));
+    }
+
+    @Test
+    public void dateOfBirthDay() {
+        assertEquals(Integer.valueOf(0), PersonKeys.dateOfBirthDay(new LocalDate(1970, 1, 1).toDate()));
+        assertEquals(Integer.valueOf(5176), PersonKeys.dateOfBirthDay(new LocalDate(1984, 3, 4).toDate()));
+        assertNull(PersonKeys.dateOfBirthDay(null));
+    }
+}
@@ -1,5 +1,6 @@
 package uk.gov.ea.wastecarrier.services;
 
+import com.codahale.metrics.MetricRegistry;
 import org.junit.*;
 import uk.gov.ea.wastecarrier.services.core.Entity;
 import uk.gov.ea.wastecarrier.services.match.PersonMatch;
@@ -99,6 +100,19 @@ public class PersonMatchTest {
         assertEquals("Jason Isaacs", document.name);
     }
 
+    @Test
+    public void dateOfBirthTakesPrecedence() {
+        MetricRegistry metrics = new MetricRegistry();
+        PersonMatch matcher = new PersonMatch(connection.searchHelper, "Jason", "Isaacs", "04-04-1984");
+        matcher.setMetrics(metrics);
+
+        Entity document = matcher.execute();
+
+        assertEquals(new Date(449884800000L), document.dateOfBirth);
+        assertEquals(1, metrics.meter(
+                MetricRegistry.name(PersonMatch.class, "hits", "name-and-date-of-birth")).getCount());
+    }
+
     private static void createTestData() {
         Entity document = new EntityBuilder(EntityBuilder.BuildType.PERSON)
                 .build();
@@ -0,0 +1,96 @@
+package uk.gov.ea.wastecarrier.services;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.search.QueryPlan;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class QueryPlanTest {
+
+    @Test
+    public void indexScan() {
+        DBObject winningPlan = stage("LIMIT", stage("FETCH", new BasicDBObject("stage", "IXSCAN")
+                .append("indexName", "regIdentifier_1__id_1")));
+
+        QueryPlan plan = QueryPlan.from("within", explain(winningPlan, 10, 10, 10));
+
+        assertEquals("LIMIT > FETCH > IXSCAN(regIdentifier_1__id_1)", plan.getWinningPlan());
+        assertFalse(plan.isCollectionScan());
+        assertFalse(plan.isInMemorySort());
+        assertEquals(1.0, plan.getExaminedRatio(), 0.001);
+        assertFalse(plan.exceeds(10));
+    }
+
+    @Test
+    public void collectionScan() {
+        DBObject winningPlan = stage("SORT", new BasicDBObject("stage", "COLLSCAN"));
+
+        QueryPlan plan = QueryPlan.from("within substring", explain(winningPlan, 5, 0, 5000));
+
+        assertEquals("SORT > COLLSCAN", plan.getWinningPlan());
+        assertTrue(plan.isCollectionScan());
+        assertTrue(plan.isInMemorySort());
+        assertEquals(1000.0, plan.getExaminedRatio(), 0.001);
+        assertTrue(plan.exceeds(10));
+        assertTrue(plan.toString().contains("[COLLSCAN]"));
+    }
+
+    @Test
+    public void orOfIndexScans() {
+        DBObject winningPlan = stage("FETCH", new BasicDBObject("stage", "OR").append("inputStages", Arrays.asList(
+                new BasicDBObject("stage", "IXSCAN").append("indexName", "searchKeys.companyName_1__id_1"),
+                new BasicDBObject("stage", "IXSCAN").append("indexName", "searchKeys.lastName_1__id_1")
+        )));
+
+        QueryPlan plan = QueryPlan.from("within prefix any", explain(winningPlan, 2, 2, 2));
+
+        assertEquals(
+                "FETCH > OR[IXSCAN(searchKeys.companyName_1__id_1), IXSCAN(searchKeys.lastName_1__id_1)]",
+                plan.getWinningPlan()
+        );
+    }
+
+    @Test
+    public void nothingReturned() {
+        QueryPlan plan = QueryPlan.from("none", explain(new BasicDBObject("stage", "COLLSCAN"), 0, 0, 50));
+
+        assertEquals(50.0, plan.getExaminedRatio(), 0.001);
+        assertTrue(plan.exceeds(10));
+    }
+
+    @Test
+    public void aggregation() {
+        DBObject cursor = explain(stage("FETCH", new BasicDBObject("stage", "IXSCAN")
+                .append("indexName", "phoneticKeys_1")), 40, 40, 40);
+        DBObject explain = new BasicDBObject("stages", Arrays.asList(
+                new BasicDBObject("$cursor", cursor),
+                new BasicDBObject("$addFields", new BasicDBObject("matchStage", new BasicDBObject())),
+                new BasicDBObject("$sort", new BasicDBObject("sortKey", new BasicDBObject("matchStage", 1))
+                        .append("limit", 1))
+        ));
+
+        QueryPlan plan = QueryPlan.from("person match", explain);
+
+        assertEquals("$sort(limit 1) > $addFields > FETCH > IXSCAN(phoneticKeys_1)", plan.getWinningPlan());
+        assertFalse(plan.isCollectionScan());
+        assertTrue(plan.isInMemorySort());
+        assertEquals(40, plan.getDocsExamined());
+        assertEquals(1.0, plan.getExaminedRatio(), 0.001);
+    }
+
+    private DBObject stage(String name, DBObject input) {
+        return new BasicDBObject("stage", name).append("inputStage", input);
+    }
+
+    private DBObject explain(DBObject winningPlan, int returned, int keys, int docs) {
+        return new BasicDBObject("queryPlanner", new BasicDBObject("winningPlan", winningPlan))
+                .append("executionStats", new BasicDBObject("nReturned", returned)
+                        .append("totalKeysExamined", keys)
+                        .append("totalDocsExamined", docs)
+                        .append("executionTimeMillis", 3));
+    }
+}
@@ -0,0 +1,76 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.junit.After;
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.tasks.QueuedLoad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class QueuedLoadTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void writesEveryRow() throws Exception {
+        List<Integer> written = new ArrayList<>();
+        List<String> summaries = new ArrayList<>();
+
+        long count = new QueuedLoad<Integer>(executor, 2).run(
+                Arrays.asList(source("first", 0, 50), source("second", 1000, 50), source("third", 2000, 50)),
+                rows -> {
+                    rows.forEachRemaining(written::add);
+                    return written.size();
+                },
+                summaries::add
+        );
+
+        assertEquals(150, count);
+        assertEquals(150, written.size());
+        assertTrue(written.containsAll(Arrays.asList(0, 49, 1000, 1049, 2000, 2049)));
+        assertEquals("The summaries are in the order of the sources", Arrays.asList(
+                "first: 50 rows", "second: 50 rows", "third: 50 rows"
+        ), summaries);
+    }
+
+    @Test(timeout = 10000)
+    public void writerFailing() throws Exception {
+        QueuedLoad<Integer> load = new QueuedLoad<>(executor, 2);
+
+        try {
+            load.run(
+                    Arrays.asList(source("first", 0, 1000), source("second", 1000, 1000), source("third", 2000, 1000)),
+                    rows -> {
+                        for (int i = 0; i < 10; i++) rows.next();
+                        throw new IllegalStateException("The database has gone away");
+                    },
+                    summary -> fail("Nothing was written, so there's nothing to summarise")
+            );
+            fail("The writer's failure should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("The database has gone away", e.getMessage());
+        }
+
+        // Were any reader still waiting on the full queue, it would never finish
+        executor.shutdown();
+        assertTrue("Every reader finishes", executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    private QueuedLoad.Source<Integer> source(String name, int first, int count) {
+        return sink -> {
+            for (int i = first; i < first + count; i++) sink.put(i);
+            return name + ": " + count + " rows";
+        };
+    }
+}
@@ -0,0 +1,95 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.junit.*;
+import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.resources.RegistrationReadEditResource;
+import uk.gov.ea.wastecarrier.services.search.RegistrationSearch;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
+import uk.gov.ea.wastecarrier.services.support.RegistrationBuilder;
+import uk.gov.ea.wastecarrier.services.support.RegistrationsConnectionUtil;
+import uk.gov.ea.wastecarrier.services.support.TestUtil;
+
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RegistrationReadEditResourceTest {
+
+    private static RegistrationsConnectionUtil connection;
+
+    private ReportCache reportCache;
+    private RegistrationReadEditResource resource;
+
+    @BeforeClass
+    public static void setup() {
+        connection = new RegistrationsConnectionUtil();
+    }
+
+    @Before
+    public void createResource() {
+        this.reportCache = new ReportCache(1000, 10, null);
+        this.resource = new RegistrationReadEditResource(
+                connection.databaseHelper.configuration(),
+                connection.databaseHelper.configuration(),
+                new SettingsConfiguration(),
+                this.reportCache
+        );
+    }
+
+    @After
+    public void tearDown() {
+        connection.clean();
+    }
+
+    /**
+     * Editing and deleting registrations write straight to the collection rather than through the DAO, but should
+     * still drop the cached reports they affect
+     */
+    @Test
+    public void editAndDeleteInvalidateCachedReports() {
+        Registration edited = connection.dao.insert(new RegistrationBuilder(RegistrationBuilder.BuildType.LOWER)
+                .regIdentifier("CBDL1")
+                .companyName("Before Waste Ltd")
+                .dateRegistered(TestUtil.fromCurrentDate(0, 0, 0))
+                .build());
+        Registration deleted = connection.dao.insert(new RegistrationBuilder(RegistrationBuilder.BuildType.LOWER)
+                .regIdentifier("CBDL2")
+                .dateRegistered(TestUtil.fromCurrentDate(0, 0, 0))
+                .build());
+
+        assertEquals(2, report().size());
+
+        edited.setCompanyName("After Waste Ltd");
+        this.resource.update(edited.getId(), edited);
+
+        List<Registration> results = report();
+        assertEquals(2, results.size());
+        assertTrue(
+                "The report shows the edit",
+                results.stream().map(Registration::getCompanyName).anyMatch("After Waste Ltd"::equals)
+        );
+
+        this.resource.deleteRegistration(deleted.getId());
+
+        results = report();
+        assertEquals("The report no longer includes the deleted registration", 1, results.size());
+        assertEquals("CBDL1", results.get(0).getRegIdentifier());
+    }
+
+    private List<Registration> report() {
+        return this.reportCache.execute(new RegistrationSearch(
+                connection.searchHelper,
+                TestUtil.dateToday(),
+                TestUtil.dateToday(),
+                new HashSet<>(),
+                new HashSet<>(),
+                new HashSet<>(),
+                new HashSet<>(),
+                null,
+                false,
+                false,
+                0
+        ));
+    }
+}
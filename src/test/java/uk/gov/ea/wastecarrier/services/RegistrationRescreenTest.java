@@ -0,0 +1,70 @@
+package uk.gov.ea.wastecarrier.services;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.core.ConvictionSearchResult;
+import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.match.EntityIndex;
+import uk.gov.ea.wastecarrier.services.match.RegistrationRescreen;
+import uk.gov.ea.wastecarrier.services.support.EntityBuilder;
+import uk.gov.ea.wastecarrier.services.support.RegistrationBuilder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class RegistrationRescreenTest {
+
+    private final EntityIndex noEntities = EntityIndex.of(Collections.emptyList());
+
+    private final Date searchedAt = new Date();
+
+    @Test
+    public void nothingChanged() {
+        Registration registration = new RegistrationBuilder(RegistrationBuilder.BuildType.UPPER).build();
+
+        BasicDBObject changes = RegistrationRescreen.changes(noEntities, registration, searchedAt);
+
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void newCompanyAndPersonMatches() {
+        Registration registration = new RegistrationBuilder(RegistrationBuilder.BuildType.UPPER).build();
+
+        EntityIndex index = EntityIndex.of(Arrays.asList(
+                new EntityBuilder(EntityBuilder.BuildType.COMPANY)
+                        .name(registration.getCompanyName())
+                        .build(),
+                new EntityBuilder(EntityBuilder.BuildType.PERSON)
+                        .name("Jason Isaacs")
+                        .build()
+        ));
+
+        BasicDBObject changes = RegistrationRescreen.changes(index, registration, searchedAt);
+
+        DBObject company = (DBObject) changes.get("conviction_search_result");
+        assertEquals("YES", company.get("match_result"));
+        assertEquals(registration.getCompanyName(), company.get("matched_name"));
+        assertEquals(searchedAt, company.get("searched_at"));
+
+        DBObject person = (DBObject) changes.get("key_people.0.conviction_search_result");
+        assertEquals("YES", person.get("match_result"));
+        assertEquals("Jason Isaacs", person.get("matched_name"));
+    }
+
+    @Test
+    public void matchNoLongerFound() {
+        Registration registration = new RegistrationBuilder(RegistrationBuilder.BuildType.UPPER)
+                .companyConvictionMatch(ConvictionSearchResult.MatchResult.YES)
+                .build();
+
+        BasicDBObject changes = RegistrationRescreen.changes(noEntities, registration, searchedAt);
+
+        assertEquals("NO", ((DBObject) changes.get("conviction_search_result")).get("match_result"));
+        assertFalse(changes.containsField("key_people.0.conviction_search_result"));
+    }
+}
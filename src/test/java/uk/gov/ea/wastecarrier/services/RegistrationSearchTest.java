@@ -1,14 +1,19 @@
 package uk.gov.ea.wastecarrier.services;
 
+import io.dropwizard.jackson.Jackson;
 import org.junit.*;
 import uk.gov.ea.wastecarrier.services.core.ConvictionSearchResult;
 import uk.gov.ea.wastecarrier.services.core.MetaData;
 import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.helper.NdjsonStreamingOutput;
+import uk.gov.ea.wastecarrier.services.search.RegistrationFacets;
 import uk.gov.ea.wastecarrier.services.search.RegistrationSearch;
 import uk.gov.ea.wastecarrier.services.support.RegistrationsConnectionUtil;
 import uk.gov.ea.wastecarrier.services.support.RegistrationBuilder;
 import uk.gov.ea.wastecarrier.services.support.TestUtil;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 
@@ -482,6 +487,88 @@ public class RegistrationSearchTest {
         assertEquals("Only one registration is returned", 1, results.size());
     }
 
+    @Test
+    public void streamResults() throws IOException {
+        RegistrationSearch search = new RegistrationSearch(
+                connection.searchHelper,
+                TestUtil.dateToday(),
+                TestUtil.dateToday(),
+                new HashSet<>(),
+                new HashSet<>(),
+                new HashSet<>(),
+                new HashSet<>(),
+                null,
+                false,
+                false,
+                0
+        );
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new NdjsonStreamingOutput<>(search.cursor(), Jackson.newObjectMapper()).write(output);
+
+        String[] lines = output.toString("UTF-8").split("\n");
+
+        assertEquals("8 registrations are streamed, one per line", 8, lines.length);
+        assertEquals("Each line is a registration", true, lines[0].startsWith("{") && lines[0].endsWith("}"));
+    }
+
+    @Test
+    public void facetsWithNoFilters() {
+        RegistrationSearch search = new RegistrationSearch(
+                connection.searchHelper,
+                TestUtil.dateToday(),
+                TestUtil.dateToday(),
+                new HashSet<>(),
+                new HashSet<>(),
+                new HashSet<>(),
+                new HashSet<>(),
+                null,
+                false,
+                false,
+                0
+        );
+
+        RegistrationFacets facets = search.facets();
+
+        assertEquals("8 registrations are counted", 8, facets.getTotal());
+        assertEquals("2 are lower tier", Long.valueOf(2), facets.getTier().get("LOWER"));
+        assertEquals("1 is assisted digital", Long.valueOf(1), facets.getRoute().get("ASSISTED_DIGITAL"));
+        assertEquals("1 is pending", Long.valueOf(1), facets.getStatus().get("PENDING"));
+        assertEquals("1 is a charity", Long.valueOf(1), facets.getBusinessType().get("charity"));
+        assertEquals("2 declared a conviction", Long.valueOf(2), facets.getConvictions().get("declaredConvictions"));
+        assertEquals("3 matched a conviction", Long.valueOf(3), facets.getConvictions().get("convictionCheckMatch"));
+        assertEquals("1 ordered copy cards when new", Long.valueOf(1), facets.getCopyCards().get("NEW"));
+        assertEquals("1 ordered copy cards when renewing", Long.valueOf(1), facets.getCopyCards().get("RENEW"));
+        assertEquals("2 ordered copy cards", Long.valueOf(2), facets.getCopyCards().get("ANY"));
+        assertEquals("4 have orders without copy cards", Long.valueOf(4), facets.getCopyCards().get("NONE"));
+    }
+
+    @Test
+    public void facetsApplyFilters() {
+        HashSet<String> tiers = new HashSet<>();
+        tiers.add("LOWER");
+
+        RegistrationSearch search = new RegistrationSearch(
+                connection.searchHelper,
+                TestUtil.dateToday(),
+                TestUtil.dateToday(),
+                new HashSet<>(),
+                tiers,
+                new HashSet<>(),
+                new HashSet<>(),
+                null,
+                false,
+                false,
+                0
+        );
+
+        RegistrationFacets facets = search.facets();
+
+        assertEquals("2 registrations are counted", 2, facets.getTotal());
+        assertEquals("Only lower tier is counted", false, facets.getTier().containsKey("UPPER"));
+        assertEquals("Neither declared a conviction", Long.valueOf(0), facets.getConvictions().get("declaredConvictions"));
+    }
+
     /**
      * Create test registrations
      *
@@ -0,0 +1,169 @@
+package uk.gov.ea.wastecarrier.services;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.search.ReportCache;
+import uk.gov.ea.wastecarrier.services.search.ReportSearch;
+import uk.gov.ea.wastecarrier.services.search.SearchFields;
+import uk.gov.ea.wastecarrier.services.support.RegistrationBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReportCacheTest {
+
+    private static final Date FROM = new DateTime(2017, 1, 1, 0, 0).toDate();
+    private static final Date TO = new DateTime(2017, 12, 31, 23, 59).toDate();
+
+    private ReportCache cache;
+
+    @Before
+    public void setUp() {
+        this.cache = new ReportCache(1000, 10, null);
+    }
+
+    @Test
+    public void secondRunIsCached() {
+        StubReport report = new StubReport("report", registration("1", new DateTime(2017, 6, 1, 0, 0).toDate()));
+
+        List<Registration> first = this.cache.execute(report);
+        List<Registration> second = this.cache.execute(report);
+
+        assertEquals(1, report.runs);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void keyIgnoresFilterOrder() {
+        String key1 = ReportCache.key("registrations", FROM, new LinkedHashSet<>(Arrays.asList("UPPER", "LOWER")));
+        String key2 = ReportCache.key("registrations", new Date(FROM.getTime()), Arrays.asList("LOWER", "UPPER"));
+
+        assertEquals(key1, key2);
+    }
+
+    @Test
+    public void keyDependsOnFields() {
+        String all = ReportCache.key("registrations", FROM, TO, null);
+        String summary = ReportCache.key("registrations", FROM, TO, SearchFields.parse(SearchFields.SUMMARY));
+
+        assertNotEquals(all, summary);
+    }
+
+    @Test
+    public void savingAReturnedRegistrationInvalidates() {
+        StubReport report = new StubReport("report", registration("1", new DateTime(2017, 6, 1, 0, 0).toDate()));
+        this.cache.execute(report);
+
+        // Dates outside the report, so only the id ties the change to it
+        this.cache.invalidate(registration("1", new DateTime(2016, 6, 1, 0, 0).toDate()));
+        this.cache.execute(report);
+
+        assertEquals(2, report.runs);
+    }
+
+    @Test
+    public void savingARegistrationInTheDateRangeInvalidates() {
+        StubReport report = new StubReport("report");
+        this.cache.execute(report);
+
+        this.cache.invalidate("2", Collections.singletonList(new DateTime(2017, 3, 1, 0, 0).toDate()));
+        this.cache.execute(report);
+
+        assertEquals(2, report.runs);
+    }
+
+    @Test
+    public void invalidateAllDropsEveryReport() {
+        StubReport first = new StubReport("first", registration("1", new DateTime(2017, 6, 1, 0, 0).toDate()));
+        StubReport second = new StubReport("second");
+        this.cache.execute(first);
+        this.cache.execute(second);
+
+        this.cache.invalidateAll();
+        this.cache.execute(first);
+        this.cache.execute(second);
+
+        assertEquals(2, first.runs);
+        assertEquals(2, second.runs);
+    }
+
+    @Test
+    public void savingAnUnrelatedRegistrationKeepsTheReport() {
+        StubReport report = new StubReport("report", registration("1", new DateTime(2017, 6, 1, 0, 0).toDate()));
+        this.cache.execute(report);
+
+        this.cache.invalidate(registration("2", new DateTime(2018, 3, 1, 0, 0).toDate()));
+        this.cache.execute(report);
+
+        assertEquals(1, report.runs);
+    }
+
+    @Test
+    public void resultsFromARunOverlappingASaveAreNotCached() {
+        StubReport report = new StubReport("report") {
+            @Override
+            public List<Registration> execute() {
+                cache.invalidate("2", Collections.singletonList(new DateTime(2018, 3, 1, 0, 0).toDate()));
+                return super.execute();
+            }
+        };
+
+        this.cache.execute(report);
+        this.cache.execute(report);
+
+        assertEquals(2, report.runs);
+    }
+
+    private Registration registration(String id, Date date) {
+        Registration registration = new RegistrationBuilder(RegistrationBuilder.BuildType.LOWER)
+                .dateRegistered(date)
+                .orderCreatedDate(date)
+                .orderUpdatedDate(date)
+                .paymentReceived(date)
+                .build();
+        registration.setId(id);
+
+        return registration;
+    }
+
+    private static class StubReport implements ReportSearch {
+
+        private final String name;
+        private final List<Registration> results;
+        private int runs;
+
+        private StubReport(String name, Registration... results) {
+            this.name = name;
+            this.results = Arrays.asList(results);
+        }
+
+        @Override
+        public String cacheKey() {
+            return ReportCache.key(this.name, FROM, TO);
+        }
+
+        @Override
+        public Date getFromDate() {
+            return FROM;
+        }
+
+        @Override
+        public Date getToDate() {
+            return TO;
+        }
+
+        @Override
+        public List<Registration> execute() {
+            this.runs++;
+            return new ArrayList<>(this.results);
+        }
+    }
+}
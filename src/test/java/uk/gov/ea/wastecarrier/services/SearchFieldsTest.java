@@ -0,0 +1,60 @@
+package uk.gov.ea.wastecarrier.services;
+
+import com.mongodb.DBObject;
+import org.junit.Test;
+import uk.gov.ea.wastecarrier.services.search.SearchFields;
+
+import static org.junit.Assert.*;
+
+public class SearchFieldsTest {
+
+    @Test
+    public void noFields() {
+        assertNull("Null means the whole document", SearchFields.parse(null));
+        assertNull("As does an empty string", SearchFields.parse(" "));
+        assertNull("Or just commas", SearchFields.parse(",,"));
+    }
+
+    @Test
+    public void fieldList() {
+        SearchFields fields = SearchFields.parse("regIdentifier, companyName,metaData.status");
+
+        DBObject projection = fields.projection();
+
+        assertFalse("This is not a summary", fields.isSummary());
+        assertEquals("3 fields are projected", 3, projection.keySet().size());
+        assertTrue(projection.containsField("regIdentifier"));
+        assertTrue(projection.containsField("companyName"));
+        assertTrue(projection.containsField("metaData.status"));
+    }
+
+    @Test
+    public void summary() {
+        SearchFields fields = SearchFields.parse("summary");
+
+        assertTrue("This is a summary", fields.isSummary());
+        assertTrue(fields.projection().containsField("addresses.postcode"));
+        assertFalse(fields.projection().containsField("financeDetails"));
+    }
+
+    @Test
+    public void requiredFieldsAreAdded() {
+        DBObject projection = SearchFields.parse("regIdentifier").projection("companyName");
+
+        assertTrue(projection.containsField("regIdentifier"));
+        assertTrue("The required field is added", projection.containsField("companyName"));
+    }
+
+    @Test
+    public void childOfIncludedFieldIsDropped() {
+        DBObject projection = SearchFields.parse("metaData,metaData.status").projection("metaData.dateRegistered");
+
+        assertEquals("Only the parent is projected", 1, projection.keySet().size());
+        assertTrue(projection.containsField("metaData"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void operatorsAreRejected() {
+        SearchFields.parse("regIdentifier,$where");
+    }
+}
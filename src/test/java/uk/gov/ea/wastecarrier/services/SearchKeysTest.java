@@ -0,0 +1,72 @@
+package uk.gov.ea.wastecarrier.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import org.junit.Test;
+import org.mongojack.internal.MongoJackModule;
+import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.core.SearchKeys;
+import uk.gov.ea.wastecarrier.services.support.RegistrationBuilder;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SearchKeysTest {
+
+    @Test
+    public void normaliseName() {
+        assertEquals("waste carriers westonsmith ltd", SearchKeys.normaliseName(" Waste  Carriers (Westonsmith) Ltd."));
+        assertEquals("heggertsmith", SearchKeys.normaliseName("Heggert-Smith"));
+    }
+
+    @Test
+    public void normaliseNameWithNothingLeft() {
+        assertNull(SearchKeys.normaliseName(null));
+        assertNull(SearchKeys.normaliseName(" .,- "));
+    }
+
+    @Test
+    public void compactPostcode() {
+        assertEquals("bs15ah", SearchKeys.compactPostcode(" BS1  5AH"));
+    }
+
+    @Test
+    public void keysForRegistration() {
+        Registration reg = new RegistrationBuilder(RegistrationBuilder.BuildType.LOWER)
+                .companyName("Test Waste Services")
+                .lastName("Smith")
+                .registeredPostcode("BS1 5AH")
+                .postalPostcode("bs1 5ah")
+                .build();
+
+        SearchKeys keys = reg.getSearchKeys();
+
+        assertEquals("test waste services", keys.getCompanyName());
+        assertEquals("smith", keys.getLastName());
+        assertEquals("Duplicate postcodes are only listed once", Arrays.asList("bs15ah"), keys.getPostcodeCompact());
+    }
+
+    @Test
+    public void keysLeftOutOfApiResponses() {
+        Registration reg = new RegistrationBuilder(RegistrationBuilder.BuildType.LOWER)
+                .companyName("Test Waste Services")
+                .build();
+
+        ObjectMapper api = Registration.withoutSearchKeys(Jackson.newObjectMapper());
+        ObjectMapper mongo = MongoJackModule.configure(new ObjectMapper());
+
+        JsonNode response = api.valueToTree(reg);
+        assertFalse(response.has(SearchKeys.FIELD));
+        assertEquals("Test Waste Services", response.get("companyName").asText());
+
+        JsonNode stored = mongo.valueToTree(reg);
+        assertEquals("test waste services", stored.get(SearchKeys.FIELD).get("companyName").asText());
+    }
+
+    @Test
+    public void noKeysForEmptyRegistration() {
+        assertNull(new Registration().getSearchKeys());
+    }
+}
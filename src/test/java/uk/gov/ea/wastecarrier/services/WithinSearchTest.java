@@ -1,14 +1,23 @@
 package uk.gov.ea.wastecarrier.services;
 
+import com.codahale.metrics.MetricRegistry;
 import org.junit.*;
 import uk.gov.ea.wastecarrier.services.core.Registration;
+import uk.gov.ea.wastecarrier.services.core.RegistrationSummary;
+import uk.gov.ea.wastecarrier.services.search.QueryShape;
+import uk.gov.ea.wastecarrier.services.search.SearchFields;
+import uk.gov.ea.wastecarrier.services.search.SearchPage;
 import uk.gov.ea.wastecarrier.services.search.WithinSearch;
 import uk.gov.ea.wastecarrier.services.support.RegistrationsConnectionUtil;
 import uk.gov.ea.wastecarrier.services.support.RegistrationBuilder;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class WithinSearchTest {
 
@@ -30,7 +39,7 @@ public class WithinSearchTest {
 
     /**
      * We're testing a number of things here
-     * - That we can do a 'like' search on the term 'waste'
+     * - That we can do a 'like' (substring) search on the term 'waste'
      * - That the search is case insensitive
      * - That the search will still return exact matches
      * - That the results are ordered correctly by company name
@@ -41,6 +50,7 @@ public class WithinSearchTest {
                 connection.searchHelper,
                 "waste",
                 "companyName",
+                "substring",
                 100
         );
         List<Registration> results = search.execute();
@@ -54,7 +64,7 @@ public class WithinSearchTest {
 
     /**
      * We're testing a number of things here
-     * - That we can do a 'like' search on the term 'smith'
+     * - That we can do a 'like' (substring) search on the term 'smith'
      * - That the search is case insensitive
      * - That the search will still return exact matches
      * - That the results are ordered correctly by last name
@@ -65,6 +75,7 @@ public class WithinSearchTest {
                 connection.searchHelper,
                 "smith",
                 "contactName",
+                "substring",
                 100
         );
         List<Registration> results = search.execute();
@@ -78,7 +89,7 @@ public class WithinSearchTest {
 
     /**
      * We're testing a number of things here
-     * - That we can do a 'like' search on the term 'bs1'
+     * - That we can do a 'like' (substring) search on the term 'bs1'
      * - That the search is case insensitive
      * - That the search will still return exact matches
      * - That the search finds registrations irrespective of whether the
@@ -91,6 +102,7 @@ public class WithinSearchTest {
                 connection.searchHelper,
                 "bs1",
                 "postcode",
+                "substring",
                 100
         );
         List<Registration> results = search.execute();
@@ -104,7 +116,7 @@ public class WithinSearchTest {
 
     /**
      * We're testing a number of things here
-     * - That we can do a 'like' search on the term 'cbdl1'
+     * - That we can do a 'like' (substring) search on the term 'cbdl1'
      * - That the search is case insensitive
      * - That the search will still return exact matches
      * - That the search is only looking at the regIdentifier field. Our test reg.
@@ -118,6 +130,7 @@ public class WithinSearchTest {
                 connection.searchHelper,
                 "cbdl1",
                 "any",
+                "substring",
                 100
         );
         List<Registration> results = search.execute();
@@ -131,7 +144,7 @@ public class WithinSearchTest {
 
     /**
      * We're testing a number of things here
-     * - That we can do a 'like' search on the term 'smith'
+     * - That we can do a 'like' (substring) search on the term 'smith'
      * - That the search is case insensitive
      * - That the search will still return exact matches
      * - That the search reverted to querying the company name, last name and
@@ -145,6 +158,7 @@ public class WithinSearchTest {
                 connection.searchHelper,
                 "smith",
                 "any",
+                "substring",
                 100
         );
         List<Registration> results = search.execute();
@@ -162,6 +176,7 @@ public class WithinSearchTest {
                 connection.searchHelper,
                 "smith",
                 "contactName",
+                "substring",
                 1
         );
 
@@ -170,6 +185,330 @@ public class WithinSearchTest {
         assertEquals("Only one registration is returned", 1, results.size());
     }
 
+    /**
+     * With an executor both stages of the search run at the same time, but we should get the same results as when
+     * they run one after the other. The regIdentifier matches still take precedence over the others, and the time
+     * taken by each stage that completes is recorded.
+     */
+    @Test
+    public void searchWithinAnyConcurrently() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        MetricRegistry metrics = new MetricRegistry();
+
+        try {
+            WithinSearch byNumber = new WithinSearch(
+                    connection.searchHelper,
+                    "cbdl1",
+                    "any",
+                    100
+            );
+            byNumber.setExecutor(executor);
+            byNumber.setMetrics(metrics);
+
+            List<Registration> results = byNumber.execute();
+
+            assertEquals("4 registrations are returned", 4, results.size());
+            assertEquals("The first result is CBDL1", "CBDL1", results.get(0).getRegIdentifier());
+            assertEquals("The stage was timed", 1, metrics.timer(WithinSearch.REG_IDENTIFIER_PHASE).getCount());
+
+            WithinSearch byName = new WithinSearch(
+                    connection.searchHelper,
+                    "smith",
+                    "any",
+                    "substring",
+                    100
+            );
+            byName.setExecutor(executor);
+            byName.setMetrics(metrics);
+
+            results = byName.execute();
+
+            assertEquals("4 registrations are returned", 4, results.size());
+            assertEquals("The first result is CBDL11", "CBDL11", results.get(0).getRegIdentifier());
+            // The fields stage from the first search may or may not have finished before it was cancelled
+            assertTrue("The fields stage was timed", metrics.timer(WithinSearch.FIELDS_PHASE).getCount() >= 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A time limit is passed to MongoDB with every query, in both stages and when paging. A limit this generous changes
+     * nothing about the results.
+     */
+    @Test
+    public void searchWithinAnyWithMaxTime() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            WithinSearch search = new WithinSearch(
+                    connection.searchHelper,
+                    "smith",
+                    "any",
+                    "substring",
+                    100
+            );
+            search.setExecutor(executor);
+            search.setMaxTime(60000);
+
+            assertEquals("4 registrations are returned", 4, search.execute().size());
+            assertEquals("4 registrations are paged", 4, search.page(null, 10, false).getResults().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * By default the search is a prefix match, so only company names starting with 'waste' are returned. They are
+     * ordered by their normalised name
+     */
+    @Test
+    public void prefixWithinCompany() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "waste",
+                "companyName",
+                100
+        );
+        List<Registration> results = search.execute();
+
+        assertEquals("2 registrations are returned", 2, results.size());
+
+        assertEquals("The first result is CBDL12", "CBDL12", results.get(0).getRegIdentifier());
+        assertEquals("The last result is CBDL1", "CBDL1", results.get(1).getRegIdentifier());
+    }
+
+    /**
+     * Case and punctuation in both the value searched for and the registration should be ignored
+     */
+    @Test
+    public void prefixIgnoresCaseAndPunctuation() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "WASTE CARRIERS (west",
+                "companyName",
+                100
+        );
+        List<Registration> results = search.execute();
+
+        assertEquals("1 registration is returned", 1, results.size());
+        assertEquals("The result is CBDL1", "CBDL1", results.get(0).getRegIdentifier());
+    }
+
+    /**
+     * Spacing in postcodes should make no difference, and we should find registrations irrespective of whether the
+     * postcode is in the registered or postal address
+     */
+    @Test
+    public void prefixWithinPostcode() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "bs15",
+                "postcode",
+                100
+        );
+        List<Registration> results = search.execute();
+
+        assertEquals("2 registrations are returned", 2, results.size());
+        assertEquals("CBDL11 is not one of them", false, results.stream().map(Registration::getRegIdentifier).anyMatch("CBDL11"::equals));
+    }
+
+    @Test
+    public void exactWithinContactName() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "SMITH",
+                "contactName",
+                "exact",
+                100
+        );
+        List<Registration> results = search.execute();
+
+        assertEquals("1 registration is returned", 1, results.size());
+        assertEquals("The result is CBDL13", "CBDL13", results.get(0).getRegIdentifier());
+    }
+
+    /**
+     * Characters with a special meaning in a regex should be matched literally, so '.*' should find nothing rather
+     * than everything
+     */
+    @Test
+    public void regexCharactersAreEscaped() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                ".*",
+                "companyName",
+                "substring",
+                100
+        );
+        List<Registration> results = search.execute();
+
+        assertEquals("No registrations are returned", 0, results.size());
+    }
+
+    /**
+     * A text search looks across all the indexed fields for any of the words entered, and ranks the results. Here
+     * 'consultants' only appears in the company name of CBDL11, but 'westonsmith' appears in both the company and
+     * last name of CBDL1 so it should come first.
+     */
+    @Test
+    public void textSearch() {
+        connection.dao.ensureIndexes();
+
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "westonsmith consultants",
+                "any",
+                "text",
+                100
+        );
+        List<Registration> results = search.execute();
+
+        assertEquals("2 registrations are returned", 2, results.size());
+        assertEquals("The best match is CBDL1", "CBDL1", results.get(0).getRegIdentifier());
+        assertEquals("The next is CBDL11", "CBDL11", results.get(1).getRegIdentifier());
+    }
+
+    /**
+     * Paging through the results should give us exactly the same registrations, in the same order, as a single
+     * unpaged search.
+     */
+    @Test
+    public void pageWithinCompany() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "waste",
+                "companyName",
+                "substring",
+                100
+        );
+        List<Registration> expected = search.execute();
+
+        SearchPage<Registration> first = search.page(null, 3, true);
+
+        assertEquals("3 registrations are returned in the first page", 3, first.getResults().size());
+        assertTrue("There are more results", first.getHasMore());
+        assertNotNull("A next page token is returned", first.getNextPageToken());
+
+        SearchPage<Registration> second = search.page(first.getNextPageToken(), 3, true);
+
+        assertEquals("1 registration is returned in the second page", 1, second.getResults().size());
+        assertFalse("There are no more results", second.getHasMore());
+        assertNull("No next page token is returned", second.getNextPageToken());
+
+        List<Registration> paged = new ArrayList<>(first.getResults());
+        paged.addAll(second.getResults());
+
+        assertEquals(
+                "Paged results match the unpaged ones",
+                expected.stream().map(Registration::getRegIdentifier).collect(Collectors.toList()),
+                paged.stream().map(Registration::getRegIdentifier).collect(Collectors.toList())
+        );
+    }
+
+    /**
+     * When searching within 'any' the regIdentifier matches are paged first, and the token needs to keep us in that
+     * stage of the search rather than falling through to the name and postcode fields.
+     */
+    @Test
+    public void pageWithinAnyUsingRegistrationNumber() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "cbdl1",
+                "any",
+                100
+        );
+
+        SearchPage<Registration> first = search.page(null, 2, false);
+        SearchPage<Registration> second = search.page(first.getNextPageToken(), 2, false);
+
+        assertNull("We didn't ask if there are more", first.getHasMore());
+        assertEquals("The first result is CBDL1", "CBDL1", first.getResults().get(0).getRegIdentifier());
+        assertEquals("The second page starts with CBDL12", "CBDL12", second.getResults().get(0).getRegIdentifier());
+        assertEquals("The last result is CBDL13", "CBDL13", second.getResults().get(1).getRegIdentifier());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageWithInvalidToken() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "waste",
+                "companyName",
+                "substring",
+                100
+        );
+
+        search.page("not-a-token", 3, false);
+    }
+
+    /**
+     * When we ask for specific fields only those (plus the id) should be read back from the database
+     */
+    @Test
+    public void searchWithinCompanyProjected() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "waste",
+                "companyName",
+                "substring",
+                100
+        );
+        search.setFields(SearchFields.parse("regIdentifier,companyName"));
+
+        List<Registration> results = search.execute();
+
+        assertEquals("4 registrations are returned", 4, results.size());
+        assertEquals("The first result is CBDL11", "CBDL11", results.get(0).getRegIdentifier());
+        assertNotNull("The id is always returned", results.get(0).getId());
+        assertNotNull("The company name is returned", results.get(0).getCompanyName());
+        assertNull("The last name is not", results.get(0).getLastName());
+        assertNull("Nor are the addresses", results.get(0).getAddresses());
+    }
+
+    @Test
+    public void searchWithinCompanySummary() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "waste",
+                "companyName",
+                "substring",
+                100
+        );
+        search.setFields(SearchFields.parse("summary"));
+
+        RegistrationSummary summary = RegistrationSummary.from(search.execute().get(0));
+
+        assertEquals("The first result is CBDL11", "CBDL11", summary.getRegIdentifier());
+        assertEquals("Heggert-Smith", summary.getLastName());
+        assertEquals("The registered postcode is used", "BS1", summary.getPostcode());
+    }
+
+    /**
+     * The queries explained for a projected search are the ones it runs, projection and all. Paged queries also read
+     * the field they are sorted on
+     */
+    @Test
+    public void queryShapesUseProjection() {
+        WithinSearch search = new WithinSearch(
+                connection.searchHelper,
+                "waste",
+                "companyName",
+                100
+        );
+        search.setFields(SearchFields.parse("lastName"));
+
+        List<QueryShape> shapes = search.queryShapes();
+
+        assertEquals(4, shapes.size());
+        for (QueryShape shape : shapes) {
+            assertNotNull("The projection is explained", shape.getProjection());
+            assertTrue(shape.getProjection().containsField("lastName"));
+        }
+        assertFalse(shapes.get(1).getProjection().containsField("companyName"));
+        assertTrue(shapes.get(2).getProjection().containsField("regIdentifier"));
+        assertTrue(shapes.get(3).getProjection().containsField("companyName"));
+    }
+
     /**
      * Create a test registration
      *